@@ -0,0 +1,54 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Decides whether a new client may be served now, must wait for a free slot, or is turned away
+public class AdmissionPolicy {
+    // What happens to a client that arrives when every slot is taken
+    public enum Mode {
+        QUEUE,   // Wait for a slot, as long as no more than maxQueued clients are already waiting
+        REJECT   // Turn the client away at once with a "busy" reply
+    }
+
+    private final Semaphore slots;  // One permit per client that may be served at the same time
+    private final Mode mode;
+    private final int maxQueued;  // Maximum number of clients waiting for a slot in QUEUE mode
+    private final AtomicInteger queued = new AtomicInteger();  // Clients currently waiting for a slot
+
+    public AdmissionPolicy(int maxClients, Mode mode, int maxQueued) {
+        this.slots = new Semaphore(maxClients);
+        this.mode = mode;
+        this.maxQueued = maxQueued;
+    }
+
+    // Returns true once the client holds a slot, false if it must be turned away.
+    // Waiting uses a j.u.c. semaphore, so a virtual thread parks without pinning its carrier.
+    public boolean admit() throws InterruptedException {
+        if (slots.tryAcquire()) {
+            return true;  // A slot was free
+        }
+        if (mode == Mode.REJECT) {
+            return false;
+        }
+
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;  // The waiting line is full as well
+        }
+        try {
+            slots.acquire();
+            return true;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    // Gives back the slot of a client that was admitted
+    public void release() {
+        slots.release();
+    }
+
+    // Number of clients waiting for a slot
+    public int queued() {
+        return queued.get();
+    }
+}
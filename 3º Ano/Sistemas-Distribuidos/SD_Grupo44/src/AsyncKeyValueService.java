@@ -0,0 +1,352 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Non-blocking client for the key-value commands. Requests are written back to back on one connection
+// and a reader thread completes each future when the reply with its id arrives, in whatever order.
+public class AsyncKeyValueService implements KeyValueStore {
+    private final DataInputStream input;  // Input stream to read replies from the server
+    private final DataOutputStream output;  // Output stream to send requests to the server
+    private final BinaryCodec codec = BinaryCodec.INSTANCE;  // Wire format of the requests and replies
+    private final ReentrantLock writeLock = new ReentrantLock();  // Keeps the frames of concurrent callers apart
+    private final Map<Integer, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();  // Requests awaiting a reply
+    private final AtomicInteger nextId = new AtomicInteger();  // Id given to the next request
+    private volatile IOException failure;  // Set once the connection is lost; every later call fails with it
+    private boolean compressed;  // Whether values travel in their stored form, large ones compressed (see ValueCompression)
+
+    private AsyncKeyValueService(DataInputStream input, DataOutputStream output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    // Switches an authenticated connection to the binary protocol and starts reading replies.
+    // From then on the streams belong to the returned service.
+    public static AsyncKeyValueService open(DataInputStream input, DataOutputStream output) throws IOException {
+        return open(input, output, false);
+    }
+
+    // As open, but asks to send and receive values compressed when the server supports it; a server that
+    // does not is used uncompressed
+    public static AsyncKeyValueService open(DataInputStream input, DataOutputStream output, boolean compress) throws IOException {
+        AsyncKeyValueService service = new AsyncKeyValueService(input, output);
+        service.negotiate(compress);
+
+        Thread reader = new Thread(service::readReplies, "kv-reply-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return service;
+    }
+
+    // Stores a value; completes once the server has stored it
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value) {
+        return call(Request.put(nextId.incrementAndGet(), key, out(value)))
+                .thenApply(response -> expect(response, Response.Status.PUT_OK));
+    }
+
+    // Stores a value that the server removes once the time to live has passed
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value, Duration ttl) {
+        return call(Request.putTtl(nextId.incrementAndGet(), key, ttl.toMillis(), out(value)))
+                .thenApply(response -> expect(response, Response.Status.PUT_OK));
+    }
+
+    // Retrieves a value; completes with null if the key does not exist
+    @Override
+    public CompletableFuture<byte[]> get(String key) {
+        return call(Request.get(nextId.incrementAndGet(), key)).thenApply(response -> switch (response.status) {
+            case GET_OK -> in(response.value);
+            case GET_NOT_FOUND -> null;
+            default -> throw unexpected(response);
+        });
+    }
+
+    // Stores a value if the key holds the expected one (null for a key that does not exist)
+    @Override
+    public CompletableFuture<Boolean> cas(String key, byte[] expected, byte[] value) {
+        return call(Request.cas(nextId.incrementAndGet(), key, escape(expected), out(value))).thenApply(AsyncKeyValueService::swapped);
+    }
+
+    // Stores a value if the key does not exist
+    @Override
+    public CompletableFuture<Boolean> putIfAbsent(String key, byte[] value) {
+        return call(Request.putIfAbsent(nextId.incrementAndGet(), key, out(value))).thenApply(AsyncKeyValueService::swapped);
+    }
+
+    // Adds delta to a counter and completes with the new count
+    @Override
+    public CompletableFuture<Long> incrementBy(String key, long delta) {
+        return call(Request.increment(nextId.incrementAndGet(), key, delta)).thenApply(response -> switch (response.status) {
+            case INCREMENT_OK -> response.stamp;
+            case NOT_A_COUNTER -> throw new CompletionException(new IllegalStateException("Not a counter: " + key));
+            default -> throw unexpected(response);
+        });
+    }
+
+    private static boolean swapped(Response response) {
+        return switch (response.status) {
+            case CAS_OK -> true;
+            case CAS_FAILED -> false;
+            default -> throw unexpected(response);
+        };
+    }
+
+    // Stores several values atomically
+    @Override
+    public CompletableFuture<Void> multiPut(Map<String, byte[]> pairs) {
+        return call(Request.multiPut(nextId.incrementAndGet(), out(pairs)))
+                .thenApply(response -> expect(response, Response.Status.MULTIPUT_OK));
+    }
+
+    // Retrieves several values atomically; missing keys map to null
+    @Override
+    public CompletableFuture<Map<String, byte[]>> multiGet(List<String> keys) {
+        return call(Request.multiGet(nextId.incrementAndGet(), keys)).thenApply(response -> {
+            expect(response, Response.Status.MULTIGET_OK);
+            return new HashMap<>(in(response.values));
+        });
+    }
+
+    // Stores one chunk of a streamed value; the last one completes once the value is visible
+    @Override
+    public CompletableFuture<Void> putChunk(String key, long upload, int index, long length, byte[] bytes) {
+        return call(Request.putChunk(nextId.incrementAndGet(), key, upload, index, length, bytes)).thenApply(response -> switch (response.status) {
+            case PUT_OK -> null;
+            case STREAM_INCOMPLETE -> throw new CompletionException(new IllegalStateException("Chunks of " + key + " missing on the server"));
+            default -> throw unexpected(response);
+        });
+    }
+
+    // Retrieves one chunk of a streamed value; completes with null if there is no such chunk
+    @Override
+    public CompletableFuture<ValueChunk> getChunk(String key, long upload, int index) {
+        return call(Request.getChunk(nextId.incrementAndGet(), key, upload, index)).thenApply(response -> switch (response.status) {
+            case CHUNK_OK -> new ValueChunk(response.stream, index, response.value);
+            case GET_NOT_FOUND -> null;
+            case STREAM_REPLACED -> throw new CompletionException(new ConcurrentModificationException(key + " was replaced while being read"));
+            default -> throw unexpected(response);
+        });
+    }
+
+    // Retrieves several values with the versions a commit checks them against; missing keys map to null
+    @Override
+    public CompletableFuture<ReadSet> readSet(List<String> keys) {
+        return call(Request.txGet(nextId.incrementAndGet(), keys)).thenApply(response -> {
+            expect(response, Response.Status.TXGET_OK);
+            return new ReadSet(new HashMap<>(in(response.values)), new HashMap<>(response.versions));
+        });
+    }
+
+    // Stores the writes if none of the keys read has changed since; completes with whether it did
+    @Override
+    public CompletableFuture<Boolean> commit(Map<String, Long> readVersions, Map<String, byte[]> writes) {
+        return call(Request.txCommit(nextId.incrementAndGet(), readVersions, out(writes))).thenApply(response -> switch (response.status) {
+            case TX_OK -> true;
+            case TX_CONFLICT -> false;
+            default -> throw unexpected(response);
+        });
+    }
+
+    // Waits until keyCond holds valueCond and then retrieves key; completes with null if key does not exist,
+    // or exceptionally with a TimeoutException if the condition is not met within the server's timeout
+    // and with a NoSuchElementException if keyCond expires meanwhile
+    @Override
+    public CompletableFuture<byte[]> getWhen(String key, String keyCond, byte[] valueCond) {
+        return call(Request.getWhen(nextId.incrementAndGet(), key, keyCond, escape(valueCond))).thenApply(response -> switch (response.status) {
+            case GETWHEN_OK -> in(response.value);
+            case GETWHEN_NOT_FOUND -> null;
+            case GETWHEN_TIMEOUT -> throw new CompletionException(new TimeoutException("getwhen timed out on the server"));
+            case GETWHEN_EXPIRED -> throw new CompletionException(new NoSuchElementException("Condition key expired: " + keyCond));
+            default -> throw unexpected(response);
+        });
+    }
+
+    // Stores a value under a version stamp unless the server already has a later one; completes with the
+    // stamp the server now holds, which is the given one unless a later write won
+    public CompletableFuture<Long> vput(String key, long stamp, byte[] value) {
+        return call(Request.vput(nextId.incrementAndGet(), key, stamp, out(value))).thenApply(response -> {
+            expect(response, Response.Status.VPUT_OK);
+            return response.stamp;
+        });
+    }
+
+    // Retrieves a value with its version stamp; completes with null if the key does not exist
+    public CompletableFuture<Versioned> vget(String key) {
+        return call(Request.vget(nextId.incrementAndGet(), key)).thenApply(response -> switch (response.status) {
+            case VGET_OK -> new Versioned(response.stamp, in(response.value));
+            case GET_NOT_FOUND -> null;
+            default -> throw unexpected(response);
+        });
+    }
+
+    // Retrieves up to limit pairs with from <= key < to ("" for no bound) in key order; the server may send
+    // fewer, and the chunk says where the next one starts
+    @Override
+    public CompletableFuture<ScanChunk> scan(String from, String to, int limit) {
+        return call(Request.scan(nextId.incrementAndGet(), from, to, limit)).thenApply(response -> {
+            expect(response, Response.Status.SCAN_OK);
+            return new ScanChunk(in(response.values), response.next);
+        });
+    }
+
+    // The server's latency histograms and counters since it started
+    @Override
+    public CompletableFuture<String> stats() {
+        return call(Request.stats(nextId.incrementAndGet())).thenApply(response -> {
+            expect(response, Response.Status.STATS_OK);
+            return new String(response.value, StandardCharsets.UTF_8);
+        });
+    }
+
+    // Whether values are sent compressed on this connection
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    // Whether the connection still works; once it is lost every call fails
+    public boolean isOpen() {
+        return failure == null;
+    }
+
+    // Tells the server we are leaving and fails whatever is still waiting for a reply
+    @Override
+    public void close() throws IOException {
+        try {
+            write(Request.exit(nextId.incrementAndGet()));
+        } finally {
+            fail(new IOException("Connection closed"));
+        }
+    }
+
+    // Registers a request, writes it, and returns the future its reply will complete
+    private CompletableFuture<Response> call(Request request) {
+        CompletableFuture<Response> reply = new CompletableFuture<>();
+        if (failure != null) {
+            reply.completeExceptionally(failure);
+            return reply;
+        }
+
+        pending.put(request.id, reply);
+        try {
+            write(request);
+        } catch (IOException e) {
+            pending.remove(request.id);
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    // Writes one frame. If other callers are already queued on the lock the flush is left to the last of them,
+    // so requests issued back to back leave in as few writes as possible.
+    private void write(Request request) throws IOException {
+        writeLock.lock();
+        try {
+            codec.writeRequest(output, request);
+            if (!writeLock.hasQueuedThreads()) {
+                output.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Body of the reader thread: completes the future of every reply as it arrives
+    private void readReplies() {
+        try {
+            while (true) {
+                Response response = codec.readResponse(input);
+                CompletableFuture<Response> reply = pending.remove(response.id);
+                if (reply != null) {
+                    reply.complete(response);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);  // Connection lost or closed
+        }
+    }
+
+    private void fail(IOException cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        for (Integer id : new ArrayList<>(pending.keySet())) {
+            CompletableFuture<Response> reply = pending.remove(id);
+            if (reply != null) {
+                reply.completeExceptionally(cause);
+            }
+        }
+    }
+
+    // Asks the server, still in the text protocol, to switch to the binary one, with compressed values if asked to
+    // and the server has them
+    private void negotiate(boolean compress) throws IOException {
+        if (compress && switchTo(BinaryCodec.COMPRESSED_VERSION)) {
+            compressed = true;
+        } else if (!switchTo(BinaryCodec.VERSION)) {
+            throw new IOException("Server does not support the binary protocol");
+        }
+    }
+
+    // Sends a "binary" request for a version; returns whether the server switched to it
+    private boolean switchTo(int version) throws IOException {
+        int id = nextId.incrementAndGet();
+        output.writeUTF(Request.Type.BINARY.command());
+        output.writeInt(id);
+        output.writeInt(version);
+        output.flush();
+
+        int replyId = input.readInt();
+        String response = input.readUTF();
+        if (replyId != id || !Response.Status.BINARY_OK.text().equals(response) && !Response.Status.PROTOCOL_UNSUPPORTED.text().equals(response)) {
+            throw new IOException("Server does not support the binary protocol: " + response);
+        }
+        return Response.Status.BINARY_OK.text().equals(response);
+    }
+
+    // A value as it is sent: compressed if it is worth it, when the connection compresses
+    private byte[] out(byte[] value) {
+        return compressed ? ValueCompression.encode(value, true) : value;
+    }
+
+    private Map<String, byte[]> out(Map<String, byte[]> pairs) {
+        if (!compressed) {
+            return pairs;
+        }
+        Map<String, byte[]> encoded = new HashMap<>();
+        pairs.forEach((key, value) -> encoded.put(key, out(value)));
+        return encoded;
+    }
+
+    // A value the server compares rather than stores, which is never compressed
+    private byte[] escape(byte[] value) {
+        return compressed ? ValueCompression.escape(value) : value;
+    }
+
+    // A value as it is received, decoded when the connection compresses
+    private byte[] in(byte[] value) {
+        return compressed ? ValueCompression.decode(value) : value;
+    }
+
+    // Decodes the values of a reply in place
+    private Map<String, byte[]> in(Map<String, byte[]> values) {
+        if (compressed) {
+            values.replaceAll((key, value) -> ValueCompression.decode(value));
+        }
+        return values;
+    }
+
+    private static Void expect(Response response, Response.Status status) {
+        if (response.status != status) {
+            throw unexpected(response);
+        }
+        return null;
+    }
+
+    private static CompletionException unexpected(Response response) {
+        return new CompletionException(new IOException("Unknown server response: " + response.status.text()));
+    }
+}
@@ -4,6 +4,7 @@ import java.util.Scanner;
 public class AuthenticationService {
     private final DataInputStream input;  // Input stream to read data from the client
     private final DataOutputStream output; // Output stream to send data to the client
+    private String sessionToken;  // Token the server gave the last one-go login, to log in again without the password
 
     // Constructor to initialize the input and output streams for communication
     public AuthenticationService(DataInputStream input, DataOutputStream output) {
@@ -15,9 +16,12 @@ public class AuthenticationService {
     public boolean authenticateOrRegister(Scanner scanner) throws IOException {
         String prompt = input.readUTF();  // Receive a prompt from the server, e.g., "Choose 1 for Login, 2 for Register"
         System.out.println(prompt);
+        if (prompt.startsWith("Server busy")) {  // The server turned us away instead of prompting
+            return false;
+        }
         
         String choice = scanner.nextLine();  // Read the user's choice (login or register)
-        output.writeUTF(choice);  // Send the choice to the server
+        send(choice);  // Send the choice to the server
         
         if ("1".equals(choice)) {  // If the user chooses login
             return handleLogin(scanner);
@@ -29,16 +33,72 @@ public class AuthenticationService {
         }
     }
 
+    // Logs in without asking anything on the console; returns false if the server refuses the login.
+    // Everything goes in one write, so the login takes a single round trip.
+    public boolean login(String username, String password) throws IOException {
+        return startSession("3", username, password);
+    }
+
+    // Logs in with the session token of an earlier login, which the server checks without its user database
+    public boolean resume(String token) throws IOException {
+        return startSession("4", token);
+    }
+
+    // Token of the last successful login or resume, or null if there was none
+    public String sessionToken() {
+        return sessionToken;
+    }
+
+    // Registers a new user without asking anything on the console; returns false if the server refuses it
+    public boolean register(String username, String password) throws IOException {
+        return answerDialogue("2", username, password);
+    }
+
+    // Answers the server's prompts (choice, username, password) and reports whether the server accepted them
+    private boolean answerDialogue(String choice, String username, String password) throws IOException {
+        if (input.readUTF().startsWith("Server busy")) {  // The server turned us away instead of prompting
+            return false;
+        }
+        send(choice);
+        input.readUTF();  // "Enter username:" or "Enter new username:"
+        send(username);
+        input.readUTF();  // "Enter password:" or "Enter new password:"
+        send(password);
+        return input.readUTF().contains("successful");
+    }
+
+    // Sends a one-go login without waiting for the server's prompt, then reads the prompt, the outcome and the token
+    private boolean startSession(String... frame) throws IOException {
+        for (String part : frame) {
+            output.writeUTF(part);
+        }
+        output.flush();
+        if (input.readUTF().startsWith("Server busy")) {  // The server turned us away instead of prompting
+            return false;
+        }
+        if (!input.readUTF().contains("successful")) {
+            return false;
+        }
+        sessionToken = input.readUTF();
+        return true;
+    }
+
+    // Sends one answer of the authentication dialogue right away (the output stream is buffered)
+    private void send(String answer) throws IOException {
+        output.writeUTF(answer);
+        output.flush();
+    }
+
     // Method to handle login process
     private boolean handleLogin(Scanner scanner) throws IOException {
         // Prompt for username and password
         System.out.println(input.readUTF());  // "Enter username:"
         String username = scanner.nextLine();
-        output.writeUTF(username);  // Send the username to the server
+        send(username);  // Send the username to the server
 
         System.out.println(input.readUTF());  // "Enter password:"
         String password = scanner.nextLine();
-        output.writeUTF(password);  // Send the password to the server
+        send(password);  // Send the password to the server
 
         // Get the server's response
         String response = input.readUTF();
@@ -52,7 +112,7 @@ public class AuthenticationService {
         } else if (response.contains("Incorrect password")) {  // If the password is incorrect
             System.out.println("Incorrect password. Would you like to try again?");
             String choice = scanner.nextLine();
-            output.writeUTF(choice);  // Send the user's decision back to the server
+            send(choice);  // Send the user's decision back to the server
 
             // If the user chooses to try again, prompt for password
             if ("1".equals(choice)) {
@@ -66,7 +126,7 @@ public class AuthenticationService {
     private boolean handleNonExistentUser(Scanner scanner) throws IOException {
         System.out.println("Choose: 1-Try Again, 2-Register");
         String choice = scanner.nextLine();  // Ask the user to either try again or register
-        output.writeUTF(choice);  // Send the user's choice to the server
+        send(choice);  // Send the user's choice to the server
         return "2".equals(choice) && handleRegistration(scanner);  // If the user chooses to register, proceed with registration
     }
 
@@ -75,11 +135,11 @@ public class AuthenticationService {
         // Prompt for new username and password
         System.out.println(input.readUTF());  // "Enter new username:"
         String username = scanner.nextLine();
-        output.writeUTF(username);  // Send the new username to the server
+        send(username);  // Send the new username to the server
 
         System.out.println(input.readUTF());  // "Enter new password:"
         String password = scanner.nextLine();
-        output.writeUTF(password);  // Send the new password to the server
+        send(password);  // Send the new password to the server
 
         // Get the server's response
         String response = input.readUTF();
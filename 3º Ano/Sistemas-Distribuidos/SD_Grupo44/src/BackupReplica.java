@@ -0,0 +1,160 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Backup side of primary-backup replication: follows a primary's ReplicationServer and applies its stream.
+//
+// Writes from clients are refused until the backup is promoted, since the backup's store must only change
+// through the stream. Reads are served while the backup is known to be at most maxStaleness behind: every
+// frame carries the primary's latest sequence, and once everything up to it has been applied the backup held
+// all the primary's writes as of when that frame arrived. If the primary stays silent for longer than the
+// failover timeout the backup promotes itself and takes writes; its own replication log carries on with the
+// primary's numbering, so the other backups can resume from it.
+// Several primaries may be given; the backup tries them in turn, which lets it move to a promoted peer.
+public class BackupReplica {
+    private static final long RETRY_MILLIS = 500;  // Pause between connection attempts
+    private static final int READ_TIMEOUT_MILLIS = 1000;  // Silence (heartbeats come every 100 ms) that counts as a lost primary
+
+    private final StorageService storage;
+    private final ReplicationLog log;  // Same numbering as the primary's, for when this backup is promoted
+    private final List<InetSocketAddress> primaries;  // Replication ports to follow, tried in turn
+    private final long maxStalenessNanos;
+    private final long failoverTimeoutNanos;  // 0 to never promote on its own
+    private volatile boolean promoted = false;
+    private volatile long freshAsOf = 0;  // System.nanoTime() as of which this backup had all the primary's writes
+    private volatile long lastContact = 0;  // System.nanoTime() of the last frame from a primary, 0 before the first
+    private final ArrayDeque<long[]> pendingFresh = new ArrayDeque<>();  // (primary's latest sequence, arrival time) not yet caught up with; follower thread only
+
+    public BackupReplica(StorageService storage, ReplicationLog log, List<InetSocketAddress> primaries,
+                         long maxStalenessMillis, long failoverTimeoutMillis) {
+        this.storage = storage;
+        this.log = log;
+        this.primaries = primaries;
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+        this.failoverTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(failoverTimeoutMillis);
+    }
+
+    // Starts following the primary on a background thread
+    public void start() {
+        Thread follower = new Thread(this::follow, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    // Whether clients may write here, i.e. this backup has been promoted
+    public boolean acceptsWrites() {
+        return promoted;
+    }
+
+    // Whether reads here are within the staleness bound
+    public boolean isFresh() {
+        return promoted || (freshAsOf != 0 && System.nanoTime() - freshAsOf <= maxStalenessNanos);
+    }
+
+    // Body of the follower thread: connects to the primaries in turn until this backup is promoted
+    private void follow() {
+        for (int attempt = 0; !promoted; attempt++) {
+            InetSocketAddress primary = primaries.get(attempt % primaries.size());
+            try {
+                stream(primary);
+            } catch (EOFException e) {
+                // Closed by the other side; an unpromoted backup does that, so try the next address quietly
+            } catch (IOException e) {
+                System.err.println("Lost primary " + primary + ": " + e.getMessage());
+            }
+
+            if (failoverTimeoutNanos > 0 && lastContact != 0 && System.nanoTime() - lastContact > failoverTimeoutNanos) {
+                promoted = true;
+                System.out.println("No primary for " + TimeUnit.NANOSECONDS.toMillis(failoverTimeoutNanos)
+                        + " ms, promoted to primary at sequence " + log.lastSequence());
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Applies one primary's stream until the connection fails
+    private void stream(InetSocketAddress primary) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(primary, READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            output.writeLong(log.historyId());
+            output.writeLong(log.lastSequence());
+            output.flush();
+
+            long copyHistory = 0;
+            long copySequence = 0;
+            Set<String> copied = new HashSet<>();  // Keys of the full copy being received; whatever else is stale
+            boolean copying = false;  // Acknowledgements would still report the old numbering
+            boolean following = false;
+            while (true) {
+                byte type = input.readByte();
+                lastContact = System.nanoTime();
+                if (!following) {
+                    following = true;
+                    System.out.println("Following primary " + primary + " from sequence " + log.lastSequence());
+                }
+                switch (type) {
+                    case ReplicationServer.COPY_BEGIN -> {
+                        copyHistory = input.readLong();
+                        copySequence = input.readLong();
+                        copying = true;
+                        copied.clear();
+                        freshAsOf = 0;  // Partly copied; not fit to read until it has caught up
+                        pendingFresh.clear();
+                    }
+                    case ReplicationServer.COPY_PAIRS -> {
+                        Map<String, byte[]> pairs = ReplicationLog.readPairs(input);
+                        copied.addAll(pairs.keySet());
+                        storage.loadReplica(pairs);
+                    }
+                    case ReplicationServer.COPY_END -> {
+                        int stale = storage.retainReplica(copied);  // Only now, so a copy cut short removes nothing
+                        copied.clear();
+                        log.reset(copyHistory, copySequence);
+                        copying = false;
+                        System.out.println("Full copy received, " + stale + " stale keys removed, stream continues after " + copySequence);
+                    }
+                    case ReplicationServer.RECORDS -> {
+                        long latest = input.readLong();
+                        int count = input.readInt();
+                        for (int i = 0; i < count; i++) {
+                            long sequence = input.readLong();
+                            byte[] body = new byte[input.readInt()];
+                            input.readFully(body);
+                            if (sequence != log.lastSequence() + 1) {
+                                throw new IOException("Expected record " + (log.lastSequence() + 1) + " but got " + sequence);
+                            }
+                            storage.multiPut(ReplicationLog.decode(body));  // Logs it again under the same sequence
+                        }
+                        applied(latest, lastContact);
+                    }
+                    case ReplicationServer.HEARTBEAT -> applied(input.readLong(), lastContact);
+                    default -> throw new IOException("Unknown replication frame " + type);
+                }
+                if (!copying && input.available() == 0) {
+                    output.writeLong(log.lastSequence());  // Acknowledge once the frames that arrived together are applied
+                    output.flush();
+                }
+            }
+        }
+    }
+
+    // Notes that the primary was at the given sequence when a frame arrived, and moves freshAsOf forward
+    // to the latest such arrival this backup has now caught up with
+    private void applied(long primaryLatest, long arrival) {
+        long appliedUpTo = log.lastSequence();
+        pendingFresh.addLast(new long[] { primaryLatest, arrival });
+        while (!pendingFresh.isEmpty() && pendingFresh.peekFirst()[0] <= appliedUpTo) {
+            freshAsOf = pendingFresh.pollFirst()[1];
+        }
+    }
+}
@@ -0,0 +1,436 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Compact binary protocol, chosen by the client with a "binary" request after logging in.
+//
+// Every frame is   varint length | one byte opcode or status | varint request id | payload
+// where length counts everything after itself. Strings are a varint length and UTF-8 bytes,
+// values are a varint length and the raw bytes, and a missing value in a multiget reply is
+// written as length 0 with every present value shifted to length + 1. Version stamps are 8 bytes.
+// A scan chunk is   varint count | (string key | value)* | continuation key, written like a multiget value.
+// A txget reply is   varint count | (string key | 8 byte version | value written like a multiget one)*
+// and a txcommit   varint count | (string key | 8 byte version)* | varint count | (string key | value)*.
+// A chunk reply is   8 byte upload | varint chunk count | 8 byte value length | chunk bytes as a value.
+public final class BinaryCodec implements ProtocolCodec {
+    public static final int VERSION = 1;  // Version the client asks for when switching
+    public static final int COMPRESSED_VERSION = 2;  // The same frames, with every value in its stored form (see ValueCompression)
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    private BinaryCodec() {
+    }
+
+    // ---- Server side ----
+
+    @Override
+    public Request readRequest(DataInputStream input, int maxBytes) throws IOException {
+        int length = readVarint(input);
+        if (length < 0 || length > maxBytes) {
+            throw new ProtocolException("Frame of " + length + " bytes is over the connection's in-flight limit");
+        }
+        byte[] frame = new byte[length];
+        input.readFully(frame);  // The whole frame is read before anything is decoded
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+
+        Request.Type type = Request.Type.fromOpcode(buffer.get());
+        int id = getVarint(buffer);
+        return switch (type) {
+            case PUT -> Request.put(id, getString(buffer), getBytes(buffer));
+            case GET -> Request.get(id, getString(buffer));
+            case MULTIPUT -> {
+                int count = getCount(buffer);
+                Map<String, byte[]> pairs = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = getString(buffer);
+                    pairs.put(key, getBytes(buffer));
+                }
+                yield Request.multiPut(id, pairs);
+            }
+            case MULTIGET -> Request.multiGet(id, getKeys(buffer));
+            case GETWHEN -> Request.getWhen(id, getString(buffer), getString(buffer), getBytes(buffer));
+            case VPUT -> Request.vput(id, getString(buffer), buffer.getLong(), getBytes(buffer));
+            case VGET -> Request.vget(id, getString(buffer));
+            case SCAN -> Request.scan(id, getString(buffer), getString(buffer), getVarint(buffer));
+            case PUTTTL -> Request.putTtl(id, getString(buffer), buffer.getLong(), getBytes(buffer));
+            case CAS -> Request.cas(id, getString(buffer), getNullableBytes(buffer), getBytes(buffer));
+            case INCREMENT -> Request.increment(id, getString(buffer), buffer.getLong());
+            case PUTIFABSENT -> Request.putIfAbsent(id, getString(buffer), getBytes(buffer));
+            case TXGET -> Request.txGet(id, getKeys(buffer));
+            case PUTCHUNK -> Request.putChunk(id, getString(buffer), buffer.getLong(), getVarint(buffer), buffer.getLong(), getBytes(buffer));
+            case GETCHUNK -> Request.getChunk(id, getString(buffer), buffer.getLong(), getVarint(buffer));
+            case TXCOMMIT -> {
+                int count = getCount(buffer);
+                Map<String, Long> versions = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = getString(buffer);
+                    versions.put(key, buffer.getLong());
+                }
+                count = getCount(buffer);
+                Map<String, byte[]> pairs = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = getString(buffer);
+                    pairs.put(key, getBytes(buffer));
+                }
+                yield Request.txCommit(id, versions, pairs);
+            }
+            case STATS -> Request.stats(id);
+            case EXIT -> Request.exit(id);
+            default -> Request.unknown(id);
+        };
+    }
+
+    @Override
+    public void writeResponse(DataOutputStream output, Response response) throws IOException {
+        if (response.ref != null) {
+            output.write(encodeHeader(response));
+            response.ref.writeTo(output);  // Streamed from the storage rather than copied into the frame
+        } else {
+            output.write(encode(response));
+        }
+    }
+
+    // Everything of a get or chunk reply but the value bytes, which the caller sends right after it straight from
+    // the storage; the frame length already counts them
+    public byte[] encodeHeader(Response response) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(response.status.code());
+        writeVarint(body, response.id);
+        if (response.status == Response.Status.CHUNK_OK) {
+            writeStream(body, response.stream);
+        }
+        writeVarint(body, response.valueLength());
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(body.size() + 5);
+        writeVarint(header, body.size() + response.valueLength());
+        header.writeBytes(body.toByteArray());
+        return header.toByteArray();
+    }
+
+    @Override
+    public byte[] encode(Response response) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(response.status.code());
+        writeVarint(body, response.id);
+        switch (response.status) {
+            case GET_OK, GETWHEN_OK, CHUNK_OK, STATS_OK -> {
+                if (response.status == Response.Status.CHUNK_OK) {
+                    writeStream(body, response.stream);
+                }
+                if (response.ref != null) {
+                    writeVarint(body, response.ref.length());
+                    response.ref.writeTo(body);
+                } else {
+                    writeBytes(body, response.value);
+                }
+            }
+            case MULTIGET_OK -> {
+                writeVarint(body, response.keys.size());
+                for (String key : response.keys) {
+                    writeString(body, key);
+                    writeNullableBytes(body, response.values.get(key));
+                }
+            }
+            case TXGET_OK -> {
+                writeVarint(body, response.keys.size());
+                for (String key : response.keys) {
+                    writeString(body, key);
+                    writeLong(body, response.versions.get(key));
+                    writeNullableBytes(body, response.values.get(key));
+                }
+            }
+            case VPUT_OK, INCREMENT_OK -> writeLong(body, response.stamp);
+            case VGET_OK -> {
+                writeLong(body, response.stamp);
+                writeBytes(body, response.value);
+            }
+            case SCAN_OK -> {
+                writeVarint(body, response.values.size());
+                for (Map.Entry<String, byte[]> pair : response.values.entrySet()) {
+                    writeString(body, pair.getKey());
+                    writeBytes(body, pair.getValue());
+                }
+                writeNullableBytes(body, response.next != null ? response.next.getBytes(StandardCharsets.UTF_8) : null);
+            }
+            default -> {
+                // Status only
+            }
+        }
+        return frame(body);
+    }
+
+    @Override
+    public boolean hasCompleteFrame(ByteBuffer buffer) {
+        int position = buffer.position();
+        int length = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position >= buffer.limit()) {
+                return false;  // Not even the length has arrived
+            }
+            byte b = buffer.get(position++);
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return buffer.limit() - position >= length;
+            }
+        }
+        return true;  // Malformed length, let readRequest report it
+    }
+
+    // ---- Client side ----
+
+    public void writeRequest(DataOutputStream output, Request request) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(request.type.opcode());
+        writeVarint(body, request.id);
+        switch (request.type) {
+            case PUT -> {
+                writeString(body, request.key);
+                writeBytes(body, request.value);
+            }
+            case GET -> writeString(body, request.key);
+            case MULTIPUT -> {
+                writeVarint(body, request.pairs.size());
+                for (Map.Entry<String, byte[]> pair : request.pairs.entrySet()) {
+                    writeString(body, pair.getKey());
+                    writeBytes(body, pair.getValue());
+                }
+            }
+            case MULTIGET, TXGET -> {
+                writeVarint(body, request.keys.size());
+                for (String key : request.keys) {
+                    writeString(body, key);
+                }
+            }
+            case GETWHEN -> {
+                writeString(body, request.key);
+                writeString(body, request.keyCond);
+                writeBytes(body, request.valueCond);
+            }
+            case VPUT -> {
+                writeString(body, request.key);
+                writeLong(body, request.stamp);
+                writeBytes(body, request.value);
+            }
+            case VGET -> writeString(body, request.key);
+            case SCAN -> {
+                writeString(body, request.from);
+                writeString(body, request.to);
+                writeVarint(body, request.limit);
+            }
+            case PUTTTL -> {
+                writeString(body, request.key);
+                writeLong(body, request.ttlMillis);
+                writeBytes(body, request.value);
+            }
+            case CAS -> {
+                writeString(body, request.key);
+                writeNullableBytes(body, request.expected);
+                writeBytes(body, request.value);
+            }
+            case INCREMENT -> {
+                writeString(body, request.key);
+                writeLong(body, request.delta);
+            }
+            case PUTIFABSENT -> {
+                writeString(body, request.key);
+                writeBytes(body, request.value);
+            }
+            case PUTCHUNK -> {
+                writeString(body, request.key);
+                writeLong(body, request.upload);
+                writeVarint(body, request.index);
+                writeLong(body, request.length);
+                writeBytes(body, request.value);
+            }
+            case GETCHUNK -> {
+                writeString(body, request.key);
+                writeLong(body, request.upload);
+                writeVarint(body, request.index);
+            }
+            case TXCOMMIT -> {
+                writeVarint(body, request.versions.size());
+                for (Map.Entry<String, Long> read : request.versions.entrySet()) {
+                    writeString(body, read.getKey());
+                    writeLong(body, read.getValue());
+                }
+                writeVarint(body, request.pairs.size());
+                for (Map.Entry<String, byte[]> pair : request.pairs.entrySet()) {
+                    writeString(body, pair.getKey());
+                    writeBytes(body, pair.getValue());
+                }
+            }
+            default -> {
+                // No payload
+            }
+        }
+        output.write(frame(body));
+    }
+
+    public Response readResponse(DataInputStream input) throws IOException {
+        byte[] frame = new byte[readVarint(input)];
+        input.readFully(frame);
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+
+        Response.Status status = Response.Status.fromCode(buffer.get());
+        int id = getVarint(buffer);
+        return switch (status) {
+            case GET_OK, GETWHEN_OK, STATS_OK -> Response.withValue(id, status, getBytes(buffer));
+            case CHUNK_OK -> Response.chunk(id, new StreamedValue(buffer.getLong(), getVarint(buffer), buffer.getLong()), getBytes(buffer));
+            case MULTIGET_OK -> {
+                int count = getCount(buffer);
+                List<String> keys = new ArrayList<>();
+                Map<String, byte[]> values = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = getString(buffer);
+                    keys.add(key);
+                    values.put(key, getNullableBytes(buffer));
+                }
+                yield Response.multiGet(id, keys, values);
+            }
+            case TXGET_OK -> {
+                int count = getCount(buffer);
+                List<String> keys = new ArrayList<>();
+                Map<String, byte[]> values = new HashMap<>();
+                Map<String, Long> versions = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = getString(buffer);
+                    keys.add(key);
+                    versions.put(key, buffer.getLong());
+                    values.put(key, getNullableBytes(buffer));
+                }
+                yield Response.txGet(id, keys, values, versions);
+            }
+            case VPUT_OK, INCREMENT_OK -> Response.withStamp(id, status, buffer.getLong(), null);
+            case VGET_OK -> Response.withStamp(id, status, buffer.getLong(), getBytes(buffer));
+            case SCAN_OK -> {
+                int count = getCount(buffer);
+                Map<String, byte[]> pairs = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = getString(buffer);
+                    pairs.put(key, getBytes(buffer));
+                }
+                byte[] next = getNullableBytes(buffer);
+                yield Response.scan(id, pairs, next != null ? new String(next, StandardCharsets.UTF_8) : null);
+            }
+            default -> Response.of(id, status);
+        };
+    }
+
+    // ---- Encoding helpers ----
+
+    // Prefixes a frame body with its length
+    private static byte[] frame(ByteArrayOutputStream body) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 5);
+        writeVarint(frame, body.size());
+        body.writeTo(frame);
+        return frame.toByteArray();
+    }
+
+    // Unsigned LEB128: seven bits per byte, high bit set on every byte but the last
+    static void writeVarint(OutputStream output, int value) {
+        try {
+            while ((value & ~0x7F) != 0) {
+                output.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            output.write(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // Only used with in-memory streams
+        }
+    }
+
+    static int readVarint(DataInput input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = input.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(ByteArrayOutputStream output, String value) {
+        writeBytes(output, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(ByteArrayOutputStream output, byte[] value) {
+        writeVarint(output, value.length);
+        output.write(value, 0, value.length);
+    }
+
+    private static void writeStream(ByteArrayOutputStream output, StreamedValue stream) {
+        writeLong(output, stream.upload());
+        writeVarint(output, stream.chunks());
+        writeLong(output, stream.length());
+    }
+
+    private static void writeLong(ByteArrayOutputStream output, long value) {
+        output.writeBytes(ByteBuffer.allocate(Long.BYTES).putLong(value).array());
+    }
+
+    private static void writeNullableBytes(ByteArrayOutputStream output, byte[] value) {
+        if (value == null) {
+            writeVarint(output, 0);
+        } else {
+            writeVarint(output, value.length + 1);
+            output.write(value, 0, value.length);
+        }
+    }
+
+    private static List<String> getKeys(ByteBuffer buffer) throws IOException {
+        int count = getCount(buffer);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(getString(buffer));
+        }
+        return keys;
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        return new String(getBytes(buffer), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) throws IOException {
+        byte[] value = new byte[getCount(buffer)];
+        buffer.get(value);
+        return value;
+    }
+
+    private static byte[] getNullableBytes(ByteBuffer buffer) throws IOException {
+        int length = getVarint(buffer);
+        if (length == 0) {
+            return null;
+        }
+        byte[] value = new byte[checked(length - 1, buffer)];
+        buffer.get(value);
+        return value;
+    }
+
+    // A count or length sent by the peer, checked against what is left of the frame before anything is sized by it:
+    // every item takes at least a byte, so a larger one can only be garbage or an attempt to make us allocate
+    private static int getCount(ByteBuffer buffer) throws IOException {
+        return checked(getVarint(buffer), buffer);
+    }
+
+    private static int checked(int count, ByteBuffer buffer) throws IOException {
+        if (count < 0 || count > buffer.remaining()) {
+            throw new ProtocolException("Count of " + count + " with " + buffer.remaining() + " bytes left in the frame");
+        }
+        return count;
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded in-memory cache of the hot values in front of a disk-backed engine (the LSM tree).
+//
+// Every write goes through to the backend, so the cache only ever holds copies and anything it evicts is
+// still read from disk. What stays is chosen by W-TinyLFU: new entries land in a small LRU window (1% of
+// the bytes), and an entry pushed out of the window only enters the main area if the FrequencySketch says it
+// is asked for more often than the entry it would push out there. The main area is a segmented LRU: entries
+// start in probation and move to protected (80%) when hit again. One-off scans therefore pass through the
+// window without flushing the working set.
+public class CachingStorageEngine implements StorageEngine {
+    private static final int ENTRY_OVERHEAD = 96;  // Rough heap bytes per entry besides key and value
+    private static final int AVERAGE_ENTRY = 256;  // Entry size assumed when sizing the sketch
+
+    // Cache statistics at one point in time
+    public record Stats(long hits, long misses, long evictions, long entries, long bytes) {
+        public double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+    }
+
+    private final StorageEngine backend;  // Holds every pair; the cache holds copies of some
+    private final Map<String, Node> data = new ConcurrentHashMap<>();  // Cached entries, read without the lock
+    private final Map<String, Object> loading = new ConcurrentHashMap<>();  // Keys being read from the backend, with the reader's token
+    private final ReentrantLock policyLock = new ReentrantLock();  // Guards the queues and the sketch
+    private final FrequencySketch sketch;
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private final long windowMax;  // Bytes the window may hold
+    private final long mainMax;  // Bytes probation and protected may hold together
+    private final long protectedMax;  // Bytes protected may hold
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachingStorageEngine(StorageEngine backend, long maxBytes) {
+        this.backend = backend;
+        this.windowMax = maxBytes / 100;
+        this.mainMax = maxBytes - windowMax;
+        this.protectedMax = mainMax * 80 / 100;
+        this.sketch = new FrequencySketch((int) Math.min(maxBytes / AVERAGE_ENTRY, 1 << 24));
+    }
+
+    @Override
+    public byte[] get(String key) {
+        Node node = data.get(key);
+        if (node != null) {
+            return hit(node);
+        }
+
+        misses.increment();
+        Object token = new Object();
+        loading.put(key, token);  // A put from here on withdraws the token, so a stale value is never cached
+        byte[] value;
+        try {
+            value = backend.get(key);
+        } catch (RuntimeException e) {
+            loading.remove(key, token);
+            throw e;
+        }
+        loaded(key, token, value);
+        return value;
+    }
+
+    // As get, except that a value the backend sends from its file is handed out in place and not cached: it is
+    // large, and would push many small hot values out
+    @Override
+    public ValueRef acquire(String key) {
+        Node node = data.get(key);
+        if (node != null) {
+            return ValueRef.of(hit(node));
+        }
+
+        misses.increment();
+        Object token = new Object();
+        loading.put(key, token);
+        ValueRef value;
+        try {
+            value = backend.acquire(key);
+        } catch (RuntimeException e) {
+            loading.remove(key, token);
+            throw e;
+        }
+        if (value == null || value.inFile()) {
+            loaded(key, token, null);
+            return value;
+        }
+        byte[] bytes = value.toByteArray();
+        value.release();
+        loaded(key, token, bytes);
+        return ValueRef.of(bytes);
+    }
+
+    // Counts a hit and returns the cached value.
+    // Recording a hit is best effort: if another thread holds the policy lock the hit is not
+    // counted in the LRU order and the sketch, rather than making every reader wait on one lock.
+    private byte[] hit(Node node) {
+        hits.increment();
+        if (policyLock.tryLock()) {
+            try {
+                sketch.increment(node.key);
+                if (node.queue != null) {
+                    onHit(node);
+                }
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    // Caches a value read from the backend after a miss, unless a put withdrew the token meanwhile
+    private void loaded(String key, Object token, byte[] value) {
+        policyLock.lock();
+        try {
+            sketch.increment(key);
+            if (loading.remove(key, token) && value != null && !data.containsKey(key)) {
+                insert(key, value);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        backend.put(key, value);
+        policyLock.lock();
+        try {
+            cache(key, value);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> pairs) {
+        backend.putAll(pairs);
+        policyLock.lock();
+        try {
+            pairs.forEach(this::cache);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> entries() throws IOException {
+        return backend.entries();  // The cache only holds copies
+    }
+
+    @Override
+    public long recover() throws IOException {
+        return backend.recover();
+    }
+
+    @Override
+    public void checkpoint(long segment) throws IOException {
+        backend.checkpoint(segment);
+    }
+
+    @Override
+    public void close() throws IOException {
+        backend.close();
+    }
+
+    public Stats stats() {
+        policyLock.lock();
+        try {
+            return new Stats(hits.sum(), misses.sum(), evictions.sum(), data.size(),
+                    window.bytes + probation.bytes + protectedQueue.bytes);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    // Puts a value just written into the cache, replacing the cached copy if there is one, or drops the cached
+    // copy of a key just removed (lock held)
+    private void cache(String key, byte[] value) {
+        loading.remove(key);
+        if (value == null) {
+            Node removed = data.remove(key);  // Removed from the backend too
+            if (removed != null) {
+                removed.queue.remove(removed);
+            }
+            return;
+        }
+        sketch.increment(key);
+        Node node = data.get(key);
+        if (node == null) {
+            insert(key, value);
+            return;
+        }
+        AccessQueue queue = node.queue;
+        queue.bytes += weigh(key, value) - node.weight;
+        node.weight = weigh(key, value);
+        node.value = value;
+        onHit(node);
+        evict();
+    }
+
+    // Adds a new entry to the window and makes room for it (lock held)
+    private void insert(String key, byte[] value) {
+        Node node = new Node(key, value, weigh(key, value));
+        data.put(key, node);
+        window.addLast(node);
+        evict();
+    }
+
+    // Moves an entry up in the LRU order of its queue, promoting it from probation to protected (lock held)
+    private void onHit(Node node) {
+        if (node.queue == probation) {
+            probation.remove(node);
+            protectedQueue.addLast(node);
+            while (protectedQueue.bytes > protectedMax) {
+                probation.addLast(protectedQueue.removeFirst());  // Demoted, but still in the main area
+            }
+        } else {
+            node.queue.moveToLast(node);
+        }
+    }
+
+    // Moves what overflows the window to the main area when it wins admission, and trims the main area (lock held)
+    private void evict() {
+        while (window.bytes > windowMax) {
+            admit(window.removeFirst());
+        }
+        while (probation.bytes + protectedQueue.bytes > mainMax) {
+            drop(probation.head != null ? probation.removeFirst() : protectedQueue.removeFirst());
+        }
+    }
+
+    // Lets an entry leaving the window into the main area if it is asked for more often than
+    // the entries it would push out; otherwise it is the one evicted (lock held)
+    private void admit(Node candidate) {
+        int frequency = sketch.frequency(candidate.key);
+        while (probation.bytes + protectedQueue.bytes + candidate.weight > mainMax) {
+            AccessQueue victims = probation.head != null ? probation : protectedQueue;
+            if (victims.head == null || sketch.frequency(victims.head.key) >= frequency) {
+                drop(candidate);
+                return;
+            }
+            drop(victims.removeFirst());
+        }
+        probation.addLast(candidate);
+    }
+
+    // Forgets an entry that is already out of its queue; the backend still has it (lock held)
+    private void drop(Node node) {
+        data.remove(node.key, node);
+        evictions.increment();
+    }
+
+    private static int weigh(String key, byte[] value) {
+        return 2 * key.length() + value.length + ENTRY_OVERHEAD;
+    }
+
+    // A cached entry, linked into the queue it is in
+    private static final class Node {
+        final String key;
+        volatile byte[] value;  // Replaced by puts while readers may be returning it
+        int weight;
+        AccessQueue queue;  // Null once evicted
+        Node previous;
+        Node next;
+
+        Node(String key, byte[] value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    // Doubly linked list in LRU order (least recently used at the head) that counts the bytes of its entries
+    private static final class AccessQueue {
+        Node head;
+        Node tail;
+        long bytes = 0;
+
+        void addLast(Node node) {
+            node.queue = this;
+            node.previous = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            bytes += node.weight;
+        }
+
+        Node removeFirst() {
+            Node node = head;
+            remove(node);
+            return node;
+        }
+
+        void remove(Node node) {
+            if (node.previous == null) {
+                head = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            node.queue = null;
+            bytes -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+}
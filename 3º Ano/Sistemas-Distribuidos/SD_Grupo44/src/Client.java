@@ -1,45 +1,91 @@
 import java.io.*;
 import java.net.*;
-import java.util.Scanner;
+import java.util.*;
 
 public class Client implements AutoCloseable {
     private final Socket socket;  // Socket for client-server communication
     private final DataInputStream input;  // Input stream to receive data from the server
     private final DataOutputStream output;  // Output stream to send data to the server
     private final AuthenticationService authService;  // Service for user authentication and registration
-    private final KeyValueService kvService;  // Service for key-value operations
-    private final CommandLineInterface cli;  // CLI interface to interact with the user
+    private AsyncKeyValueService asyncService;  // Service for key-value operations, available once authenticated
+    private boolean compress;  // Whether to ask the server for compressed values
 
     // Constructor to initialize the client with the server's host and port
     public Client(String host, int port) throws IOException {
         this.socket = new Socket(host, port);  // Create a socket connection to the server
-        this.input = new DataInputStream(socket.getInputStream());  // Initialize input stream for data from the server
-        this.output = new DataOutputStream(socket.getOutputStream());  // Initialize output stream for data to the server
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));  // Initialize input stream for data from the server
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));  // Initialize output stream for data to the server
         this.authService = new AuthenticationService(input, output);  // Create an authentication service object
-        this.kvService = new KeyValueService(input, output);  // Create a key-value service object
-        this.cli = new CommandLineInterface(kvService, new Scanner(System.in));  // Initialize the command-line interface
+    }
+
+    // Connects and logs in without any interaction, for programs that use the store through the asynchronous API
+    public static Client connect(String host, int port, String username, String password) throws IOException {
+        return connect(host, port, username, password, false);
+    }
+
+    // As connect, sending large values compressed if the server supports it
+    public static Client connect(String host, int port, String username, String password, boolean compress) throws IOException {
+        Client client = new Client(host, port);
+        try {
+            if (!client.authService.login(username, password)) {
+                throw new IOException("Login failed for user " + username);
+            }
+            client.asyncService = AsyncKeyValueService.open(client.input, client.output, compress);
+            return client;
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    // Connects and logs in again with the session token of an earlier connection, see sessionToken()
+    public static Client resume(String host, int port, String token, boolean compress) throws IOException {
+        Client client = new Client(host, port);
+        try {
+            if (!client.authService.resume(token)) {
+                throw new IOException("Session token refused");
+            }
+            client.asyncService = AsyncKeyValueService.open(client.input, client.output, compress);
+            return client;
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    // Token the server handed out when this client logged in with connect or resume, good for a later resume
+    // until it expires; null after an interactive login
+    public String sessionToken() {
+        return authService.sessionToken();
+    }
+
+    // Key-value operations of an authenticated client; requests can be pipelined on the one connection
+    public AsyncKeyValueService async() {
+        return asyncService;
     }
 
     // Method to start the client application
     public void start() throws IOException {
-        Scanner scanner = new Scanner(System.in);  // Scanner to read user input
+        Scanner scanner = new Scanner(System.in);  // Scanner to read user input, shared with the command-line interface
         // Try to authenticate or register the user
         if (!authService.authenticateOrRegister(scanner)) {
             System.out.println("Authentication failed. Exiting.");  // If authentication fails, exit the program
             return;
         }
 
+        asyncService = AsyncKeyValueService.open(input, output, compress);  // Switch to the compact binary protocol for the key-value commands
+
         System.out.println("Authentication successful! Type 'help' for available commands:");
-        cli.start();  // Start the command-line interface to interact with the key-value service
+        // Start the command-line interface to interact with the key-value service
+        new CommandLineInterface(new KeyValueService(asyncService), scanner).start();
     }
 
     // Method to close the resources (socket, input/output streams)
     @Override
     public void close() throws IOException {
-        if (output != null) {
+        if (asyncService != null) {
             try {
-                output.writeUTF("exit");  // Send an exit command to the server
-                output.flush();  // Ensure the data is sent immediately
+                asyncService.close();  // Send an exit command to the server
             } catch (IOException e) {
                 System.err.println("Error sending exit command: " + e.getMessage());  // Handle any error sending the exit command
             }
@@ -50,12 +96,72 @@ public class Client implements AutoCloseable {
         if (socket != null && !socket.isClosed()) socket.close();  // Close the socket if it's not already closed
     }
 
-    // Main method to start the client application
+    // Main method to start the client application, e.g. "java Client" for localhost:11111,
+    // "java Client host1:11111 host2:11111 ..." to spread the keys over several servers, or
+    // "java Client --quorum=3,2,2 host1:11111 ..." to keep N copies of every key, with R/W replicas per read/write.
+    // A leading --compress sends and receives large values compressed, e.g. "java Client --compress host:11111".
     public static void main(String[] args) {
-        try (Client client = new Client("localhost", 11111)) {  // Try to create and start the client
+        boolean compress = args.length > 0 && args[0].equals("--compress");
+        if (compress) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length > 0 && args[0].startsWith("--quorum=")) {
+            String[] counts = args[0].substring("--quorum=".length()).split(",");
+            if (counts.length != 3) {
+                System.err.println("Error: expected --quorum=N,R,W");
+                return;
+            }
+            startQuorum(Arrays.asList(args).subList(1, args.length),
+                    Integer.parseInt(counts[0]), Integer.parseInt(counts[1]), Integer.parseInt(counts[2]), compress);
+            return;
+        }
+        if (args.length > 1) {
+            startSharded(Arrays.asList(args), compress);
+            return;
+        }
+        String host = "localhost";
+        int port = 11111;
+        if (args.length == 1) {
+            int colon = args[0].lastIndexOf(':');
+            host = args[0].substring(0, colon);
+            port = Integer.parseInt(args[0].substring(colon + 1));
+        }
+        try (Client client = new Client(host, port)) {  // Try to create and start the client
+            client.compress = compress;
             client.start();
         } catch (IOException e) {
             System.err.println("Error: " + e.getMessage());  // Catch and print any IOException
         }
     }
+
+    // Logs in to every node with the same account and runs the command-line interface over all of them
+    private static void startSharded(List<String> nodes, boolean compress) {
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Enter username:");
+        String username = scanner.nextLine();
+        System.out.println("Enter password:");
+        String password = scanner.nextLine();
+        try (ShardedKeyValueService service = ShardedKeyValueService.connect(nodes, username, password, compress)) {
+            System.out.println("Connected to " + nodes.size() + " servers. Type 'help' for available commands:");
+            new CommandLineInterface(new KeyValueService(service), scanner).start();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    // As startSharded, but every key is kept on `replicas` of the nodes
+    private static void startQuorum(List<String> nodes, int replicas, int readQuorum, int writeQuorum, boolean compress) {
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Enter username:");
+        String username = scanner.nextLine();
+        System.out.println("Enter password:");
+        String password = scanner.nextLine();
+        try (QuorumKeyValueService service = QuorumKeyValueService.connect(nodes, replicas, readQuorum, writeQuorum, username, password, compress)) {
+            System.out.println("Connected to " + nodes.size() + " servers, N=" + replicas + " R=" + readQuorum + " W=" + writeQuorum
+                    + ". Type 'help' for available commands:");
+            new CommandLineInterface(new KeyValueService(service), scanner).start();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
 }
@@ -1,41 +1,53 @@
 import java.io.*;
 import java.net.Socket;
-import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.*;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ResponseSink {
     private final Socket socket;  // The socket through which the client communicates with the server
-    private final StorageService storageService;  // Service that handles storage of key-value pairs
     private final UserService userService;  // Service that handles user authentication and registration
-    private final GetWhenService getWhenService;  // Service for handling special conditions (like "getwhen")
-    private final Semaphore semaphore;  // Semaphore to limit the number of clients that can be processed concurrently
-    private final ReentrantLock clientLock = new ReentrantLock();  // Lock for handling concurrent client requests
+    private final RequestProcessor processor;  // Executes the decoded requests against the storage
+    private final AdmissionPolicy admission;  // Limits the number of clients that can be processed concurrently
+    private final int maxInFlight;  // Largest request frame accepted, in bytes; a larger one closes the connection
+    private final ServerStats stats;  // Counts the connection, its bytes and its wait for a slot
+    private final ReentrantLock clientLock = new ReentrantLock();  // Lock so that replies from different threads are not interleaved
     private DataInputStream input;  // Input stream for receiving data from the client
     private DataOutputStream output;  // Output stream for sending data to the client
+    private ProtocolCodec codec = TextCodec.INSTANCE;  // Wire format in use; switches to binary on request (guarded by clientLock)
+    private volatile boolean compressed = false;  // Whether the client switched with BinaryCodec.COMPRESSED_VERSION
+    private Thread handlerThread;  // Thread running this handler, the only one that may leave replies unflushed
 
     // Constructor that initializes the client handler with necessary services and socket
     public ClientHandler(Socket socket, 
-                        StorageService storageService,
                         UserService userService, 
-                        GetWhenService getWhenService,
-                        Semaphore semaphore) {
+                        RequestProcessor processor,
+                        AdmissionPolicy admission,
+                        int maxInFlight,
+                        ServerStats stats) {
         this.socket = socket;
-        this.storageService = storageService;
         this.userService = userService;
-        this.getWhenService = getWhenService;
-        this.semaphore = semaphore;
+        this.processor = processor;
+        this.admission = admission;
+        this.maxInFlight = maxInFlight;
+        this.stats = stats;
     }
 
     // Main method of the thread that will be executed when the client is handled
     @Override
     public void run() {
+        boolean admitted = false;
+        stats.connectionOpened();
         try {
-            semaphore.acquire();  // Acquiring a semaphore to control access to the server
-
             setupStreams();  // Setting up input and output streams
 
+            long start = System.nanoTime();
+            admitted = admission.admit();  // Waiting for a free slot, unless the policy turns the client away
+            stats.admissionWaited(start);
+            if (!admitted) {
+                prompt("Server busy, try again later");  // Sent in place of the authentication prompt
+                return;
+            }
+
             clientLock.lock();  // Locking the client to ensure only one request is handled at a time
             try {
                 if (!handleAuthentication()) {  // Handling authentication
@@ -50,112 +62,135 @@ public class ClientHandler implements Runnable {
         } catch (IOException | InterruptedException e) {
             System.err.println("Error handling client: " + e.getMessage());  // Handling any IO or interrupt errors
         } finally {
-            cleanup();  // Cleaning up resources after client handling
-        }
-    }
-
-    // Handles the "put" command to store a key-value pair in the storage service
-    private void handlePut() throws IOException {
-        clientLock.lock();  // Locking the client to ensure no other request happens simultaneously
-        try {
-            String key = input.readUTF();  // Reading the key from the client
-            int length = input.readInt();  // Reading the length of the value
-            byte[] value = new byte[length];
-            input.readFully(value);  // Reading the value from the client
-            
-            storageService.put(key, value);  // Storing the key-value pair
-            output.writeUTF("Put_Ok");  // Sending a response to the client
-        } finally {
-            clientLock.unlock();  // Unlocking the client after handling the request
+            cleanup(admitted);  // Cleaning up resources after client handling
         }
     }
 
-    // Handles the "get" command to retrieve a value based on the key from the storage service
-    private void handleGet() throws IOException {
-        clientLock.lock();  // Locking the client to avoid concurrent access
+    // Sends a reply to the client; called by this handler and by the GetWhenService threads.
+    // Replies written by the handler stay buffered while more requests are waiting to be read,
+    // so the replies to a pipelined batch leave in one write. A binary reply whose value is in a file goes
+    // from the file to the socket with transferTo, after the replies buffered before it.
+    @Override
+    public void send(Response response) throws IOException {
+        clientLock.lock();  // Only one reply is written at a time
         try {
-            String key = input.readUTF();  // Reading the key from the client
-            byte[] value = storageService.get(key);  // Retrieving the value from storage
-            
-            if (value != null) {
-                output.writeUTF("Get_Ok");  // Sending a success message to the client
-                output.writeInt(value.length);  // Sending the length of the value
-                output.write(value);  // Sending the value to the client
+            SocketChannel channel = socket.getChannel();
+            if (response.ref != null && response.ref.inFile() && codec == BinaryCodec.INSTANCE && channel != null) {
+                output.write(BinaryCodec.INSTANCE.encodeHeader(response));
+                output.flush();
+                for (long sent = 0; sent < response.ref.length(); ) {
+                    sent += response.ref.transferTo(sent, channel);
+                }
+                stats.sent(response.ref.length());  // Past the counting stream
             } else {
-                output.writeUTF("Get_Not_Found");  // Sending a failure message if the key is not found
+                codec.writeResponse(output, response);
+            }
+            if (Thread.currentThread() != handlerThread) {
+                output.flush();
             }
         } finally {
-            clientLock.unlock();  // Unlocking after handling the request
+            clientLock.unlock();
+            response.release();  // The value has been copied into the output buffer (or the write failed)
         }
     }
 
-    // Handles the "multiput" command to store multiple key-value pairs
-    private void handleMultiPut() throws IOException {
-        clientLock.lock();  // Locking the client
+    @Override
+    public boolean compressedValues() {
+        return compressed;
+    }
+
+    // Flushes the replies the handler left buffered
+    private void flush() throws IOException {
+        clientLock.lock();
         try {
-            int numPairs = input.readInt();  // Reading the number of key-value pairs
-            Map<String, byte[]> pairs = new HashMap<>();
-            
-            for (int i = 0; i < numPairs; i++) {
-                String key = input.readUTF();  // Reading each key
-                int length = input.readInt();  // Reading the length of the value
-                byte[] value = new byte[length];
-                input.readFully(value);  // Reading the value
-                pairs.put(key, value);  // Storing the key-value pair in the map
-            }
-            
-            storageService.multiPut(pairs);  // Storing the multiple pairs
-            output.writeUTF("MultiPut_Ok");  // Sending a success response
+            output.flush();
         } finally {
-            clientLock.unlock();  // Unlocking after handling the request
+            clientLock.unlock();
         }
     }
 
     // Setup the input and output streams for communication with the client
     private void setupStreams() throws IOException {
-        input = new DataInputStream(socket.getInputStream());  // Initialize input stream
-        output = new DataOutputStream(socket.getOutputStream());  // Initialize output stream
+        handlerThread = Thread.currentThread();
+        input = new DataInputStream(new BufferedInputStream(stats.counting(socket.getInputStream())));  // Initialize input stream
+        output = new DataOutputStream(new BufferedOutputStream(stats.counting(socket.getOutputStream())));  // Initialize output stream
     }
 
-    // Handle authentication (login or registration)
+    // Sends one line of the authentication dialogue
+    private void prompt(String message) throws IOException {
+        output.writeUTF(message);
+        output.flush();
+    }
+
+    // Handle authentication (login or registration).
+    // Besides the dialogue, a program may send "3" with the username and password, or "4" with a session token,
+    // all in one write without waiting for the prompt; either is answered in one reply, with a new token.
     private boolean handleAuthentication() throws IOException {
-        output.writeUTF("1-Login, 2-Register");  // Sending authentication prompt to the client
+        prompt("1-Login, 2-Register");  // Sending authentication prompt to the client
         
         String choice = input.readUTF();  // Reading the user's choice
-        return "1".equals(choice) ? handleLogin() : handleRegistration();  // Handle login or registration based on the choice
+        return switch (choice) {  // Handle login or registration based on the choice
+            case "1" -> handleLogin();
+            case "3" -> handleQuickLogin();
+            case "4" -> handleTokenLogin();
+            default -> handleRegistration();
+        };
+    }
+
+    // Handle a login sent in one go: username and password, no prompts
+    private boolean handleQuickLogin() throws IOException {
+        String username = input.readUTF();
+        String password = input.readUTF();
+        return startSession(userService.authenticate(username, password) ? username : null);
+    }
+
+    // Handle a login with the session token of an earlier one; the user database is not looked at
+    private boolean handleTokenLogin() throws IOException {
+        return startSession(userService.authenticateToken(input.readUTF()));
+    }
+
+    // Answers a one-go login: success and a fresh token for the user, or failure if there is no user
+    private boolean startSession(String username) throws IOException {
+        if (username == null) {
+            prompt("Login failed!");
+            return false;
+        }
+        output.writeUTF("Login successful!");
+        prompt(userService.issueToken(username));  // Both in one write
+        return true;
     }
 
     // Handle the login process
     private boolean handleLogin() throws IOException {
-        output.writeUTF("Enter username:");  // Prompt for username
+        prompt("Enter username:");  // Prompt for username
         String username = input.readUTF();  // Read the username
         
-        output.writeUTF("Enter password:");  // Prompt for password
+        prompt("Enter password:");  // Prompt for password
         String password = input.readUTF();  // Read the password
 
         if (userService.authenticate(username, password)) {
-            output.writeUTF("Login successful!");  // If successful, send success message
+            prompt("Login successful!");  // If successful, send success message
             return true;
         } else {
-            output.writeUTF("Login failed!");  // If failed, send failure message
+            prompt("Login failed!");  // If failed, send failure message
             return false;
         }
     }
 
     // Handle the registration process
     private boolean handleRegistration() throws IOException {
-        output.writeUTF("Enter new username:");  // Prompt for new username
+        prompt("Enter new username:");  // Prompt for new username
         String username = input.readUTF();  // Read the username
         
-        output.writeUTF("Enter new password:");  // Prompt for new password
+        prompt("Enter new password:");  // Prompt for new password
         String password = input.readUTF();  // Read the password
 
         try {
             userService.saveUser(username, password);  // Save the new user in the service
-            output.writeUTF("Registration successful!");  // If successful, send confirmation
+            prompt("Registration successful!");  // If successful, send confirmation
             return true;
         } catch (IOException e) {
-            output.writeUTF("Registration failed: " + e.getMessage());  // If an error occurs, send failure message
+            prompt("Registration failed: " + e.getMessage());  // If an error occurs, send failure message
             return false;
         }
     }
@@ -163,72 +198,46 @@ public class ClientHandler implements Runnable {
     // Handle different client commands like "put", "get", "multiput", etc.
     private void handleClientRequests() throws IOException {
         while (true) {
-            String command = input.readUTF();  // Read the command from the client
-            
-            switch (command) {
-                case "exit" -> {
-                    return;  // Exit the handler when "exit" is received
-                }
-                case "put" -> handlePut();  // Handle "put" command
-                case "get" -> handleGet();  // Handle "get" command
-                case "multiput" -> handleMultiPut();  // Handle "multiput" command
-                case "multiget" -> handleMultiGet();  // Handle "multiget" command
-                case "getwhen" -> handleGetWhen();  // Handle "getwhen" command
-                default -> output.writeUTF("Unknown command");  // Handle unknown commands
+            Request request = codec.readRequest(input, maxInFlight);  // Read the next command and its arguments
+
+            if (request.type == Request.Type.EXIT) {
+                flush();
+                return;  // Exit the handler when "exit" is received
+            }
+            if (request.type == Request.Type.BINARY) {
+                switchProtocol(request);
+            } else {
+                processor.process(request, this);  // Execute it; the reply comes back through send()
+            }
+
+            if (input.available() == 0) {
+                flush();  // No more requests buffered, so send every reply written so far
             }
         }
     }
 
-    // Handles the "multiget" command to retrieve multiple key-value pairs
-    private void handleMultiGet() throws IOException {
-        clientLock.lock();  // Locking the client to avoid concurrency issues
+    // Answers a "binary" request and, if the version is supported, switches both directions to the binary protocol.
+    // The reply is still text; every frame after it is binary, and with the compressed version carries stored values.
+    private void switchProtocol(Request request) throws IOException {
+        clientLock.lock();
         try {
-            int numKeys = input.readInt();  // Reading the number of keys
-            output.writeInt(numKeys);  // Sending the number of keys back to the client
-            
-            List<String> keys = new ArrayList<>(numKeys);
-            
-            // Reading all keys from the client
-            for (int i = 0; i < numKeys; i++) {
-                String key = input.readUTF();
-                keys.add(key);
-            }
- 
-            // Retrieving all key-value pairs using the multiGet method from storage service
-            Map<String, byte[]> results = storageService.multiGet(keys);
-    
-            // Sending the results back to the client
-            for (String key : keys) {
-                byte[] value = results.get(key);
-                output.writeUTF(key);  // Sending the key
-                
-                if (value != null) {
-                    output.writeInt(value.length);  // Sending the length of the value
-                    output.write(value);  // Sending the value
-                } else {
-                    output.writeInt(-1);  // If no value was found, send -1
-                }
+            if (codec == TextCodec.INSTANCE && (request.version == BinaryCodec.VERSION || request.version == BinaryCodec.COMPRESSED_VERSION)) {
+                codec.writeResponse(output, Response.of(request.id, Response.Status.BINARY_OK));
+                codec = BinaryCodec.INSTANCE;
+                compressed = request.version == BinaryCodec.COMPRESSED_VERSION;
+            } else {
+                codec.writeResponse(output, Response.of(request.id, Response.Status.PROTOCOL_UNSUPPORTED));
             }
         } finally {
-            clientLock.unlock();  // Unlocking the client
+            clientLock.unlock();
         }
     }
 
-    // Handles the "getwhen" command (for special conditions on retrieval)
-    private void handleGetWhen() throws IOException {
-        String key = input.readUTF();  // Reading the key
-        String keyCond = input.readUTF();  // Reading the condition key
-        int length = input.readInt();  // Reading the length of the condition value
-        byte[] valueCond = new byte[length];
-        input.readFully(valueCond);  // Reading the condition value
-        
-        getWhenService.addRequest(key, keyCond, valueCond, output);  // Adding the request to the "getwhen" service
-    }
-
     // Cleaning up resources after client handling
-    private void cleanup() {
+    private void cleanup(boolean admitted) {
+        stats.connectionClosed();
         try {
-            semaphore.release();  // Releasing the semaphore to allow other clients
+            if (admitted) admission.release();  // Releasing the slot to allow other clients
             if (input != null) input.close();  // Closing the input stream
             if (output != null) output.close();  // Closing the output stream
             if (socket != null) socket.close();  // Closing the socket connection
@@ -1,14 +1,26 @@
 import java.util.*;
-import java.io.IOException;
+import java.io.*;
+import java.time.Duration;
 
 public class CommandLineInterface {
     private static final String HELP_MESSAGE = """
         Available commands:
-        put key=value  - Add a key-value pair
-        get key        - Get value for a key
+        put key=value [w] - Add a key-value pair, once w replicas have it
+        putttl key=value seconds - Add a key-value pair that expires after the given seconds
+        get key [r]    - Get value for a key, once r replicas have answered
+        cas key expected new - Set key to new if it holds expected ("-" for a key that does not exist)
+        putifabsent key=value - Add a key-value pair unless the key exists
+        incr key [delta] - Add delta (default 1) to the counter under key
         multiput key1=value1 key2=value2 ... - Add multiple key-value pairs
         multiget key1 key2 ... - Get values for multiple keys
+        putfile key path - Store the contents of a file, streamed in chunks
+        getfile key path - Write a value stored with putfile to a file
+        txget key1 key2 ... - Get values for multiple keys with the version each was read at
+        txcommit key@version ... key=value ... - Store the pairs if no key read has changed since its version
         getwhen key keycond keyvalue - Wait for keycond to be keyvalue and return key
+        scan from to [limit] - List the pairs with from <= key < to in key order ("-" for no bound)
+        scanprefix prefix [limit] - List the pairs whose key starts with prefix in key order
+        stats          - Show the server's command latencies and counters
         exit           - Close connection
         help           - Show this help message
         """;
@@ -40,35 +52,84 @@ public class CommandLineInterface {
             case "help" -> { System.out.println(HELP_MESSAGE); yield true; }
             case "exit" -> false;
             case "put" -> { handlePut(parts); yield true; }
+            case "putttl" -> { handlePutTtl(parts); yield true; }
             case "get" -> { handleGet(parts); yield true; }
+            case "cas" -> { handleCas(parts); yield true; }
+            case "putifabsent" -> { handlePutIfAbsent(parts); yield true; }
+            case "incr" -> { handleIncrement(parts); yield true; }
             case "multiput" -> { handleMultiPut(parts); yield true; }
             case "multiget" -> { handleMultiGet(parts); yield true; }
+            case "putfile" -> { handlePutFile(parts); yield true; }
+            case "getfile" -> { handleGetFile(parts); yield true; }
+            case "txget" -> { handleTxGet(parts); yield true; }
+            case "txcommit" -> { handleTxCommit(parts); yield true; }
             case "getwhen" -> { handleGetWhen(parts); yield true; }
+            case "scan" -> { handleScan(parts); yield true; }
+            case "scanprefix" -> { handleScanPrefix(parts); yield true; }
+            case "stats" -> { keyValueService.stats(); yield true; }
             default -> { System.out.println("Invalid command. Use 'help' for commands."); yield true; }
         };
     }
  
     private void handlePut(String[] parts) throws IOException, InterruptedException {
-        if (parts.length == 2) {
+        if (parts.length == 2 || parts.length == 3) {
             String[] keyValue = parts[1].split("=");
-            if (keyValue.length == 2) {
-                keyValueService.put(keyValue[0], keyValue[1].getBytes());
+            if (keyValue.length != 2) {
+                System.out.println("Usage: put key=value [w]");
+            } else if (parts.length == 3) {
+                keyValueService.put(keyValue[0], keyValue[1].getBytes(), Integer.parseInt(parts[2]));
             } else {
-                System.out.println("Usage: put key=value");
+                keyValueService.put(keyValue[0], keyValue[1].getBytes());
             }
         } else {
-            System.out.println("Usage: put key=value");
+            System.out.println("Usage: put key=value [w]");
+        }
+    }
+ 
+    private void handlePutTtl(String[] parts) throws IOException, InterruptedException {
+        String[] keyValue = parts.length == 3 ? parts[1].split("=") : new String[0];
+        if (keyValue.length == 2) {
+            keyValueService.put(keyValue[0], keyValue[1].getBytes(), Duration.ofMillis((long) (Double.parseDouble(parts[2]) * 1000)));
+        } else {
+            System.out.println("Usage: putttl key=value seconds");
         }
     }
  
     private void handleGet(String[] parts) throws IOException, InterruptedException {
-        if (parts.length == 2) {
-            byte[] value = keyValueService.get(parts[1]);
+        if (parts.length == 2 || parts.length == 3) {
+            byte[] value = parts.length == 3
+                    ? keyValueService.get(parts[1], Integer.parseInt(parts[2]))
+                    : keyValueService.get(parts[1]);
             if (value != null) {
                 System.out.println("Value: " + new String(value));
             }
         } else {
-            System.out.println("Usage: get key");
+            System.out.println("Usage: get key [r]");
+        }
+    }
+ 
+    private void handleCas(String[] parts) throws IOException, InterruptedException {
+        if (parts.length == 4) {
+            keyValueService.cas(parts[1], parts[2].equals("-") ? null : parts[2].getBytes(), parts[3].getBytes());
+        } else {
+            System.out.println("Usage: cas key expected new");
+        }
+    }
+ 
+    private void handlePutIfAbsent(String[] parts) throws IOException, InterruptedException {
+        String[] keyValue = parts.length == 2 ? parts[1].split("=") : new String[0];
+        if (keyValue.length == 2) {
+            keyValueService.putIfAbsent(keyValue[0], keyValue[1].getBytes());
+        } else {
+            System.out.println("Usage: putifabsent key=value");
+        }
+    }
+ 
+    private void handleIncrement(String[] parts) throws IOException, InterruptedException {
+        if (parts.length == 2 || parts.length == 3) {
+            keyValueService.incrementBy(parts[1], parts.length == 3 ? Long.parseLong(parts[2]) : 1);
+        } else {
+            System.out.println("Usage: incr key [delta]");
         }
     }
  
@@ -99,6 +160,87 @@ public class CommandLineInterface {
         }
     }
  
+    private void handlePutFile(String[] parts) throws IOException, InterruptedException {
+        if (parts.length == 3) {
+            try (InputStream file = new BufferedInputStream(new FileInputStream(parts[2]))) {
+                keyValueService.putStream(parts[1], file);
+            }
+        } else {
+            System.out.println("Usage: putfile key path");
+        }
+    }
+ 
+    private void handleGetFile(String[] parts) throws IOException, InterruptedException {
+        if (parts.length == 3) {
+            try (OutputStream file = new BufferedOutputStream(new FileOutputStream(parts[2]))) {
+                long length = keyValueService.getStream(parts[1], file);
+                if (length >= 0) {
+                    System.out.println(length + " bytes written to " + parts[2]);
+                }
+            }
+        } else {
+            System.out.println("Usage: getfile key path");
+        }
+    }
+ 
+    private void handleTxGet(String[] parts) throws IOException, InterruptedException {
+        if (parts.length > 1) {
+            List<String> keys = Arrays.asList(Arrays.copyOfRange(parts, 1, parts.length));
+            ReadSet read = keyValueService.readSet(keys);
+            for (String key : keys) {
+                byte[] value = read.values().get(key);
+                System.out.println(key + "@" + read.versions().get(key) + ": " + (value != null ? new String(value) : "not found"));
+            }
+        } else {
+            System.out.println("Usage: txget key1 key2 ...");
+        }
+    }
+ 
+    private void handleTxCommit(String[] parts) throws IOException, InterruptedException {
+        Map<String, Long> versions = new HashMap<>();
+        Map<String, byte[]> writes = new HashMap<>();
+        for (int i = 1; i < parts.length; i++) {
+            String[] keyVersion = parts[i].split("@");
+            String[] keyValue = parts[i].split("=");
+            if (keyValue.length == 2) {
+                writes.put(keyValue[0], keyValue[1].getBytes());
+            } else if (keyVersion.length == 2) {
+                versions.put(keyVersion[0], Long.parseLong(keyVersion[1]));
+            }
+        }
+        if (!versions.isEmpty() || !writes.isEmpty()) {
+            keyValueService.commit(versions, writes);
+        } else {
+            System.out.println("Usage: txcommit key@version ... key=value ...");
+        }
+    }
+ 
+    private void handleScan(String[] parts) throws IOException, InterruptedException {
+        if (parts.length == 3 || parts.length == 4) {
+            String from = parts[1].equals("-") ? "" : parts[1];
+            String to = parts[2].equals("-") ? "" : parts[2];
+            int limit = parts.length == 4 ? Integer.parseInt(parts[3]) : Integer.MAX_VALUE;
+            int count = keyValueService.scan(from, to, limit, CommandLineInterface::printPair);
+            System.out.println(count + " pairs");
+        } else {
+            System.out.println("Usage: scan from to [limit]");
+        }
+    }
+
+    private void handleScanPrefix(String[] parts) throws IOException, InterruptedException {
+        if (parts.length == 2 || parts.length == 3) {
+            int limit = parts.length == 3 ? Integer.parseInt(parts[2]) : Integer.MAX_VALUE;
+            int count = keyValueService.scanPrefix(parts[1], limit, CommandLineInterface::printPair);
+            System.out.println(count + " pairs");
+        } else {
+            System.out.println("Usage: scanprefix prefix [limit]");
+        }
+    }
+
+    private static void printPair(String key, byte[] value) {
+        System.out.println(key + ": " + new String(value));
+    }
+
     private void handleGetWhen(String[] parts) throws IOException, InterruptedException {
         if (parts.length == 4) {
             byte[] result = keyValueService.getWhen(parts[1], parts[2], parts[3].getBytes());
@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Removes the keys stored with a time to live once their deadline passes.
+//
+// Every deadline written is scheduled on a TimingWheel, and a background thread advances the wheel every tick and
+// removes the keys that came due, a batch per write. A key whose deadline was moved or dropped since is left alone
+// by StorageService.expire, so a rewritten key simply leaves a stale timer behind. Reads already treat an expired key
+// as missing, so the removal only frees the space and tells the write listeners (e.g. waking getwhen requests on it).
+// A backup does not remove keys itself: its primary's removals arrive through replication, and only once it is
+// promoted does it take over the keys that came due.
+public class ExpiryService implements WriteListener {
+    private static final long TICK_MILLIS = 10;  // How often the wheel advances, and so how late a removal may be
+    private static final int MAX_BATCH = 1000;  // Keys removed per write
+    private static final long RECHECK_MILLIS = 1000;  // Delay before a due key a backup or a failed write left is looked at again
+
+    private final StorageService storage;
+    private final BackupReplica replica;  // Null unless this server follows a primary
+    private final TimingWheel<String> wheel = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+
+    public ExpiryService(StorageService storage, BackupReplica replica) {
+        this.storage = storage;
+        this.replica = replica;
+    }
+
+    // Schedules the deadlines already stored and every one written from now on, and starts removing expired keys on a
+    // background thread. Listening starts here, not in the constructor, so writers never see a half-built service.
+    public void start() {
+        storage.addWriteListener(this);
+        storage.deadlines().forEach(wheel::schedule);  // Taken after listening starts; a write meanwhile is scheduled twice, which is harmless
+        Thread expirer = new Thread(this::run, "expiry");
+        expirer.setDaemon(true);
+        expirer.start();
+    }
+
+    // Called by the StorageService after every write; schedules the deadlines written
+    @Override
+    public void onWrite(String key, byte[] value) {
+        String expiring = StorageService.expiringKey(key);
+        if (expiring != null && value != null) {
+            Long deadline = storage.deadline(expiring);
+            if (deadline != null) {  // Null if a later write dropped it already
+                wheel.schedule(expiring, deadline);
+            }
+        }
+    }
+
+    // Body of the expiry thread
+    private void run() {
+        List<String> due = new ArrayList<>();
+        while (true) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            wheel.advance(System.currentTimeMillis(), due::add);
+            for (int start = 0; start < due.size(); start += MAX_BATCH) {
+                expire(due.subList(start, Math.min(start + MAX_BATCH, due.size())));
+            }
+            due.clear();
+        }
+    }
+
+    // Removes a batch of due keys, or looks at them again later if this server may not write
+    private void expire(List<String> keys) {
+        if (replica != null && !replica.acceptsWrites()) {
+            long recheck = System.currentTimeMillis() + RECHECK_MILLIS;
+            for (String key : keys) {
+                if (storage.deadline(key) != null) {  // Not removed by the primary yet
+                    wheel.schedule(key, recheck);
+                }
+            }
+            return;
+        }
+        try {
+            storage.expire(keys);
+        } catch (RuntimeException e) {
+            System.err.println("Error removing expired keys: " + e.getMessage());
+            long retry = System.currentTimeMillis() + RECHECK_MILLIS;
+            keys.forEach(key -> wheel.schedule(key, retry));  // Still read as missing meanwhile
+        }
+    }
+}
@@ -0,0 +1,83 @@
+// Approximate count of how often each key was asked for lately, in a fixed amount of memory.
+//
+// A count-min sketch with 4-bit counters, sixteen to a long: a key is counted in four counters spread over
+// the table and its frequency is the smallest of them, so collisions can only overestimate it. Every
+// counter is halved once sampleSize events have been counted, so old popularity fades and a key that was
+// hot an hour ago does not keep its place forever. Not thread-safe; the owner serializes access.
+public class FrequencySketch {
+    private static final long[] SEEDS = {  // One per counter of a key, from FNV and golden-ratio constants
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;  // Keeps each counter's low three bits after a shift
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int sampleSize;  // Events counted between two halvings
+    private int size = 0;  // Events counted since the last halving
+
+    // Sketch sized for about the given number of distinct keys
+    public FrequencySketch(int expectedKeys) {
+        int length = Integer.highestOneBit(Math.max(expectedKeys, 64) - 1) << 1;  // Power of two, for masking
+        this.table = new long[length];
+        this.sampleSize = 10 * Math.max(expectedKeys, 64);
+    }
+
+    // Estimated number of recent events for the key, at most 15
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;  // Which four of the sixteen counters in a long this key uses
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int count = (int) (table[indexOf(hash, i)] >>> ((start + i) << 2)) & MAX_COUNT;
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    // Counts one event for the key
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            halve();
+        }
+    }
+
+    // Adds one to the given counter of a long unless it is saturated
+    private boolean incrementAt(int index, int counter) {
+        int shift = counter << 2;
+        long mask = (long) MAX_COUNT << shift;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << shift;
+            return true;
+        }
+        return false;
+    }
+
+    // Halves every counter, so recent events outweigh old ones
+    private void halve() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & (table.length - 1);
+    }
+
+    // Mixes the bits of a String hash, whose low bits are poor for similar keys
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        hash *= 0xac4c1b51;
+        return hash ^ (hash >>> 15);
+    }
+}
@@ -1,108 +1,140 @@
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class GetWhenService {
+public final class GetWhenService implements WriteListener {
     // Timeout period for waiting on a condition (in milliseconds)
     private static final long GETWHEN_TIMEOUT = 60000;
-    // A queue to hold requests for the "GetWhen" service
-    private final BlockingQueue<GetWhenRequest> requests = new LinkedBlockingQueue<>();
+    // Threads that write replies, so that a writer thread never blocks on another client's socket
+    private static final int REPLY_THREADS = 4;
+
+    // Pending requests indexed by their condition key; only writes to these keys look at any request
+    private final ConcurrentHashMap<String, Set<GetWhenRequest>> waiters = new ConcurrentHashMap<>();
     // The storage service that provides methods to get values for keys
     private final StorageService storageService;
-    // Lock to ensure thread safety when processing requests
-    private final ReentrantLock getWhenLock = new ReentrantLock();
+    // Fires the timeouts of pending requests
+    private final ScheduledThreadPoolExecutor timeouts;
+    // Sends the replies of requests woken up by a write
+    private final ExecutorService replies;
 
     // Constructor to initialize the GetWhenService with the given StorageService
     public GetWhenService(StorageService storageService) {
         this.storageService = storageService;
-        startProcessingThread(); // Start the background thread to process requests
+        this.timeouts = new ScheduledThreadPoolExecutor(1, daemonThreads("getwhen-timeout"));
+        this.timeouts.setRemoveOnCancelPolicy(true);  // Answered requests must not keep their timeout task around
+        this.replies = Executors.newFixedThreadPool(REPLY_THREADS, daemonThreads("getwhen-reply"));
+        storageService.addWriteListener(this);  // Be told about every write; last, and the class is final, so writers see it whole
     }
 
     // Internal class to represent a "GetWhen" request
     static class GetWhenRequest {
+        final int id;                // Id of the client's request, echoed in the reply
         final String key;            // The key to retrieve when the condition is met
         final String keyCond;        // The condition key that is checked
         final byte[] valueCond;      // The value condition that must be met
-        final long timestamp;        // The timestamp when the request was created
-        final DataOutputStream clientOutput; // The client's output stream to send the response
+        final ResponseSink client;   // Where the response is sent to the client
+        final AtomicBoolean done = new AtomicBoolean();  // Set by whoever answers the request first
+        ScheduledFuture<?> timeout;  // Task that answers the request if the condition is never met
 
         // Constructor to create a new GetWhenRequest
-        GetWhenRequest(String key, String keyCond, byte[] valueCond, DataOutputStream clientOutput) {
+        GetWhenRequest(int id, String key, String keyCond, byte[] valueCond, ResponseSink client) {
+            this.id = id;
             this.key = key;
             this.keyCond = keyCond;
             this.valueCond = valueCond;
-            this.clientOutput = clientOutput;
-            this.timestamp = System.currentTimeMillis(); // Record the current timestamp
+            this.client = client;
         }
+    }
+
+    // Method to add a new request.
+    // The request is indexed before the condition is checked, so a concurrent write either
+    // finds it in the index or is seen by the check below; the done flag keeps it from being answered twice.
+    public void addRequest(int id, String key, String keyCond, byte[] valueCond, ResponseSink client) throws IOException {
+        GetWhenRequest request = new GetWhenRequest(id, key, keyCond, valueCond, client);
+        request.timeout = timeouts.schedule(() -> expire(request), GETWHEN_TIMEOUT, TimeUnit.MILLISECONDS);
 
-        // Check if the request has timed out
-        boolean isTimedOut() {
-            return System.currentTimeMillis() - timestamp > GETWHEN_TIMEOUT;
+        waiters.compute(keyCond, (k, set) -> {
+            Set<GetWhenRequest> requests = set != null ? set : ConcurrentHashMap.newKeySet();
+            requests.add(request);
+            return requests;
+        });
+
+        // The condition may already hold; then answer right away on the caller's thread
+        if (ValueCompression.sameValue(storageService.getValue(keyCond), valueCond) && finish(request)) {
+            request.client.send(resultOf(request));
         }
     }
 
-    // Method to add a new request to the queue
-    public void addRequest(String key, String keyCond, byte[] valueCond, DataOutputStream clientOutput) {
-        getWhenLock.lock();  // Lock to ensure thread safety when adding a request
-        try {
-            // Add the new request to the queue
-            requests.offer(new GetWhenRequest(key, keyCond, valueCond, clientOutput));
-        } finally {
-            getWhenLock.unlock(); // Release the lock
+    // Called by the StorageService after every write; wakes the requests waiting on that key.
+    // A null value is the key expiring, after which the condition cannot be met until someone writes the key
+    // again, so its requests are answered at once rather than left to time out.
+    @Override
+    public void onWrite(String key, byte[] value) {
+        Set<GetWhenRequest> requests = waiters.get(key);
+        if (requests == null) {
+            return;  // Nobody is waiting on this key
         }
-    }
 
-    // Method to process a single request from the queue
-    private void processRequest(GetWhenRequest request) throws IOException {
-        getWhenLock.lock(); // Lock to ensure thread safety when processing a request
-        try {
-            // If the request has timed out, send a timeout message to the client
-            if (request.isTimedOut()) {
-                request.clientOutput.writeUTF("GetWhen_Timeout");
-                return;
+        for (GetWhenRequest request : requests) {
+            if (value == null && finish(request)) {
+                replies.execute(() -> reply(request, Response.of(request.id, Response.Status.GETWHEN_EXPIRED)));
+            } else if (ValueCompression.sameValue(value, request.valueCond) && finish(request)) {
+                replies.execute(() -> reply(request, resultOf(request)));
             }
+        }
+    }
 
-            // Retrieve the current value for the condition key
-            byte[] currentValue = storageService.getValue(request.keyCond);
-            
-            // Check if the current value matches the condition value
-            if (currentValue != null && Arrays.equals(currentValue, request.valueCond)) {
-                // If the condition is met, retrieve the value for the requested key
-                byte[] result = storageService.getValue(request.key);
-                if (result != null) {
-                    // Send the value to the client if found
-                    request.clientOutput.writeUTF("GetWhen_Ok");
-                    request.clientOutput.writeInt(result.length); // Send the length of the value
-                    request.clientOutput.write(result);           // Send the value
-                } else {
-                    // If the requested value is not found, notify the client
-                    request.clientOutput.writeUTF("GetWhen_Not_Found");
-                }
-                request.clientOutput.flush(); // Ensure the output is sent to the client
-            } else {
-                // If the condition is not met, re-add the request to the queue for retry
-                requests.offer(request);
-                Thread.sleep(100); // Wait for a short time before checking again
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt(); // Handle interruption gracefully
-        } finally {
-            getWhenLock.unlock(); // Release the lock
+    // Number of requests currently waiting for their condition
+    public int pending() {
+        int count = 0;
+        for (Set<GetWhenRequest> requests : waiters.values()) {
+            count += requests.size();
         }
+        return count;
     }
 
-    // Start a background thread that continuously processes requests from the queue
-    private void startProcessingThread() {
-        new Thread(() -> {
-            while (true) {
-                try {
-                    // Take and process a request from the queue
-                    processRequest(requests.take());
-                } catch (Exception e) {
-                    e.printStackTrace(); // Log any exceptions that occur during processing
-                }
-            }
-        }).start();
+    // Answers a request whose condition never became true
+    private void expire(GetWhenRequest request) {
+        if (finish(request)) {
+            reply(request, Response.of(request.id, Response.Status.GETWHEN_TIMEOUT));
+        }
+    }
+
+    // Claims a request for answering and takes it out of the index; false if it was already answered
+    private boolean finish(GetWhenRequest request) {
+        if (!request.done.compareAndSet(false, true)) {
+            return false;
+        }
+        request.timeout.cancel(false);
+        waiters.computeIfPresent(request.keyCond, (k, requests) -> {
+            requests.remove(request);
+            return requests.isEmpty() ? null : requests;  // Drop the entry once nobody waits on the key
+        });
+        return true;
+    }
+
+    // Reply to a request whose condition is met: the current value of the requested key
+    private Response resultOf(GetWhenRequest request) {
+        byte[] result = storageService.getValue(request.key);
+        return result != null
+                ? Response.withValue(request.id, Response.Status.GETWHEN_OK, result)
+                : Response.of(request.id, Response.Status.GETWHEN_NOT_FOUND);
+    }
+
+    private void reply(GetWhenRequest request, Response response) {
+        try {
+            request.client.send(response);
+        } catch (IOException e) {
+            System.err.println("Error sending getwhen reply: " + e.getMessage());  // The client is most likely gone
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 }
@@ -0,0 +1,89 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Consistent hashing of keys onto nodes.
+//
+// Every node is placed at virtualNodes points of a 64-bit ring, and a key belongs to the first point at or
+// after its own hash. Adding a node therefore only takes over the keys just before its points, about 1/N of
+// them, and many points per node keep the share of each node close to even. The ring is replaced as a whole
+// on every change, so lookups never lock.
+public class HashRing<N> {
+    private final int virtualNodes;  // Points on the ring per node
+    private volatile NavigableMap<Long, N> ring = new TreeMap<>();
+
+    public HashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    // Adds a node, identified on the ring by its name (e.g. "host:port"), so every client places it the same way
+    public synchronized void add(String name, N node) {
+        NavigableMap<Long, N> grown = new TreeMap<>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            grown.put(hash(name + "#" + i), node);
+        }
+        ring = grown;
+    }
+
+    public synchronized void remove(String name) {
+        NavigableMap<Long, N> shrunk = new TreeMap<>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            shrunk.remove(hash(name + "#" + i));
+        }
+        ring = shrunk;
+    }
+
+    // Node that owns the key
+    public N nodeFor(String key) {
+        NavigableMap<Long, N> current = ring;
+        if (current.isEmpty()) {
+            throw new IllegalStateException("No nodes on the hash ring");
+        }
+        Map.Entry<Long, N> owner = current.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : current.firstEntry().getValue();  // Past the last point, wrap around
+    }
+
+    // The first count distinct nodes from the key's point clockwise: its owner and the nodes that replicate it
+    public List<N> nodesFor(String key, int count) {
+        NavigableMap<Long, N> current = ring;
+        List<N> nodes = new ArrayList<>(count);
+        for (N node : current.tailMap(hash(key), true).values()) {
+            if (nodes.size() == count) {
+                return nodes;
+            }
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+        for (N node : current.values()) {  // Wrap around
+            if (nodes.size() == count) {
+                break;
+            }
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    // Splits keys by the node that owns them
+    public Map<N, List<String>> partition(Collection<String> keys) {
+        Map<N, List<String>> parts = new HashMap<>();
+        for (String key : keys) {
+            parts.computeIfAbsent(nodeFor(key), node -> new ArrayList<>()).add(key);
+        }
+        return parts;
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes, finished with MurmurHash3's mixer so nearby names land far apart
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -1,141 +1,229 @@
 import java.io.*;
+import java.time.Duration;
 import java.util.*;
-import java.net.SocketException;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
+// Blocking view of the key-value commands, used by the command line interface.
+// Every call waits for its reply from the underlying KeyValueStore (one server, or several sharded).
 public class KeyValueService {
-    private final DataInputStream input;  // Input stream to read data from the server
-    private final DataOutputStream output;  // Output stream to send data to the server
+    private static final int SCAN_CHUNK = 256;  // Pairs asked for per scan request
+    private static final int STREAM_CHUNK = 1 << 20;  // Bytes per chunk of a streamed value
+    private static final int STREAM_WINDOW = 4;  // Chunks of a streamed value in flight at once
 
-    // Constructor to initialize the input and output streams
-    public KeyValueService(DataInputStream input, DataOutputStream output) {
-        this.input = input;
-        this.output = output;
+    private final KeyValueStore client;  // Connection(s) that send the requests and match the replies
+
+    // Constructor to wrap an open asynchronous client
+    public KeyValueService(KeyValueStore client) {
+        this.client = client;
     }
 
     // Method to send a "put" request to the server and store a key-value pair
-    public void put(String key, byte[] value) throws IOException {
-        try {
-            // Send "put" command to the server
-            output.writeUTF("put");
-            output.writeUTF(key);  // Send the key
-            output.writeInt(value.length);  // Send the length of the value
-            output.write(value);  // Send the value itself
-
-            // Read and print the server's response
-            String response = input.readUTF();
-            System.out.println(response);
-        } catch (SocketException e) {
-            throw new IOException("Connection lost during put operation", e);  // Handle connection errors
-        }
+    public void put(String key, byte[] value) throws IOException, InterruptedException {
+        await(client.put(key, value));
+        System.out.println(Response.Status.PUT_OK.text());  // Print the server's response
+    }
+
+    // Stores a key-value pair once writeQuorum replicas have it
+    public void put(String key, byte[] value, int writeQuorum) throws IOException, InterruptedException {
+        await(client.put(key, value, writeQuorum));
+        System.out.println(Response.Status.PUT_OK.text());
+    }
+
+    // Stores a key-value pair that expires once the time to live has passed
+    public void put(String key, byte[] value, Duration ttl) throws IOException, InterruptedException {
+        await(client.put(key, value, ttl));
+        System.out.println(Response.Status.PUT_OK.text());
     }
 
     // Method to retrieve a value for a specific key from the server
-    public byte[] get(String key) throws IOException {
-        output.writeUTF("get");  // Send "get" command to the server
-        output.writeUTF(key);  // Send the key to retrieve
-
-        // Read the server's response
-        String response = input.readUTF();
-
-        // If the key is found, read and return its value
-        if ("Get_Ok".equals(response)) {
-            int length = input.readInt();  // Get the length of the value
-            byte[] value = new byte[length];  // Create a byte array to hold the value
-            input.readFully(value);  // Read the value into the byte array
-            return value;
-        } else if ("Get_Not_Found".equals(response)) {
+    public byte[] get(String key) throws IOException, InterruptedException {
+        return get(key, client.get(key));
+    }
+
+    // Retrieves a value once readQuorum replicas have answered, taking the latest of their versions
+    public byte[] get(String key, int readQuorum) throws IOException, InterruptedException {
+        return get(key, client.get(key, readQuorum));
+    }
+
+    private static byte[] get(String key, CompletableFuture<byte[]> reply) throws IOException, InterruptedException {
+        byte[] value = await(reply);
+        if (value == null) {
             System.out.println("Key not found: " + key);
-            return null;
         }
+        return value;
+    }
 
-        throw new IOException("Unknown server response: " + response);  // Handle unexpected responses
+    // Stores a value if the key holds the expected one (null for a key that does not exist); returns whether it did
+    public boolean cas(String key, byte[] expected, byte[] value) throws IOException, InterruptedException {
+        return printSwapped(await(client.cas(key, expected, value)));
     }
 
-    // Method to send multiple key-value pairs in a single "multiput" request
-    public void multiPut(Map<String, byte[]> pairs) throws IOException {
-        output.writeUTF("multiput");  // Send "multiput" command to the server
-        output.writeInt(pairs.size());  // Send the number of key-value pairs
-
-        // Send each key-value pair to the server
-        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
-            output.writeUTF(entry.getKey());  // Send the key
-            byte[] value = entry.getValue();  // Get the value
-            output.writeInt(value.length);  // Send the length of the value
-            output.write(value);  // Send the value
-        }
+    // Stores a value if the key does not exist; returns whether it did
+    public boolean putIfAbsent(String key, byte[] value) throws IOException, InterruptedException {
+        return printSwapped(await(client.putIfAbsent(key, value)));
+    }
 
-        // Read and print the server's response
-        System.out.println(input.readUTF());
+    private static boolean printSwapped(boolean swapped) {
+        System.out.println((swapped ? Response.Status.CAS_OK : Response.Status.CAS_FAILED).text());
+        return swapped;
     }
 
-    // Method to send a "multiget" request to retrieve multiple keys
-    public Map<String, byte[]> multiGet(List<String> keys) throws IOException {
-        Map<String, byte[]> results = new HashMap<>();
-        output.writeUTF("multiget");  // Send "multiget" command to the server
-        output.writeInt(keys.size());  // Send the number of keys to retrieve
-
-        // Send each key to the server
-        keys.forEach(key -> {
-            try {
-                output.writeUTF(key);  // Send the key
-            } catch (IOException e) {
-                throw new RuntimeException(e);  // Handle any I/O exceptions
+    // Adds delta to the counter under the key and returns the new count
+    public long incrementBy(String key, long delta) throws IOException, InterruptedException {
+        long count = await(client.incrementBy(key, delta));
+        System.out.println("Count: " + count);
+        return count;
+    }
+
+    // Retrieves several values with the versions a commit checks them against
+    public ReadSet readSet(List<String> keys) throws IOException, InterruptedException {
+        return await(client.readSet(keys));
+    }
+
+    // Stores the writes if none of the keys read has changed since its version; returns whether it did
+    public boolean commit(Map<String, Long> readVersions, Map<String, byte[]> writes) throws IOException, InterruptedException {
+        boolean committed = await(client.commit(readVersions, writes));
+        System.out.println((committed ? Response.Status.TX_OK : Response.Status.TX_CONFLICT).text());
+        return committed;
+    }
+
+    // Stores what the source holds as the streamed value of the key, a chunk at a time with a few chunks in flight,
+    // so neither side ever holds the whole value; returns its length. Read back with getStream, not get.
+    public long putStream(String key, InputStream source) throws IOException, InterruptedException {
+        long upload = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        Deque<CompletableFuture<Void>> pending = new ArrayDeque<>();
+        byte[] chunk = source.readNBytes(STREAM_CHUNK);
+        long length = 0;
+        for (int index = 0; ; index++) {
+            byte[] next = chunk.length == STREAM_CHUNK ? source.readNBytes(STREAM_CHUNK) : new byte[0];  // To tell whether this chunk is the last
+            length += chunk.length;
+            if (next.length == 0) {
+                pending.add(client.putChunk(key, upload, index, length, chunk));  // Makes the value visible
+                break;
+            }
+            pending.add(client.putChunk(key, upload, index, -1, chunk));
+            if (pending.size() == STREAM_WINDOW) {
+                await(pending.poll());
+            }
+            chunk = next;
+        }
+        while (!pending.isEmpty()) {
+            await(pending.poll());
+        }
+        System.out.println(Response.Status.PUT_OK.text());
+        return length;
+    }
+
+    // Writes the streamed value of the key to the target a chunk at a time, asking for the next few chunks while it
+    // writes one; returns its length, or -1 if the key has no streamed value. Fails with a
+    // ConcurrentModificationException as the cause if the value is replaced while being read.
+    public long getStream(String key, OutputStream target) throws IOException, InterruptedException {
+        ValueChunk chunk = await(client.getChunk(key, 0, 0));
+        if (chunk == null) {
+            System.out.println("Key not found: " + key);
+            return -1;
+        }
+        StreamedValue value = chunk.value();
+        Deque<CompletableFuture<ValueChunk>> pending = new ArrayDeque<>();
+        int requested = 1;
+        while (true) {
+            while (requested < value.chunks() && pending.size() < STREAM_WINDOW) {
+                pending.add(client.getChunk(key, value.upload(), requested++));
             }
-        });
+            target.write(chunk.bytes());
+            if (pending.isEmpty()) {
+                return value.length();
+            }
+            chunk = await(pending.poll());
+            if (chunk == null) {
+                throw new IOException(new ConcurrentModificationException(key + " was replaced while being read"));
+            }
+        }
+    }
 
-        int keyCount = input.readInt();  // Read the number of results returned by the server
+    // Method to send multiple key-value pairs in a single "multiput" request
+    public void multiPut(Map<String, byte[]> pairs) throws IOException, InterruptedException {
+        await(client.multiPut(pairs));
+        System.out.println(Response.Status.MULTIPUT_OK.text());  // Print the server's response
+    }
 
-        // For each key returned by the server, retrieve its value (if available)
-        for (int i = 0; i < keyCount; i++) {
-            String key = input.readUTF();  // Read the key
-            int length = input.readInt();  // Read the length of the value
+    // Method to send a "multiget" request to retrieve multiple keys
+    public Map<String, byte[]> multiGet(List<String> keys) throws IOException, InterruptedException {
+        return await(client.multiGet(keys));  // Missing keys map to null
+    }
 
-            if (length != -1) {
-                byte[] value = new byte[length];  // Create a byte array for the value
-                input.readFully(value);  // Read the value into the array
-                results.put(key, value);  // Store the result
-            } else {
-                results.put(key, null);  // If the key wasn't found, store a null value
+    // Hands the pairs with from <= key < to ("" for no bound) to the action in key order, at most limit of them,
+    // and returns how many there were. The pairs arrive a chunk at a time, the next chunk being asked for while
+    // the action works through the current one, so neither side ever holds the whole result.
+    public int scan(String from, String to, int limit, BiConsumer<String, byte[]> action) throws IOException, InterruptedException {
+        int count = 0;
+        CompletableFuture<ScanChunk> pending = client.scan(from, to, Math.min(limit, SCAN_CHUNK));
+        while (pending != null) {
+            ScanChunk chunk = await(pending);
+            int remaining = limit - count - chunk.pairs().size();
+            pending = chunk.next() != null && remaining > 0 ? client.scan(chunk.next(), to, Math.min(remaining, SCAN_CHUNK)) : null;
+            for (Map.Entry<String, byte[]> pair : chunk.pairs().entrySet()) {
+                if (count == limit) {
+                    break;  // A store may send more than asked for
+                }
+                action.accept(pair.getKey(), pair.getValue());
+                count++;
             }
         }
-        return results;  // Return the map of key-value pairs
+        return count;
+    }
+
+    // As scan, for the keys that start with prefix
+    public int scanPrefix(String prefix, int limit, BiConsumer<String, byte[]> action) throws IOException, InterruptedException {
+        return scan(prefix, prefixEnd(prefix), limit, action);
+    }
+
+    // First string after every string that starts with prefix, "" if there is none
+    static String prefixEnd(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;  // Nothing comes after it in this position; carry to the one before
+        }
+        return end == 0 ? "" : prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
     }
 
     // Method to send a "getwhen" request to the server to wait for a condition to be met
-    public byte[] getWhen(String key, String keyCond, byte[] valueCond) throws IOException {
-        output.writeUTF("getwhen");  // Send "getwhen" command to the server
-        output.writeUTF(key);  // Send the key to retrieve
-        output.writeUTF(keyCond);  // Send the condition key
-        output.writeInt(valueCond.length);  // Send the length of the condition value
-        output.write(valueCond);  // Send the condition value
-        output.flush();  // Ensure the data is sent immediately
-
-        // Read the server's response
-        String response = input.readUTF();
-
-        // Handle the response based on its content
-        return handleGetWhenResponse(response, key);
-    }
-
-    // Helper method to process the server's response to a "getwhen" request
-    private byte[] handleGetWhenResponse(String response, String key) throws IOException {
-        switch (response) {
-            case "GetWhen_Ok":
-                int length = input.readInt();  // Read the length of the value
-                byte[] value = new byte[length];  // Create a byte array for the value
-                input.readFully(value);  // Read the value into the array
-                return value;  // Return the value
-
-            case "GetWhen_Not_Found":
+    public byte[] getWhen(String key, String keyCond, byte[] valueCond) throws IOException, InterruptedException {
+        try {
+            byte[] value = await(client.getWhen(key, keyCond, valueCond));
+            if (value == null) {
                 System.out.println("Key not found: " + key);
-                return null;  // Return null if the key wasn't found
+            }
+            return value;
+        } catch (IOException e) {
+            if (e.getCause() instanceof NoSuchElementException) {
+                System.out.println("Condition key expired: " + keyCond);
+                return null;
+            }
+            if (!(e.getCause() instanceof TimeoutException)) {
+                throw e;
+            }
+            System.out.println("Request timed out after 60 seconds");
+            return null;  // Return null if the request timed out
+        }
+    }
 
-            case "GetWhen_Timeout":
-                System.out.println("Request timed out after 60 seconds");
-                return null;  // Return null if the request timed out
+    // Prints the server's latency histograms and counters
+    public void stats() throws IOException, InterruptedException {
+        System.out.print(await(client.stats()));
+    }
 
-            default:
-                throw new IOException("Unknown server response: " + response);  // Handle unknown responses
+    // Waits for a reply and turns a failed future back into the exception it failed with
+    private static <T> T await(CompletableFuture<T> reply) throws IOException, InterruptedException {
+        try {
+            return reply.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(cause);
         }
     }
 }
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+// Asynchronous key-value commands, served by one server (AsyncKeyValueService) or spread over several
+// (ShardedKeyValueService). Every call returns at once with a future that the reply completes.
+public interface KeyValueStore extends AutoCloseable {
+    // Stores a value; completes once the server has stored it
+    CompletableFuture<Void> put(String key, byte[] value);
+
+    // Retrieves a value; completes with null if the key does not exist
+    CompletableFuture<byte[]> get(String key);
+
+    // Stores a value that is removed once the time to live has passed, and reads as missing from then on.
+    // A later write without a time to live keeps the key for good.
+    CompletableFuture<Void> put(String key, byte[] value, Duration ttl);
+
+    // Stores a value once the given number of replicas have it. A store that keeps a single copy of each
+    // value only takes 1; QuorumKeyValueService takes up to its replica count.
+    default CompletableFuture<Void> put(String key, byte[] value, int writeQuorum) {
+        if (writeQuorum != 1) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Only one copy of each value is kept"));
+        }
+        return put(key, value);
+    }
+
+    // Retrieves a value once the given number of replicas have answered (see above)
+    default CompletableFuture<byte[]> get(String key, int readQuorum) {
+        if (readQuorum != 1) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Only one copy of each value is kept"));
+        }
+        return get(key);
+    }
+
+    // Stores a value if the key holds the expected one (null for a key that does not exist), atomically on the
+    // server; completes with whether it did
+    CompletableFuture<Boolean> cas(String key, byte[] expected, byte[] value);
+
+    // Stores a value if the key does not exist; completes with whether it did
+    CompletableFuture<Boolean> putIfAbsent(String key, byte[] value);
+
+    // Adds delta to the 64-bit counter under the key, which starts at 0; completes with the new count, or
+    // exceptionally with an IllegalStateException if the key holds something other than a counter
+    CompletableFuture<Long> incrementBy(String key, long delta);
+
+    // Retrieves several values (null for missing keys) with the version each was read at, to commit against
+    CompletableFuture<ReadSet> readSet(List<String> keys);
+
+    // Stores the writes atomically if none of the keys read has been written since the given versions; completes
+    // with whether it did. Nothing is locked between the read and the commit, so a transaction that loses a race
+    // is simply refused and may be run again.
+    CompletableFuture<Boolean> commit(Map<String, Long> readVersions, Map<String, byte[]> writes);
+
+    // Runs an optimistic transaction: reads the keys, has the body compute the writes from their values, and
+    // commits them, reading again and rerunning the body for as long as the commit is refused. Completes with the
+    // values the successful run read. The body may run several times, so it must not have side effects.
+    default CompletableFuture<Map<String, byte[]>> transact(List<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> body) {
+        return readSet(keys).thenCompose(read -> commit(read.versions(), body.apply(read.values()))
+                .thenCompose(committed -> committed ? CompletableFuture.completedFuture(read.values()) : transact(keys, body)));
+    }
+
+    // Stores one chunk of a value too large for a single request, under an upload id the client picks (not 0).
+    // The chunks of an upload go to one connection, the last one (carrying the whole value's length, -1 on the
+    // others) after the rest; it makes them the value of the key, which completes exceptionally with an
+    // IllegalStateException if a chunk is missing. Streamed values are read with getChunk, not get.
+    CompletableFuture<Void> putChunk(String key, long upload, int index, long length, byte[] bytes);
+
+    // Retrieves one chunk of the streamed value of a key; upload 0 asks for the current value, and the upload of
+    // the chunk returned pins the others to it. Completes with null if the key has no such chunk, or exceptionally
+    // with a ConcurrentModificationException if the pinned upload has been replaced.
+    CompletableFuture<ValueChunk> getChunk(String key, long upload, int index);
+
+    // Stores several values
+    CompletableFuture<Void> multiPut(Map<String, byte[]> pairs);
+
+    // Retrieves several values; missing keys map to null
+    CompletableFuture<Map<String, byte[]>> multiGet(List<String> keys);
+
+    // Retrieves one chunk of the pairs with from <= key < to ("" for no bound), at most limit of them, in key
+    // order; the chunk's next key continues the scan
+    CompletableFuture<ScanChunk> scan(String from, String to, int limit);
+
+    // Waits until keyCond holds valueCond and then retrieves key; completes with null if key does not exist,
+    // or exceptionally with a TimeoutException if the condition is not met within the server's timeout, or with
+    // a NoSuchElementException if keyCond expires while waiting
+    CompletableFuture<byte[]> getWhen(String key, String keyCond, byte[] valueCond);
+
+    // The server's latency histograms and counters, as the text the stats command prints
+    default CompletableFuture<String> stats() {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("stats is not available on this keyspace"));
+    }
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram of durations in the manner of HdrHistogram: one bucket per value below 32 ns, then for every power of
+// two 32 buckets splitting it evenly, so a value is known to within about 3% however large it is. Every duration
+// up to half an hour fits in the same 1184 counters, and recording one is a single array increment, with no
+// lock and no allocation, from any thread. A snapshot may miss the values recorded while it is taken.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;  // Buckets each power of two is split into
+    private static final int MAX_MAGNITUDE = 40;  // Durations of 2^41 ns (about 36 minutes) or more share the last bucket
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();  // Sum of every duration recorded, for the mean
+    private final AtomicLong maxNanos = new AtomicLong();  // Exact longest duration recorded
+
+    // What the histogram held at one moment
+    public record Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+        public double meanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        // Duration that the given fraction (0.99 for the 99th percentile) of the recorded ones did not exceed,
+        // as the top of its bucket; 0 if nothing was recorded
+        public long percentile(double fraction) {
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    return Math.min(highestIn(bucket), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+    }
+
+    // Records a duration in nanoseconds
+    public void record(long nanos) {
+        nanos = Math.max(nanos, 0);  // nanoTime does not go backwards, but be safe with durations from elsewhere
+        counts.incrementAndGet(bucketOf(nanos));
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    // Records the time since a System.nanoTime() reading
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            copy[bucket] = counts.get(bucket);
+            count += copy[bucket];
+        }
+        return new Snapshot(copy, count, totalNanos.sum(), maxNanos.get());
+    }
+
+    // Bucket of a duration: its highest set bit picks the power of two, the SUB_BITS bits below it the bucket in it
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // Largest duration that goes into a bucket
+    private static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowest + (1L << shift) - 1;
+    }
+}
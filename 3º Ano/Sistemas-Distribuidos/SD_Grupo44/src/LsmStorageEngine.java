@@ -0,0 +1,462 @@
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Log-structured merge tree, for data sets larger than the heap.
+//
+// Writes go to a sorted in-memory memtable. When it grows past memtableLimit bytes it is frozen and
+// written out as an immutable SegmentFile, and once COMPACTION_TRIGGER segments pile up they are merged
+// into one. A read looks at the memtable, then the frozen memtables, then the segments, newest first.
+// A removed key is written as a tombstone, which hides its older values until a compaction drops both.
+// Flushes and compactions run on one background thread; the MANIFEST file names the live segments.
+// A large value found in a segment is handed out as a region of its file, which replies send with transferTo.
+public class LsmStorageEngine implements StorageEngine {
+    private static final int COMPACTION_TRIGGER = 4;  // Segments that start a compaction
+    private static final int ENTRY_OVERHEAD = 64;  // Rough memtable bytes per entry besides key and value
+    private static final int IN_PLACE_MIN = 16 << 10;  // Smallest segment value handed out in place; smaller ones are cheaper to copy
+
+    // What a reader needs, replaced as a whole whenever a memtable is frozen or a segment added or removed
+    private record State(ConcurrentSkipListMap<String, byte[]> memtable,
+                         List<ConcurrentSkipListMap<String, byte[]>> frozen,  // Being flushed, newest first
+                         List<SegmentFile> segments) {  // Newest first
+    }
+
+    private final Path dir;  // Directory holding the segment files and the manifest
+    private final long memtableLimit;  // Memtable size that triggers a flush
+    private volatile State state;
+    private final ReentrantReadWriteLock memtableLock = new ReentrantReadWriteLock();  // Writers share it; freezing takes it alone
+    private final ReentrantLock stateLock = new ReentrantLock();  // Serializes replacing the state
+    private final AtomicLong memtableBytes = new AtomicLong();  // Approximate size of the current memtable
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lsm-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long nextFileNumber = 1;  // Used only on the background thread once recovered
+    private long checkpointSegment = 0;  // Write-ahead log segment the flushed data covers up to
+
+    public LsmStorageEngine(Path dir, long memtableLimit) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.memtableLimit = memtableLimit;
+        this.state = new State(new ConcurrentSkipListMap<>(), List.of(), List.of());
+    }
+
+    @Override
+    public byte[] get(String key) {
+        while (true) {
+            State current = state;
+            byte[] value = current.memtable.get(key);
+            if (value != null) {
+                return live(value);
+            }
+            for (ConcurrentSkipListMap<String, byte[]> memtable : current.frozen) {
+                value = memtable.get(key);
+                if (value != null) {
+                    return live(value);
+                }
+            }
+            try {
+                for (SegmentFile segment : current.segments) {
+                    value = segment.get(key);
+                    if (value != null) {
+                        return live(value);  // A tombstone ends the search: older segments have the value it removed
+                    }
+                }
+                return null;
+            } catch (ClosedChannelException e) {
+                if (state == current) {
+                    throw new UncheckedIOException(e);
+                }
+                // A compaction replaced the segment while we read it; look again in the new ones
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // As get, but a large value in a segment comes as a region of the file instead of a copy
+    @Override
+    public ValueRef acquire(String key) {
+        while (true) {
+            State current = state;
+            byte[] value = current.memtable.get(key);
+            for (int i = 0; value == null && i < current.frozen.size(); i++) {
+                value = current.frozen.get(i).get(key);
+            }
+            if (value != null) {
+                value = live(value);
+                return value == null ? null : ValueRef.of(value);
+            }
+            try {
+                for (SegmentFile segment : current.segments) {
+                    SegmentFile.Entry entry = segment.locate(key);
+                    if (entry == null) {
+                        continue;
+                    }
+                    if (entry.removed()) {
+                        return null;
+                    }
+                    if (entry.length() < IN_PLACE_MIN) {
+                        return ValueRef.of(segment.read(entry));
+                    }
+                    ValueRef region = segment.acquire(entry);
+                    if (region != null) {
+                        return region;
+                    }
+                    throw new ClosedChannelException();  // Compacted away since we looked it up
+                }
+                return null;
+            } catch (ClosedChannelException e) {
+                if (state == current) {
+                    throw new UncheckedIOException(e);
+                }
+                // A compaction replaced the segment while we read it; look again in the new ones
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        memtableLock.readLock().lock();
+        try {
+            state.memtable.put(key, stored(value));
+        } finally {
+            memtableLock.readLock().unlock();
+        }
+        grew(key.length() + stored(value).length + ENTRY_OVERHEAD);
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> pairs) {
+        long bytes = 0;
+        memtableLock.readLock().lock();
+        try {
+            ConcurrentSkipListMap<String, byte[]> memtable = state.memtable;  // All pairs land in the same memtable
+            for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                byte[] value = stored(pair.getValue());
+                memtable.put(pair.getKey(), value);
+                bytes += pair.getKey().length() + value.length + ENTRY_OVERHEAD;
+            }
+        } finally {
+            memtableLock.readLock().unlock();
+        }
+        grew(bytes);
+    }
+
+    // Every pair in key order, merged from the memtables and the segments as they are when called
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> entries() throws IOException {
+        while (true) {
+            State current = state;
+            List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+            sources.add(current.memtable.entrySet().iterator());
+            for (ConcurrentSkipListMap<String, byte[]> memtable : current.frozen) {
+                sources.add(memtable.entrySet().iterator());
+            }
+            try {
+                for (SegmentFile segment : current.segments) {
+                    sources.add(segment.iterator());
+                }
+                return withoutTombstones(merge(sources));
+            } catch (NoSuchFileException e) {
+                if (state == current) {
+                    throw e;
+                }
+                // A compaction deleted the segment before we opened it; start over from the new ones
+            }
+        }
+    }
+
+    // Opens the segments named in the manifest and drops files a crash left behind
+    @Override
+    public long recover() throws IOException {
+        Path manifest = dir.resolve("MANIFEST");
+        List<SegmentFile> segments = new ArrayList<>();
+        Set<String> live = new HashSet<>();
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest)) {
+                String[] parts = line.split(" ");
+                switch (parts[0]) {
+                    case "checkpoint" -> checkpointSegment = Long.parseLong(parts[1]);
+                    case "segment" -> {
+                        segments.add(SegmentFile.open(dir.resolve(parts[1])));
+                        live.add(parts[1]);
+                    }
+                    default -> throw new IOException("Corrupt manifest line: " + line);
+                }
+            }
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "sst-*.sst")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                nextFileNumber = Math.max(nextFileNumber, Long.parseLong(name.substring(4, name.length() - 4)) + 1);
+                if (!live.contains(name)) {
+                    Files.delete(file);  // Flush or compaction output that never made it into the manifest
+                }
+            }
+        }
+
+        state = new State(state.memtable, List.of(), List.copyOf(segments));
+        long entries = segments.stream().mapToLong(segment -> segment.entries).sum();
+        System.out.println("LSM storage opened: " + segments.size() + " segments, " + entries + " entries");
+        return checkpointSegment;
+    }
+
+    // Flushes the memtable, so the segments hold everything written before the given log segment
+    @Override
+    public void checkpoint(long segment) throws IOException {
+        try {
+            background.submit(() -> {
+                flushMemtable();
+                checkpointSegment = segment;
+                writeManifest();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Checkpoint interrupted");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+        compactIfNeeded();
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SegmentFile segment : state.segments) {
+            segment.close();
+        }
+    }
+
+    // Counts bytes added to the memtable and schedules a flush once it is full
+    private void grew(long bytes) {
+        if (memtableBytes.addAndGet(bytes) >= memtableLimit && flushScheduled.compareAndSet(false, true)) {
+            background.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    flushMemtable();
+                    writeManifest();
+                } catch (IOException e) {
+                    System.err.println("Error flushing memtable: " + e.getMessage());
+                }
+                compactIfNeeded();
+            });
+        }
+    }
+
+    // Freezes the current memtable and writes it out as a new segment (background thread only)
+    private void flushMemtable() throws IOException {
+        ConcurrentSkipListMap<String, byte[]> frozen;
+        memtableLock.writeLock().lock();  // Waits for writers halfway through a putAll
+        stateLock.lock();
+        try {
+            State current = state;
+            if (current.memtable.isEmpty()) {
+                return;
+            }
+            frozen = current.memtable;
+            state = new State(new ConcurrentSkipListMap<>(), prepend(frozen, current.frozen), current.segments);
+            memtableBytes.set(0);
+        } finally {
+            stateLock.unlock();
+            memtableLock.writeLock().unlock();
+        }
+
+        SegmentFile segment = SegmentFile.write(nextSegmentPath(), frozen.entrySet().iterator());
+
+        stateLock.lock();
+        try {
+            State current = state;
+            List<ConcurrentSkipListMap<String, byte[]>> stillFrozen = new ArrayList<>(current.frozen);
+            stillFrozen.removeIf(memtable -> memtable == frozen);  // By identity; equals would compare contents
+            state = new State(current.memtable, List.copyOf(stillFrozen), prepend(segment, current.segments));
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (state.segments.size() >= COMPACTION_TRIGGER) {
+            background.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    System.err.println("Error compacting segments: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    // Merges every segment into one, keeping the newest value of each key (background thread only)
+    private void compact() throws IOException {
+        List<SegmentFile> inputs = state.segments;
+        if (inputs.size() < COMPACTION_TRIGGER) {
+            return;  // Another compaction got here first
+        }
+
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        for (SegmentFile input : inputs) {
+            sources.add(input.iterator());
+        }
+        Iterator<Map.Entry<String, byte[]>> merged = withoutTombstones(merge(sources));  // No older segment is left for them to hide
+        SegmentFile output = SegmentFile.write(nextSegmentPath(), merged);
+
+        stateLock.lock();
+        try {
+            State current = state;
+            List<SegmentFile> segments = new ArrayList<>(current.segments);
+            segments.removeAll(inputs);  // Only this thread adds segments, so they are all still there
+            segments.add(output);
+            state = new State(current.memtable, current.frozen, List.copyOf(segments));
+        } finally {
+            stateLock.unlock();
+        }
+        writeManifest();
+        for (SegmentFile input : inputs) {
+            input.delete();
+        }
+        System.out.println("Compacted " + inputs.size() + " segments into " + output.path.getFileName() + " (" + output.entries + " entries)");
+    }
+
+    // Merges sorted sources, newest first, into one sorted walk that keeps the newest value of each key
+    private static Iterator<Map.Entry<String, byte[]>> merge(List<Iterator<Map.Entry<String, byte[]>>> sources) {
+        // One cursor per source; on equal keys the newer source (lower age) comes first and wins
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>(Comparator
+                .comparing((Cursor cursor) -> cursor.current.getKey())
+                .thenComparingInt(cursor -> cursor.age));
+        for (int age = 0; age < sources.size(); age++) {
+            Cursor cursor = new Cursor(sources.get(age), age);
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        }
+
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !cursors.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                Cursor newest = cursors.poll();
+                if (newest == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> entry = newest.current;
+                if (newest.advance()) {
+                    cursors.add(newest);
+                }
+                while (!cursors.isEmpty() && cursors.peek().current.getKey().equals(entry.getKey())) {
+                    Cursor older = cursors.poll();  // Shadowed by the newer value
+                    if (older.advance()) {
+                        cursors.add(older);
+                    }
+                }
+                return entry;
+            }
+        };
+    }
+
+    // The walk without the removed keys
+    private static Iterator<Map.Entry<String, byte[]>> withoutTombstones(Iterator<Map.Entry<String, byte[]>> entries) {
+        return new Iterator<>() {
+            private Map.Entry<String, byte[]> next = advance();
+
+            private Map.Entry<String, byte[]> advance() {
+                while (entries.hasNext()) {
+                    Map.Entry<String, byte[]> entry = entries.next();
+                    if (entry.getValue() != SegmentFile.TOMBSTONE) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    // A removed key is kept as a tombstone, since the memtables cannot hold null and the segments need to hide older values
+    private static byte[] stored(byte[] value) {
+        return value == null ? SegmentFile.TOMBSTONE : value;
+    }
+
+    // The value a reader gets for what was stored
+    private static byte[] live(byte[] stored) {
+        return stored == SegmentFile.TOMBSTONE ? null : stored;
+    }
+
+    // Records the live segments and the checkpoint, replacing the manifest atomically (background thread only)
+    private void writeManifest() throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("checkpoint ").append(checkpointSegment).append('\n');
+        for (SegmentFile segment : state.segments) {
+            manifest.append("segment ").append(segment.path.getFileName()).append('\n');
+        }
+        Path temporary = dir.resolve("MANIFEST.tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            file.write(manifest.toString().getBytes());
+            file.getFD().sync();
+        }
+        Files.move(temporary, dir.resolve("MANIFEST"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path nextSegmentPath() {
+        return dir.resolve(String.format("sst-%010d.sst", nextFileNumber++));
+    }
+
+    private static <T> List<T> prepend(T first, List<T> rest) {
+        List<T> list = new ArrayList<>(rest.size() + 1);
+        list.add(first);
+        list.addAll(rest);
+        return List.copyOf(list);
+    }
+
+    // Position in one sorted source during a merge
+    private static class Cursor {
+        final Iterator<Map.Entry<String, byte[]>> entries;
+        final int age;  // 0 for the newest source
+        Map.Entry<String, byte[]> current;
+
+        Cursor(Iterator<Map.Entry<String, byte[]>> entries, int age) {
+            this.entries = entries;
+            this.age = age;
+        }
+
+        boolean advance() {
+            current = entries.hasNext() ? entries.next() : null;
+            return current != null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps every pair in a ConcurrentHashMap on the heap; checkpoints are snapshots of the whole map
+public class MapStorageEngine implements StorageEngine {
+    // A thread-safe map to store key-value pairs, using ConcurrentHashMap to ensure thread safety
+    private final Map<String, byte[]> store = new ConcurrentHashMap<>();
+
+    // Where checkpoints go, or null to keep the data in memory only
+    private final SnapshotStore snapshots;
+
+    public MapStorageEngine() {
+        this(null);
+    }
+
+    public MapStorageEngine(SnapshotStore snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        if (value == null) {
+            store.remove(key);
+        } else {
+            store.put(key, value);
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> pairs) {
+        pairs.forEach(this::put);  // Not store.putAll, which rejects the null values of removals
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> entries() {
+        return store.entrySet().iterator();
+    }
+
+    // Loads the latest snapshot, if any
+    @Override
+    public long recover() throws IOException {
+        if (snapshots == null) {
+            return 0;
+        }
+        long segment = snapshots.latest();
+        if (segment > 0) {
+            snapshots.load(segment, store::put);
+        }
+        return segment;
+    }
+
+    // Writes a snapshot of the map while writers carry on; the log replay after it fixes up whatever changed meanwhile
+    @Override
+    public void checkpoint(long segment) throws IOException {
+        if (snapshots == null) {
+            throw new IllegalStateException("Checkpoints need a snapshot directory");
+        }
+        snapshots.write(segment, store.entrySet());
+        snapshots.deleteOlderThan(segment);
+    }
+
+    @Override
+    public void close() {
+        // Nothing held outside the heap
+    }
+}
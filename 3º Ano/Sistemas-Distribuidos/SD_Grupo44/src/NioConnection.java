@@ -0,0 +1,482 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// State of one client connection in nio mode: authentication step, partial input and queued replies.
+// Reads and flushes run on the owning worker thread; send() may be called from any thread.
+//
+// What a connection may buffer is bounded by maxInFlight: a request frame that does not fit closes the connection,
+// and once the replies queued for it pass the limit the connection is paused, handling no more requests and
+// reading nothing, until they have been written.
+//
+// The worker never waits for the write-ahead log or the backups: a write is applied at once and its reply queued
+// when the logs have it, so the writes of many connections share a sync. Requests after it go on meanwhile, and
+// their replies may overtake it. A connection with MAX_UNLOGGED such writes is paused like one with too many replies.
+public class NioConnection implements ResponseSink {
+    private static final int INITIAL_BUFFER_SIZE = 4096;  // Initial size of the read buffer, grown for large frames
+    private static final int MAX_GATHER = 64;  // Most queued replies handed to a single gathering write
+    private static final int FRAME_HEADER = 1024;  // Room in the read buffer for a frame's command, keys and lengths besides its values
+    private static final int MAX_UNLOGGED = 1024;  // Most writes a connection may have waiting for the logs before it is paused
+
+    // Where the connection is in the login / registration dialogue
+    private enum Stage { CHOICE, LOGIN_USERNAME, LOGIN_PASSWORD, REGISTER_USERNAME, REGISTER_PASSWORD, QUICK_USERNAME, QUICK_PASSWORD, TOKEN, READY }
+
+    // What a password check found, applied to the connection on its worker thread
+    private interface Outcome {
+        void apply() throws IOException;
+    }
+
+    // Bytes waiting to be written, with the stored value they come from if they are sent in place
+    private static final class Outgoing {
+        final ByteBuffer buffer;  // Null for a value sent from its file with transferTo
+        final ValueRef ref;  // Released once written; null for bytes of our own
+        final long size;  // Bytes to write, counted against the in-flight limit
+        long sent = 0;  // Bytes of a file value written so far
+
+        Outgoing(ByteBuffer buffer, ValueRef ref) {
+            this.buffer = buffer;
+            this.ref = ref;
+            this.size = buffer != null ? buffer.remaining() : ref.length();
+        }
+    }
+
+    private final SocketChannel channel;  // Non-blocking channel to the client
+    private final SelectionKey key;  // Registration of the channel with the worker's selector
+    private final NioServer.Worker worker;  // Worker thread that owns this connection
+    private final UserService userService;  // Service that handles user authentication and registration
+    private final Executor passwordChecks;  // Checks passwords and registers users away from the worker thread
+    private final RequestProcessor processor;  // Executes the decoded requests against the storage
+    private final ServerStats stats;  // Counts the connection and its bytes
+    private final int maxInFlight;  // Most bytes of request frame, and of queued replies, the connection may hold
+    private final AtomicLong queuedBytes = new AtomicLong();  // Bytes in the write queue
+    private final AtomicInteger unlogged = new AtomicInteger();  // Writes whose replies wait for the logs
+    private final Queue<Outgoing> writeQueue = new ConcurrentLinkedQueue<>();  // Encoded replies not yet written
+    private final ReentrantLock sendLock = new ReentrantLock();  // Keeps encoding and queueing in the same order
+    private ProtocolCodec codec = TextCodec.INSTANCE;  // Wire format in use; switches to binary on request (guarded by sendLock)
+    private volatile boolean compressed = false;  // Whether the client switched with BinaryCodec.COMPRESSED_VERSION
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);  // Bytes received but not yet parsed
+    private Stage stage = Stage.CHOICE;
+    private String username;  // Username given during login or registration
+    private boolean closeAfterFlush = false;  // Set when the dialogue ends and the last reply is queued
+    private boolean inReadLoop = false;  // True while the worker handles a batch of frames; their replies are flushed together
+    private boolean paused = false;  // Set while the queued replies, or the writes waiting for the logs, are over the limit (worker thread only)
+    private boolean checking = false;  // Set while a password is being checked, until its outcome is applied (worker thread only)
+    private volatile Outcome checked;  // Outcome of the password check, waiting for the worker
+    private volatile boolean logFailed = false;  // Set when a write could not be logged; the worker then closes the connection
+    private volatile boolean closed = false;
+
+    NioConnection(SocketChannel channel, SelectionKey key, NioServer.Worker worker, int maxInFlight,
+                  UserService userService, Executor passwordChecks, RequestProcessor processor, ServerStats stats) {
+        this.channel = channel;
+        this.key = key;
+        this.worker = worker;
+        this.maxInFlight = maxInFlight;
+        this.userService = userService;
+        this.passwordChecks = passwordChecks;
+        this.processor = processor;
+        this.stats = stats;
+    }
+
+    // Starts the dialogue with the same prompt the threaded server sends
+    void start() throws IOException {
+        stats.connectionOpened();
+        sendText("1-Login, 2-Register");
+    }
+
+    // Reads what is available and handles every complete frame in it
+    void onReadable() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= maxInFlight + FRAME_HEADER) {
+                System.err.println("Error handling client: request over the in-flight limit of " + maxInFlight + " bytes");
+                close();
+                return;
+            }
+            growReadBuffer();  // The pending frame is larger than the buffer
+        }
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close();  // The client closed the connection
+            return;
+        }
+        stats.received(read);
+        handleBuffered();
+    }
+
+    // Handles the frames left buffered while the connection was paused, once its replies have drained or the
+    // outcome of its password check is in; closes it instead if one of its writes could not be logged
+    void resume() throws IOException {
+        if (logFailed) {
+            close();
+            return;
+        }
+        Outcome outcome = checked;
+        if (outcome != null) {
+            checked = null;
+            checking = false;
+            outcome.apply();
+        }
+        if (!closed && !paused && !checking) {
+            handleBuffered();
+        }
+    }
+
+    // Handles every complete frame in the read buffer, stopping early if their replies fill the queue past the limit
+    private void handleBuffered() throws IOException {
+        readBuffer.flip();
+        inReadLoop = true;
+        try {
+            while (readBuffer.hasRemaining() && !closeAfterFlush && !paused && !checking && handleNextFrame()) {
+                // Keep going while complete frames are buffered and replies fit
+                paused = queuedBytes.get() > maxInFlight || unlogged.get() >= MAX_UNLOGGED;
+            }
+        } finally {
+            inReadLoop = false;
+            readBuffer.compact();
+        }
+        flush();  // One gathering write for the replies to every frame handled above
+    }
+
+    // Parses and handles one frame; returns false if the frame has not fully arrived yet
+    private boolean handleNextFrame() throws IOException {
+        int available = readBuffer.remaining();
+        ByteArrayInputStream bytes = new ByteArrayInputStream(
+                readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), available);
+        DataInputStream in = new DataInputStream(bytes);
+
+        Request request = null;
+        String message = null;
+        try {
+            // Nothing is executed until the whole frame is parsed, so an incomplete frame is simply retried later
+            if (stage == Stage.READY) {
+                if (!codec.hasCompleteFrame(readBuffer)) {
+                    return false;
+                }
+                request = codec.readRequest(in, maxInFlight);
+            } else {
+                message = in.readUTF();
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        readBuffer.position(readBuffer.position() + available - bytes.available());  // Consume the frame
+
+        if (request != null) {
+            handleRequest(request);
+        } else {
+            handleAuthentication(message);
+        }
+        return true;
+    }
+
+    private void handleRequest(Request request) throws IOException {
+        if (request.type == Request.Type.EXIT) {
+            close();
+            return;
+        }
+        if (request.type == Request.Type.BINARY) {
+            switchProtocol(request);
+            return;
+        }
+        processor.process(request, this);
+    }
+
+    // Answers a "binary" request and, if the version is supported, switches both directions to the binary protocol.
+    // The reply is still text; every frame after it is binary, and with the compressed version carries stored values.
+    private void switchProtocol(Request request) throws IOException {
+        sendLock.lock();
+        try {
+            if (codec == TextCodec.INSTANCE && (request.version == BinaryCodec.VERSION || request.version == BinaryCodec.COMPRESSED_VERSION)) {
+                enqueue(codec.encode(Response.of(request.id, Response.Status.BINARY_OK)));
+                codec = BinaryCodec.INSTANCE;
+                compressed = request.version == BinaryCodec.COMPRESSED_VERSION;
+            } else {
+                enqueue(codec.encode(Response.of(request.id, Response.Status.PROTOCOL_UNSUPPORTED)));
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // One step of the login / registration dialogue, mirroring ClientHandler
+    private void handleAuthentication(String message) throws IOException {
+        switch (stage) {
+            case CHOICE -> {
+                switch (message) {
+                    case "1" -> {
+                        stage = Stage.LOGIN_USERNAME;
+                        sendText("Enter username:");
+                    }
+                    case "3" -> stage = Stage.QUICK_USERNAME;  // Username and password follow without prompts
+                    case "4" -> stage = Stage.TOKEN;
+                    default -> {
+                        stage = Stage.REGISTER_USERNAME;
+                        sendText("Enter new username:");
+                    }
+                }
+            }
+            case QUICK_USERNAME -> {
+                username = message;
+                stage = Stage.QUICK_PASSWORD;
+            }
+            case QUICK_PASSWORD -> checkLogin(message, () -> startSession(username), () -> startSession(null));
+            case TOKEN -> startSession(userService.authenticateToken(message));
+            case LOGIN_USERNAME -> {
+                username = message;
+                stage = Stage.LOGIN_PASSWORD;
+                sendText("Enter password:");
+            }
+            case LOGIN_PASSWORD -> checkLogin(message, () -> {
+                stage = Stage.READY;
+                sendText("Login successful!");
+            }, () -> {
+                closeAfterFlush = true;
+                sendText("Login failed!");
+            });
+            case REGISTER_USERNAME -> {
+                username = message;
+                stage = Stage.REGISTER_PASSWORD;
+                sendText("Enter new password:");
+            }
+            case REGISTER_PASSWORD -> checkPassword(() -> {
+                try {
+                    userService.saveUser(username, message);
+                    return () -> {
+                        stage = Stage.READY;
+                        sendText("Registration successful!");
+                    };
+                } catch (IOException e) {
+                    return () -> {
+                        closeAfterFlush = true;
+                        sendText("Registration failed: " + e.getMessage());
+                    };
+                }
+            });
+            default -> throw new IllegalStateException("Unexpected stage: " + stage);
+        }
+    }
+
+    // Logs the user in with a password; one the server verified before is accepted right away, without hashing
+    private void checkLogin(String password, Outcome success, Outcome failure) throws IOException {
+        if (userService.isVerified(username, password)) {
+            success.apply();
+        } else {
+            checkPassword(() -> userService.authenticate(username, password) ? success : failure);
+        }
+    }
+
+    // Checks a password, or registers a user, on a password check thread: hashing a password is slow on purpose
+    // and would hold up every other connection of the worker. No more frames of this connection are handled until
+    // the worker has applied the outcome, in resume().
+    private void checkPassword(Supplier<Outcome> check) {
+        checking = true;
+        passwordChecks.execute(() -> {
+            Outcome outcome;
+            try {
+                outcome = check.get();
+            } catch (RuntimeException e) {
+                System.err.println("Error checking password: " + e.getMessage());
+                outcome = this::close;
+            }
+            checked = outcome;
+            worker.requestResume(this);
+        });
+    }
+
+    // Answers a one-go login: success and a fresh token for the user, or failure if there is no user
+    private void startSession(String user) throws IOException {
+        if (user == null) {
+            closeAfterFlush = true;
+            sendText("Login failed!");
+            return;
+        }
+        stage = Stage.READY;
+        sendText("Login successful!");
+        sendText(userService.issueToken(user));
+    }
+
+    // Queues a reply; safe to call from any thread.
+    // In the binary protocol a value held by the storage is written straight from it, after a separate header.
+    @Override
+    public void send(Response response) throws IOException {
+        sendLock.lock();
+        try {
+            if (response.ref != null && codec == BinaryCodec.INSTANCE) {
+                enqueue(new Outgoing(ByteBuffer.wrap(BinaryCodec.INSTANCE.encodeHeader(response)), null));
+                // Released once written; a value in a file is sent from it with transferTo
+                enqueue(new Outgoing(response.ref.inFile() ? null : response.ref.buffer(), response.ref));
+                return;
+            }
+            try {
+                enqueue(codec.encode(response));
+            } finally {
+                response.release();
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean compressedValues() {
+        return compressed;
+    }
+
+    @Override
+    public boolean defersWrites() {
+        return true;
+    }
+
+    // Queues the reply to a write once the logs have it, on the thread that completes it; a connection paused for
+    // too many such writes resumes once that reply is written. A write that could not be logged drops the connection.
+    @Override
+    public void sendWhenLogged(CompletableFuture<Response> reply) {
+        unlogged.incrementAndGet();
+        reply.whenComplete((response, failure) -> {
+            unlogged.decrementAndGet();
+            try {
+                if (failure != null) {
+                    throw new IOException("Write not logged", failure);
+                }
+                send(response);
+            } catch (IOException e) {
+                System.err.println("Error handling client: " + e.getMessage());
+                logFailed = true;
+                worker.requestResume(this);  // Closed on the worker thread, like everything else of the connection
+            }
+        });
+    }
+
+    private void sendText(String message) throws IOException {
+        enqueue(TextCodec.encode(message));
+    }
+
+    private void enqueue(byte[] bytes) {
+        enqueue(new Outgoing(ByteBuffer.wrap(bytes), null));
+    }
+
+    private void enqueue(Outgoing outgoing) {
+        if (closed) {
+            release(outgoing);  // The client is gone, drop the reply
+            return;
+        }
+        queuedBytes.addAndGet(outgoing.size);
+        writeQueue.add(outgoing);
+        if (closed) {
+            discardQueue();  // Closed meanwhile; close() may have emptied the queue before our add
+            return;
+        }
+        if (!(inReadLoop && worker.onWorkerThread())) {
+            worker.requestWrite(this);  // Otherwise onReadable flushes once it has handled the whole batch
+        }
+    }
+
+    // Writes as much of the queue as the socket accepts, several replies per system call and values in files
+    // with transferTo; waits for OP_WRITE if the socket fills up, and resumes a paused connection once it drains
+    void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+            while (!writeQueue.isEmpty()) {
+                Outgoing head = writeQueue.peek();
+                if (head.buffer == null) {
+                    head.sent += head.ref.transferTo(head.sent, channel);
+                    if (head.sent < head.size) {
+                        awaitWritable();
+                        return;
+                    }
+                    written(writeQueue.poll());
+                    continue;
+                }
+
+                int count = 0;
+                for (Outgoing outgoing : writeQueue) {
+                    if (outgoing.buffer == null) {
+                        break;  // Sent on its own once the buffers before it are out
+                    }
+                    batch[count++] = outgoing.buffer;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+
+                channel.write(batch, 0, count);  // Gathering write
+                for (int i = 0; i < count && !batch[i].hasRemaining(); i++) {
+                    written(writeQueue.poll());  // Drop the replies that went out completely
+                }
+                if (batch[count - 1].hasRemaining()) {
+                    awaitWritable();
+                    return;
+                }
+            }
+
+            if (closeAfterFlush) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+                if (paused && unlogged.get() < MAX_UNLOGGED) {  // Else the reply that brings it under the limit resumes it
+                    paused = false;
+                    worker.requestResume(this);
+                }
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close();
+        }
+    }
+
+    // The socket is full; continue when it drains, reading meanwhile unless paused
+    private void awaitWritable() {
+        key.interestOps((paused ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+    }
+
+    private void written(Outgoing outgoing) {
+        queuedBytes.addAndGet(-outgoing.size);
+        stats.sent(outgoing.size);
+        release(outgoing);
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        stats.connectionClosed();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error during cleanup: " + e.getMessage());
+        }
+        discardQueue();
+    }
+
+    // Drops every queued reply, giving stored values back to the storage
+    private void discardQueue() {
+        Outgoing outgoing;
+        while ((outgoing = writeQueue.poll()) != null) {
+            release(outgoing);
+        }
+    }
+
+    private static void release(Outgoing outgoing) {
+        if (outgoing != null && outgoing.ref != null) {
+            outgoing.ref.release();
+        }
+    }
+
+    private void growReadBuffer() {
+        ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(readBuffer.capacity() * 2L, maxInFlight + FRAME_HEADER));
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+    }
+}
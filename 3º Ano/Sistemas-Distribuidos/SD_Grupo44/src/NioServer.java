@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Event loop front end: one acceptor thread plus a few I/O threads, each multiplexing many connections
+public class NioServer {
+    private static final int ACCEPT_BACKLOG = 4096;  // Pending connections the kernel may queue for us
+    private static final int PASSWORD_THREADS = 2;  // Threads hashing passwords for logins and registrations
+
+    private final int port;  // Port where the server listens for client connections
+    private final int maxInFlight;  // Bytes a connection may have buffered, see NioConnection
+    private final UserService userService;  // Service that handles user authentication and registration
+    private final RequestProcessor processor;  // Executes the decoded requests against the storage
+    private final ServerStats stats;  // Counts the connections and their bytes
+    private final Worker[] workers;  // I/O threads; accepted connections are spread over them in turn
+    private final ExecutorService passwordChecks;  // Runs the password hashing the workers must not wait for
+    private int nextWorker = 0;  // Index of the worker that gets the next connection
+
+    public NioServer(int port, int ioThreads, int maxInFlight, UserService userService, RequestProcessor processor, ServerStats stats) {
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.userService = userService;
+        this.processor = processor;
+        this.stats = stats;
+        this.workers = new Worker[ioThreads];
+        this.passwordChecks = Executors.newFixedThreadPool(PASSWORD_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "nio-password-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Starts the I/O threads and accepts connections on the calling thread
+    public void start() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(Selector.open());
+                Thread thread = new Thread(workers[i], "nio-worker-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            System.out.println("Server running on port: " + port + " (nio, " + workers.length + " I/O threads)");
+
+            while (true) {
+                SocketChannel channel = serverChannel.accept();  // Blocking accept, the workers never block
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                workers[nextWorker].register(channel);
+                nextWorker = (nextWorker + 1) % workers.length;
+            }
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+        }
+    }
+
+    // One I/O thread with its own selector
+    class Worker implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();  // Accepted, not yet registered
+        private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();  // Replies queued by other threads
+        private final Queue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<>();  // Paused connections whose replies drained
+        private volatile Thread thread;  // Thread running this worker's loop
+
+        Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        // Hands a freshly accepted channel to this worker (called from the acceptor thread)
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        boolean onWorkerThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        // Asks the worker to flush a connection's write queue.
+        // From the worker's own thread this is done right away, without a selector round trip.
+        void requestWrite(NioConnection connection) {
+            if (onWorkerThread()) {
+                connection.flush();
+            } else {
+                pendingWrites.add(connection);
+                selector.wakeup();
+            }
+        }
+
+        // Asks the worker to go on with the requests a connection has buffered, once it is done with the current
+        // key; called from the worker's own thread, so a connection never resumes from inside its own flush, or
+        // from a password check thread once it has an outcome for the connection
+        void requestResume(NioConnection connection) {
+            pendingResumes.add(connection);
+            selector.wakeup();  // Makes the next select return at once
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                    registerNewChannels();
+
+                    NioConnection connection;
+                    while ((connection = pendingWrites.poll()) != null) {
+                        connection.flush();
+                    }
+                    while ((connection = pendingResumes.poll()) != null) {
+                        resume(connection);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                } catch (IOException e) {
+                    System.err.println("I/O worker error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(channel, key, this, maxInFlight, userService, passwordChecks, processor, stats);
+                    key.attach(connection);
+                    connection.start();  // Sends the authentication prompt
+                } catch (IOException e) {
+                    System.err.println("Error registering client: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void resume(NioConnection connection) {
+            try {
+                connection.resume();
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                connection.close();  // The client went away or sent something we cannot parse
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with this channel
+        }
+    }
+}
@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps values outside the Java heap, so a large store does not mean a large heap to collect.
+//
+// Memory comes in 1 MB slabs, direct buffers or regions of a memory-mapped scratch file. A slab is cut into
+// chunks of one size class (64 bytes growing by GROWTH_FACTOR up to the slab size); a value goes into the
+// smallest class it fits, and freed chunks go back to their class's free list. Values bigger than a slab get
+// a buffer of their own. The index holds one small Slot per key, and a slot's chunk is only reused once the
+// index and every reader have released it, so a get never sees the bytes of a later write.
+public class OffHeapStorageEngine implements StorageEngine {
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final Map<String, Slot> index = new ConcurrentHashMap<>();  // Key to the slot holding its value
+    private final SizeClass[] classes;  // Ascending chunk sizes
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];  // Every slab handed out so far, replaced (not changed) when one is added
+    private final ReentrantLock slabLock = new ReentrantLock();  // Serializes adding slabs
+    private final long maxBytes;  // Most slab memory to allocate
+    private final FileChannel mappedFile;  // Scratch file the slabs are mapped from, or null for direct buffers
+    private final SnapshotStore snapshots;  // Where checkpoints go, or null to keep the data in memory only
+    private final AtomicLong usedBytes = new AtomicLong();  // Bytes in chunks that hold a value
+
+    // Slabs from direct buffers, or from a scratch file when mappedFile is given (its contents are not reused
+    // after a restart; recovery goes through the snapshots and the log as with the other engines)
+    public OffHeapStorageEngine(long maxBytes, Path mappedFile, SnapshotStore snapshots) throws IOException {
+        this.maxBytes = maxBytes;
+        this.snapshots = snapshots;
+        if (mappedFile == null) {
+            this.mappedFile = null;
+        } else {
+            Path parent = mappedFile.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            this.mappedFile = FileChannel.open(mappedFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        List<SizeClass> sizes = new ArrayList<>();
+        for (double size = MIN_CHUNK_SIZE; size < SLAB_SIZE; size *= GROWTH_FACTOR) {
+            sizes.add(new SizeClass((int) size + 7 & ~7));  // Keep chunks 8-byte aligned
+        }
+        sizes.add(new SizeClass(SLAB_SIZE));
+        this.classes = sizes.toArray(new SizeClass[0]);
+    }
+
+    @Override
+    public byte[] get(String key) {
+        ValueRef value = acquire(key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return value.toByteArray();
+        } finally {
+            value.release();
+        }
+    }
+
+    // The value in place, without copying it onto the heap; the caller must release it
+    @Override
+    public ValueRef acquire(String key) {
+        while (true) {
+            Slot slot = index.get(key);
+            if (slot == null) {
+                return null;
+            }
+            if (slot.retain()) {
+                return slot;
+            }
+            // Replaced and freed between the lookup and the retain; look again
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        Slot previous = value == null ? index.remove(key) : index.put(key, store(value));
+        if (previous != null) {
+            previous.release();  // The index's reference; the chunk is freed once readers are done with it
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> pairs) {
+        pairs.forEach(this::put);  // StorageService's stripe locks make the batch atomic
+    }
+
+    @Override
+    public long recover() throws IOException {
+        if (snapshots == null) {
+            return 0;
+        }
+        long segment = snapshots.latest();
+        if (segment > 0) {
+            snapshots.load(segment, this::put);
+        }
+        return segment;
+    }
+
+    @Override
+    public void checkpoint(long segment) throws IOException {
+        if (snapshots == null) {
+            throw new IllegalStateException("Checkpoints need a snapshot directory");
+        }
+        snapshots.write(segment, this::entries);
+        snapshots.deleteOlderThan(segment);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mappedFile != null) {
+            mappedFile.close();
+        }
+    }
+
+    // Bytes of off-heap memory holding values, and reserved in slabs
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    public long slabBytes() {
+        return (long) slabs.length * SLAB_SIZE;
+    }
+
+    // Copies a value into a chunk of the right size class, or a buffer of its own if it is bigger than a slab
+    private Slot store(byte[] value) {
+        Slot slot;
+        if (value.length > SLAB_SIZE) {
+            slot = new Slot(ByteBuffer.allocateDirect(value.length), 0, value.length, null);
+        } else {
+            SizeClass sizeClass = classFor(value.length);
+            long address = sizeClass.allocate();
+            slot = new Slot(slabs[(int) (address >>> 32)], address, value.length, sizeClass);
+            usedBytes.addAndGet(sizeClass.chunkSize);
+        }
+        slot.memory.put(slot.offset(), value);
+        return slot;
+    }
+
+    private SizeClass classFor(int length) {
+        int low = 0;
+        int high = classes.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (classes[middle].chunkSize >= length) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return classes[low];
+    }
+
+    // Reserves a new slab and returns its number
+    private int newSlab() {
+        slabLock.lock();
+        try {
+            int number = slabs.length;
+            if ((long) (number + 1) * SLAB_SIZE > maxBytes) {
+                throw new IllegalStateException("Off-heap storage is full (" + (maxBytes >> 20) + " MB)");
+            }
+            ByteBuffer slab = mappedFile == null
+                    ? ByteBuffer.allocateDirect(SLAB_SIZE)
+                    : mappedFile.map(FileChannel.MapMode.READ_WRITE, (long) number * SLAB_SIZE, SLAB_SIZE);
+            ByteBuffer[] grown = Arrays.copyOf(slabs, number + 1);
+            grown[number] = slab;
+            slabs = grown;
+            return number;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    // Every key with a heap copy of its value; copies one value at a time
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> entries() {
+        Iterator<String> keys = index.keySet().iterator();
+        return new Iterator<>() {
+            private Map.Entry<String, byte[]> next = advance();
+
+            private Map.Entry<String, byte[]> advance() {
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    byte[] value = get(key);
+                    if (value != null) {
+                        return Map.entry(key, value);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    // Chunks of one size; a chunk address is   slab number << 32 | offset in the slab
+    private class SizeClass {
+        final int chunkSize;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long[] free = new long[16];  // Stack of free chunk addresses (guarded by lock)
+        private int freeCount = 0;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        long allocate() {
+            lock.lock();
+            try {
+                if (freeCount == 0) {
+                    carve(newSlab());
+                }
+                return free[--freeCount];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void free(long address) {
+            lock.lock();
+            try {
+                push(address);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Cuts a fresh slab into chunks of this size (lock held)
+        private void carve(int slab) {
+            for (int offset = SLAB_SIZE - chunkSize; offset >= 0; offset -= chunkSize) {
+                push((long) slab << 32 | offset);
+            }
+        }
+
+        private void push(long address) {
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = address;
+        }
+    }
+
+    // Where one value lives, with a count of the references to it (the index's and every reader's)
+    private final class Slot implements ValueRef {
+        private static final AtomicIntegerFieldUpdater<Slot> REFS = AtomicIntegerFieldUpdater.newUpdater(Slot.class, "refs");
+
+        final ByteBuffer memory;  // Slab, or a buffer of its own
+        final long address;  // Chunk address in the size class (its low half is the offset in memory)
+        final int length;
+        final SizeClass sizeClass;  // Null when the value has a buffer of its own
+        private volatile int refs = 1;  // Starts with the index's reference
+
+        Slot(ByteBuffer memory, long address, int length, SizeClass sizeClass) {
+            this.memory = memory;
+            this.address = address;
+            this.length = length;
+            this.sizeClass = sizeClass;
+        }
+
+        int offset() {
+            return (int) address;
+        }
+
+        // Takes a reference unless the slot was already freed
+        boolean retain() {
+            while (true) {
+                int current = refs;
+                if (current == 0) {
+                    return false;
+                }
+                if (REFS.compareAndSet(this, current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+            if (REFS.decrementAndGet(this) == 0 && sizeClass != null) {
+                usedBytes.addAndGet(-sizeClass.chunkSize);
+                sizeClass.free(address);
+            }
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return memory.slice(offset(), length).asReadOnlyBuffer();
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+// Wire format of the requests and replies exchanged once a client is authenticated.
+// Every connection starts with the text protocol and may switch to the binary one (see BinaryCodec).
+public interface ProtocolCodec {
+    // Reads one full request frame; throws EOFException if the stream ends in the middle of it, and a
+    // ProtocolException before allocating anything if its values add up to more than maxBytes
+    Request readRequest(DataInputStream input, int maxBytes) throws IOException;
+
+    // Writes one reply frame
+    void writeResponse(DataOutputStream output, Response response) throws IOException;
+
+    // Encodes a reply into a standalone byte array, for transports that cannot write to a stream
+    default byte[] encode(Response response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeResponse(new DataOutputStream(bytes), response);
+        return bytes.toByteArray();
+    }
+
+    // Whether the buffer (between position and limit) holds the whole next request.
+    // Codecs that cannot tell cheaply answer true, and the caller retries on EOFException.
+    default boolean hasCompleteFrame(ByteBuffer buffer) {
+        return true;
+    }
+}
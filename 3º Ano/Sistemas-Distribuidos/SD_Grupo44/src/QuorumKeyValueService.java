@@ -0,0 +1,455 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Key-value commands kept on several servers at once, Dynamo style, with the client coordinating.
+//
+// Every key is stored on the first `replicas` (N) nodes clockwise from it on a HashRing. A put stamps the
+// value and sends it to all N with vput, and completes once W of them have it; a get asks all N with vget,
+// completes once R have answered, and returns the value with the highest stamp. R + W > N makes every read
+// see the latest completed write. The servers keep whichever stamp is higher, so the latest write wins no
+// matter the order in which replicas receive it.
+//  - Read repair: a replica that answers a get with an older version, or none, is sent the newest one,
+//    including replicas that answer after the get has completed.
+//  - Hinted handoff: when a replica cannot be reached the write goes to the next node on the ring beyond the
+//    N, which counts towards W, and the coordinator keeps a hint to pass the write on to the intended
+//    replica when it comes back. Hints live in this client's memory and are lost if it exits first; read
+//    repair then catches the replica up.
+// Stamps are the wall clock in milliseconds shifted left 20 bits, with a random writer id in the low bits so
+// two clients never produce the same stamp, and never below a stamp this client has seen. Keys written here
+// hold stamped values and must not be mixed with plain puts. multiPut and multiGet are per-key quorums and
+// not atomic; getWhen, scan, puts with a time to live, the conditional writes (cas, putIfAbsent,
+// incrementBy), transactions and streamed values are not supported.
+public class QuorumKeyValueService implements KeyValueStore {
+    private static final int VIRTUAL_NODES = 160;  // Points per node on the ring, as in ShardedKeyValueService
+    private static final int WRITER_BITS = 20;  // Low bits of a stamp that hold the writer id
+    private static final long HANDOFF_MILLIS = 1000;  // Pause between attempts to reconnect and deliver hints
+
+    private final HashRing<Node> ring = new HashRing<>(VIRTUAL_NODES);
+    private final List<Node> nodes = new ArrayList<>();
+    private final int replicas;  // N, copies of every key
+    private final int readQuorum;  // R, by default
+    private final int writeQuorum;  // W, by default
+    private final String username;
+    private final String password;
+    private final boolean compress;  // Whether the connections ask for compressed values
+    private final long writerId = new Random().nextInt(1 << WRITER_BITS);
+    private final AtomicLong lastStamp = new AtomicLong();  // Highest stamp issued or seen, without the writer id
+    private final Queue<Hint> hints = new ConcurrentLinkedQueue<>();  // Writes waiting for their replica to come back
+    private final Thread handoff;
+    private volatile boolean closed = false;
+
+    // A write that a replica missed
+    private record Hint(Node target, String key, long stamp, byte[] value) {}
+
+    // One server and its connection, reopened by the handoff thread after it is lost
+    private final class Node {
+        final String address;
+        volatile Client client;  // null while the server cannot be reached
+        String token;  // Session token of the last connection, tried before the password on reconnecting (guarded by this)
+
+        Node(String address) {
+            this.address = address;
+        }
+
+        // The connection's key-value commands, or null if the server is down
+        AsyncKeyValueService service() {
+            Client current = client;
+            if (current != null && !current.async().isOpen()) {
+                down(current);
+                return null;
+            }
+            return current != null ? current.async() : null;
+        }
+
+        synchronized void connect() throws IOException {
+            if (client == null) {
+                int colon = address.lastIndexOf(':');
+                String host = address.substring(0, colon);
+                int port = Integer.parseInt(address.substring(colon + 1));
+                if (token != null) {
+                    try {
+                        client = Client.resume(host, port, token, compress);
+                    } catch (IOException e) {
+                        token = null;  // Expired, or the server restarted with another secret; the password still works
+                    }
+                }
+                if (client == null) {
+                    client = Client.connect(host, port, username, password, compress);
+                }
+                token = client.sessionToken();
+            }
+        }
+
+        synchronized void down(Client failed) {
+            if (client == failed) {
+                client = null;
+                System.err.println("Lost replica " + address);
+                try {
+                    failed.close();
+                } catch (IOException ignored) {
+                    // Already broken
+                }
+            }
+        }
+
+        synchronized void disconnect() throws IOException {
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+        }
+    }
+
+    private QuorumKeyValueService(int replicas, int readQuorum, int writeQuorum, String username, String password, boolean compress) {
+        if (replicas < 1 || readQuorum < 1 || writeQuorum < 1 || readQuorum > replicas || writeQuorum > replicas) {
+            throw new IllegalArgumentException("Expected 1 <= R, W <= N but got N=" + replicas + " R=" + readQuorum + " W=" + writeQuorum);
+        }
+        this.replicas = replicas;
+        this.readQuorum = readQuorum;
+        this.writeQuorum = writeQuorum;
+        this.username = username;
+        this.password = password;
+        this.compress = compress;
+        this.handoff = new Thread(this::handOff, "hinted-handoff");
+        handoff.setDaemon(true);
+    }
+
+    // Connects and logs in to every node, given as "host:port". Nodes that cannot be reached now are kept on the
+    // ring and retried in the background, but at least W must be up.
+    public static QuorumKeyValueService connect(List<String> addresses, int replicas, int readQuorum, int writeQuorum,
+                                                String username, String password) throws IOException {
+        return connect(addresses, replicas, readQuorum, writeQuorum, username, password, false);
+    }
+
+    // As connect, sending large values compressed to the nodes that support it
+    public static QuorumKeyValueService connect(List<String> addresses, int replicas, int readQuorum, int writeQuorum,
+                                                String username, String password, boolean compress) throws IOException {
+        if (replicas > addresses.size()) {
+            throw new IllegalArgumentException(replicas + " replicas need at least as many nodes, but got " + addresses.size());
+        }
+        QuorumKeyValueService service = new QuorumKeyValueService(replicas, readQuorum, writeQuorum, username, password, compress);
+        int reachable = 0;
+        for (String address : addresses) {
+            Node node = service.new Node(address);
+            try {
+                node.connect();
+                reachable++;
+            } catch (IOException e) {
+                System.err.println("Error connecting to " + address + ": " + e.getMessage());
+            }
+            service.nodes.add(node);
+            service.ring.add(address, node);
+        }
+        if (reachable < writeQuorum) {
+            service.close();
+            throw new IOException("Only " + reachable + " of " + addresses.size() + " servers are reachable");
+        }
+        service.handoff.start();
+        return service;
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value) {
+        return put(key, value, writeQuorum);
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value, int writeQuorum) {
+        if (writeQuorum < 1 || writeQuorum > replicas) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Write quorum must be between 1 and " + replicas));
+        }
+        long stamp = nextStamp();
+        List<Node> preferred = ring.nodesFor(key, replicas);
+        Deque<Node> fallbacks = new ArrayDeque<>(ring.nodesFor(key, nodes.size()).subList(preferred.size(), nodes.size()));
+        Quorum quorum = new Quorum(writeQuorum, preferred.size());
+        for (Node node : preferred) {
+            store(node, key, stamp, value).whenComplete((stored, error) -> {
+                if (error == null) {
+                    quorum.success();
+                } else {
+                    hints.add(new Hint(node, key, stamp, value));
+                    handOff(fallbacks, key, stamp, value, quorum);
+                }
+            });
+        }
+        return quorum.result.thenApply(done -> null);
+    }
+
+    // Writes a replica's copy to the next fallback node that takes it, or counts it failed if none does
+    private void handOff(Deque<Node> fallbacks, String key, long stamp, byte[] value, Quorum quorum) {
+        Node fallback;
+        synchronized (fallbacks) {
+            fallback = fallbacks.pollFirst();
+        }
+        if (fallback == null) {
+            quorum.failure();
+            return;
+        }
+        store(fallback, key, stamp, value).whenComplete((stored, error) -> {
+            if (error == null) {
+                quorum.success();
+            } else {
+                handOff(fallbacks, key, stamp, value, quorum);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value, Duration ttl) {
+        // The replicas would remove their copies at different times, and read repair would bring them back
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("Time to live is not available on a quorum-replicated keyspace"));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String key) {
+        return get(key, readQuorum);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String key, int readQuorum) {
+        if (readQuorum < 1 || readQuorum > replicas) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Read quorum must be between 1 and " + replicas));
+        }
+        List<Node> preferred = ring.nodesFor(key, replicas);
+        Read read = new Read(key, readQuorum, preferred.size());
+        for (Node node : preferred) {
+            AsyncKeyValueService service = node.service();
+            if (service == null) {
+                read.failure();
+                continue;
+            }
+            service.vget(key).whenComplete((version, error) -> {
+                if (error == null) {
+                    read.reply(node, version);
+                } else {
+                    node.service();  // Notices a lost connection
+                    read.failure();
+                }
+            });
+        }
+        return read.result.thenApply(newest -> newest != null ? newest.value() : null);
+    }
+
+    @Override
+    public CompletableFuture<Void> multiPut(Map<String, byte[]> pairs) {
+        List<CompletableFuture<Void>> replies = new ArrayList<>();
+        pairs.forEach((key, value) -> replies.add(put(key, value)));
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> multiGet(List<String> keys) {
+        Map<String, CompletableFuture<byte[]>> replies = new LinkedHashMap<>();
+        for (String key : keys) {
+            replies.put(key, get(key));
+        }
+        return CompletableFuture.allOf(replies.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, byte[]> values = new HashMap<>();
+            replies.forEach((key, reply) -> values.put(key, reply.join()));
+            return values;
+        });
+    }
+
+    // Conditional writes would need the replicas to agree on the current value, which a sloppy quorum cannot promise
+    @Override
+    public CompletableFuture<Boolean> cas(String key, byte[] expected, byte[] value) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("cas is not available on a quorum-replicated keyspace"));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putIfAbsent(String key, byte[] value) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("putifabsent is not available on a quorum-replicated keyspace"));
+    }
+
+    @Override
+    public CompletableFuture<Long> incrementBy(String key, long delta) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("increment is not available on a quorum-replicated keyspace"));
+    }
+
+    // Likewise streamed values, whose chunks would each need a quorum of their own
+    @Override
+    public CompletableFuture<Void> putChunk(String key, long upload, int index, long length, byte[] bytes) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("streamed values are not available on a quorum-replicated keyspace"));
+    }
+
+    @Override
+    public CompletableFuture<ValueChunk> getChunk(String key, long upload, int index) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("streamed values are not available on a quorum-replicated keyspace"));
+    }
+
+    // Likewise transactions, whose versions are each server's own
+    @Override
+    public CompletableFuture<ReadSet> readSet(List<String> keys) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("transactions are not available on a quorum-replicated keyspace"));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> commit(Map<String, Long> readVersions, Map<String, byte[]> writes) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("transactions are not available on a quorum-replicated keyspace"));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getWhen(String key, String keyCond, byte[] valueCond) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("getwhen is not available on a quorum-replicated keyspace"));
+    }
+
+    @Override
+    public CompletableFuture<ScanChunk> scan(String from, String to, int limit) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("scan is not available on a quorum-replicated keyspace"));
+    }
+
+    // Stops delivering hints and disconnects from every node
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        handoff.interrupt();
+        IOException failure = null;
+        for (Node node : nodes) {
+            try {
+                node.disconnect();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (!hints.isEmpty()) {
+            System.err.println("Dropping " + hints.size() + " undelivered hints");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Sends one stamped write to a node; fails at once if the node is down
+    private CompletableFuture<Long> store(Node node, String key, long stamp, byte[] value) {
+        AsyncKeyValueService service = node.service();
+        if (service == null) {
+            return CompletableFuture.failedFuture(new IOException("Replica " + node.address + " is down"));
+        }
+        return service.vput(key, stamp, value).whenComplete((stored, error) -> {
+            if (error != null) {
+                node.service();  // Notices a lost connection
+            }
+        });
+    }
+
+    // A stamp above every stamp issued or seen so far, and unique to this writer
+    private long nextStamp() {
+        long now = System.currentTimeMillis() << WRITER_BITS;
+        long time = lastStamp.updateAndGet(last -> Math.max(now, last + (1L << WRITER_BITS)));
+        return time | writerId;
+    }
+
+    // Keeps later stamps from this client above one another writer produced
+    private void observe(long stamp) {
+        lastStamp.accumulateAndGet(stamp & -(1L << WRITER_BITS), Math::max);
+    }
+
+    // Body of the handoff thread: reconnects lost nodes and passes hints on to the replicas that are back
+    private void handOff() {
+        while (!closed) {
+            try {
+                Thread.sleep(HANDOFF_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Node node : nodes) {
+                if (node.service() == null) {
+                    try {
+                        node.connect();
+                        System.out.println("Replica " + node.address + " is back");
+                    } catch (IOException e) {
+                        // Still down; tried again next round
+                    }
+                }
+            }
+            for (int pending = hints.size(); pending > 0; pending--) {
+                Hint hint = hints.poll();
+                if (hint == null) {
+                    break;
+                }
+                store(hint.target(), hint.key(), hint.stamp(), hint.value()).whenComplete((stored, error) -> {
+                    if (error != null) {
+                        hints.add(hint);
+                    }
+                });
+            }
+        }
+    }
+
+    // Counts the outcomes of a write against its quorum
+    private static final class Quorum {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        private int needed;  // Successes still missing
+        private int remaining;  // Outcomes not yet in
+
+        Quorum(int needed, int total) {
+            this.needed = needed;
+            this.remaining = total;
+        }
+
+        synchronized void success() {
+            remaining--;
+            if (--needed == 0) {
+                result.complete(null);
+            }
+        }
+
+        synchronized void failure() {
+            if (--remaining < needed && !result.isDone()) {
+                result.completeExceptionally(new IOException("Write quorum not reached: " + needed + " more replicas needed"));
+            }
+        }
+    }
+
+    // Collects the replies to a get, picks the newest version once R are in, and repairs the replicas behind it
+    private final class Read {
+        final CompletableFuture<Versioned> result = new CompletableFuture<>();
+        private final String key;
+        private final int needed;
+        private int remaining;
+        private final Map<Node, Versioned> replies = new HashMap<>();  // Null versions for replicas without the key
+        private Versioned newest;  // Once decided
+
+        Read(String key, int needed, int total) {
+            this.key = key;
+            this.needed = needed;
+            this.remaining = total;
+        }
+
+        synchronized void reply(Node node, Versioned version) {
+            remaining--;
+            if (version != null) {
+                observe(version.stamp());
+            }
+            if (result.isDone()) {
+                repair(node, version);  // Late reply
+                return;
+            }
+            replies.put(node, version);
+            if (replies.size() == needed) {
+                for (Versioned candidate : replies.values()) {
+                    if (candidate != null && (newest == null || candidate.stamp() > newest.stamp())) {
+                        newest = candidate;
+                    }
+                }
+                result.complete(newest);
+                replies.forEach(this::repair);
+            }
+        }
+
+        synchronized void failure() {
+            if (--remaining + replies.size() < needed && !result.isDone()) {
+                result.completeExceptionally(new IOException("Read quorum not reached: only " + replies.size() + " of " + needed + " replicas answered"));
+            }
+        }
+
+        private void repair(Node node, Versioned version) {
+            if (newest != null && (version == null || version.stamp() < newest.stamp())) {
+                store(node, key, newest.stamp(), newest.value());
+            }
+        }
+    }
+}
@@ -0,0 +1,6 @@
+import java.util.Map;
+
+// Values read for a transaction (null for missing keys) and the version each was read at, which the commit
+// checks to make sure none of them has been written since
+public record ReadSet(Map<String, byte[]> values, Map<String, Long> versions) {
+}
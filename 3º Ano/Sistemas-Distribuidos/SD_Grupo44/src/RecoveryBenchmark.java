@@ -0,0 +1,51 @@
+import java.nio.file.*;
+
+// Compares restart time from the write-ahead log alone with restart from a snapshot plus the log after it.
+// Usage: java RecoveryBenchmark [keys] [value size] [rewrites per key], e.g. "java RecoveryBenchmark 1000000 100 3"
+public class RecoveryBenchmark {
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int rewrites = args.length > 2 ? Integer.parseInt(args[2]) : 3;  // History the log has to replay per key
+        Path dir = Files.createTempDirectory("recovery-bench");
+        byte[] value = new byte[valueSize];
+
+        // Build up a log with several versions of every key
+        WriteAheadLog wal = new WriteAheadLog(dir, WriteAheadLog.SyncPolicy.OS, 0);
+        StorageService storage = new StorageService(new MapStorageEngine(new SnapshotStore(dir)), wal);
+        for (int round = 0; round < rewrites; round++) {
+            for (int i = 0; i < keys; i++) {
+                storage.put("key" + i, value);
+            }
+        }
+        wal.close();
+        System.out.printf("log only: %d ms%n", timeRecovery(dir));
+
+        // Snapshot, then a short tail of updates after it
+        wal = new WriteAheadLog(dir, WriteAheadLog.SyncPolicy.OS, 0);
+        storage = new StorageService(new MapStorageEngine(new SnapshotStore(dir)), wal);
+        storage.checkpoint();
+        for (int i = 0; i < keys / 100; i++) {
+            storage.put("key" + i, value);
+        }
+        wal.close();
+        System.out.printf("snapshot + tail: %d ms%n", timeRecovery(dir));
+
+        try (var files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    // Opens the storage in the directory and returns how long that took
+    private static long timeRecovery(Path dir) throws Exception {
+        long start = System.nanoTime();
+        WriteAheadLog wal = new WriteAheadLog(dir, WriteAheadLog.SyncPolicy.OS, 0);
+        new StorageService(new MapStorageEngine(new SnapshotStore(dir)), wal);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        wal.close();
+        return millis;
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ordered record of the writes a server streams to its backups.
+//
+// StorageService appends every put and multiPut under the stripe locks it applies them under, so the
+// sequence numbers give each key's writes in the order they were applied. The most recent records are kept
+// in a bounded backlog: a backup that reconnects within it resumes from the last record it applied, one
+// that fell further behind gets a full copy instead. The history id names this numbering; a backup that
+// applies the stream carries the same id and numbers on, so after a failover the other backups can resume
+// from the promoted one.
+public class ReplicationLog {
+    // When a write is acknowledged to the client
+    public enum AckMode {
+        SYNC,   // Once every connected backup has applied it
+        ASYNC   // Right away; backups catch up on their own
+    }
+
+    // One logged write: its sequence number and its pairs, encoded as   int count | (UTF key | int length | value)*
+    public record Entry(long sequence, byte[] body) {
+    }
+
+    private final AckMode ackMode;
+    private final long maxBacklogBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();  // Signalled when a record is added
+    private final Condition acknowledged = lock.newCondition();  // Signalled when a backup reports progress or leaves
+    private Entry[] backlog = new Entry[1024];  // Ring buffer of the latest records (guarded by lock)
+    private int head = 0;  // Index of the oldest record in the ring
+    private int size = 0;
+    private long backlogBytes = 0;
+    private long lastSequence = 0;  // Sequence number of the latest record
+    private long historyId = new Random().nextLong();
+    private final Map<Object, Long> followers = new HashMap<>();  // Last sequence each connected backup applied
+    private final TreeMap<Long, CompletableFuture<Void>> replicated = new TreeMap<>();  // Futures of whenReplicated, by sequence
+
+    public ReplicationLog(AckMode ackMode, long maxBacklogBytes) {
+        this.ackMode = ackMode;
+        this.maxBacklogBytes = maxBacklogBytes;
+    }
+
+    // Adds a write and returns its sequence number; the caller holds the stripe locks of its keys
+    public long append(Map<String, byte[]> pairs) {
+        byte[] body = encode(pairs);
+        lock.lock();
+        try {
+            Entry entry = new Entry(++lastSequence, body);
+            if (size == backlog.length) {
+                backlog = grow(backlog, head, size);
+                head = 0;
+            }
+            backlog[(head + size++) % backlog.length] = entry;
+            backlogBytes += body.length;
+            while (backlogBytes > maxBacklogBytes && size > 1) {
+                backlogBytes -= backlog[head].body.length;
+                backlog[head] = null;
+                head = (head + 1) % backlog.length;
+                size--;
+            }
+            appended.signalAll();
+            return entry.sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // With sync acknowledgements, waits until every connected backup has applied the given record
+    public void awaitReplicated(long sequence) throws InterruptedIOException {
+        if (ackMode != AckMode.SYNC) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (followers.values().stream().anyMatch(applied -> applied < sequence)) {
+                acknowledged.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the backups");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // As awaitReplicated, without waiting: the future completes once every connected backup has applied the record,
+    // on the thread that handles the last acknowledgement unless it already has
+    public CompletableFuture<Void> whenReplicated(long sequence) {
+        if (ackMode != AckMode.SYNC) {
+            return CompletableFuture.completedFuture(null);
+        }
+        lock.lock();
+        try {
+            if (followers.values().stream().allMatch(applied -> applied >= sequence)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return replicated.computeIfAbsent(sequence, s -> new CompletableFuture<>());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Records after the given one, waiting up to the timeout for one to arrive (an empty list if none did),
+    // or null if the backlog no longer goes back that far
+    public List<Entry> readAfter(long sequence, int maxEntries, long timeoutMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (lastSequence <= sequence) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return List.of();
+                }
+                appended.awaitNanos(remaining);
+            }
+            long oldest = lastSequence - size + 1;
+            if (sequence + 1 < oldest) {
+                return null;
+            }
+            int count = (int) Math.min(maxEntries, lastSequence - sequence);
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(backlog[(int) ((head + sequence + 1 - oldest + i) % backlog.length)]);
+            }
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether a backup that applied up to the given record of the given history can resume from the backlog
+    public boolean canResume(long historyId, long sequence) {
+        lock.lock();
+        try {
+            return historyId == this.historyId && sequence <= lastSequence && sequence + 1 >= lastSequence - size + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Starts waiting for a backup's acknowledgements in sync mode, counting it as having applied up to the given record
+    public void register(Object follower, long applied) {
+        lock.lock();
+        try {
+            followers.put(follower, applied);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void acknowledge(Object follower, long applied) {
+        List<CompletableFuture<Void>> done;
+        lock.lock();
+        try {
+            followers.computeIfPresent(follower, (key, previous) -> Math.max(previous, applied));
+            acknowledged.signalAll();
+            done = replicatedFutures();
+        } finally {
+            lock.unlock();
+        }
+        done.forEach(future -> future.complete(null));  // Outside the lock: they go on to send the replies
+    }
+
+    // Stops waiting for a backup that disconnected
+    public void unregister(Object follower) {
+        List<CompletableFuture<Void>> done;
+        lock.lock();
+        try {
+            followers.remove(follower);
+            acknowledged.signalAll();
+            done = replicatedFutures();
+        } finally {
+            lock.unlock();
+        }
+        done.forEach(future -> future.complete(null));
+    }
+
+    // Takes out the futures of whenReplicated for the records every connected backup has now applied; called with
+    // the lock held
+    private List<CompletableFuture<Void>> replicatedFutures() {
+        if (replicated.isEmpty()) {
+            return List.of();
+        }
+        Map<Long, CompletableFuture<Void>> due = replicated.headMap(
+                followers.values().stream().min(Long::compare).orElse(Long.MAX_VALUE), true);
+        List<CompletableFuture<Void>> done = new ArrayList<>(due.values());
+        due.clear();
+        return done;
+    }
+
+    // Adopts a primary's history after a full copy that covers its records up to the given one (backups only)
+    public void reset(long historyId, long sequence) {
+        lock.lock();
+        try {
+            this.historyId = historyId;
+            this.lastSequence = sequence;
+            Arrays.fill(backlog, null);
+            head = 0;
+            size = 0;
+            backlogBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long lastSequence() {
+        lock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long historyId() {
+        lock.lock();
+        try {
+            return historyId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static byte[] encode(Map<String, byte[]> pairs) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            writePairs(output, pairs);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // Cannot happen with an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Map<String, byte[]> decode(byte[] body) throws IOException {
+        return readPairs(new DataInputStream(new ByteArrayInputStream(body)));
+    }
+
+    static void writePairs(DataOutputStream output, Map<String, byte[]> pairs) throws IOException {
+        output.writeInt(pairs.size());
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            output.writeUTF(pair.getKey());
+            if (pair.getValue() == null) {
+                output.writeInt(-1);  // A removal
+            } else {
+                output.writeInt(pair.getValue().length);
+                output.write(pair.getValue());
+            }
+        }
+    }
+
+    static Map<String, byte[]> readPairs(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = input.readUTF();
+            int length = input.readInt();
+            byte[] value = length < 0 ? null : new byte[length];
+            if (value != null) {
+                input.readFully(value);
+            }
+            pairs.put(key, value);
+        }
+        return pairs;
+    }
+
+    private static Entry[] grow(Entry[] ring, int head, int size) {
+        Entry[] grown = new Entry[ring.length * 2];
+        for (int i = 0; i < size; i++) {
+            grown[i] = ring[(head + i) % ring.length];
+        }
+        return grown;
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+// Streams the replication log to the backups that connect to the replication port.
+//
+// A backup opens with   long history id | long last applied sequence   and then only sends acknowledgements
+// (long sequence). If the backlog still holds what it is missing the stream resumes there; otherwise it first
+// gets a full copy of the store, taken while writers carry on, and then the records after the point the copy
+// started from. Frames from the primary start with one type byte:
+//   COPY_BEGIN    long history id | long sequence the copy covers
+//   COPY_PAIRS    pairs (int count | (UTF key | int length | value)*)
+//   COPY_END
+//   RECORDS       long latest sequence | int count | (long sequence | int length | body)*
+//   HEARTBEAT     long latest sequence, sent when there is nothing new for HEARTBEAT_MILLIS
+// Every frame carries the primary's latest sequence so the backup can tell how stale it is.
+public class ReplicationServer {
+    static final byte COPY_BEGIN = 1;
+    static final byte COPY_PAIRS = 2;
+    static final byte COPY_END = 3;
+    static final byte RECORDS = 4;
+    static final byte HEARTBEAT = 5;
+
+    static final long HEARTBEAT_MILLIS = 100;
+    private static final int ACK_TIMEOUT_MILLIS = 5000;  // Silence after which a backup is given up on
+    private static final int MAX_BATCH = 512;  // Records or copied pairs per frame
+
+    private final int port;
+    private final StorageService storage;
+    private final ReplicationLog log;
+    private final BackupReplica replica;  // When this server is itself a backup, which serves no one until promoted; else null
+
+    public ReplicationServer(int port, StorageService storage, ReplicationLog log, BackupReplica replica) {
+        this.port = port;
+        this.storage = storage;
+        this.log = log;
+        this.replica = replica;
+    }
+
+    // Starts accepting backups on a background thread
+    public void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Replication port: " + port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread sender = new Thread(() -> serve(socket), "replication-" + socket.getRemoteSocketAddress());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    System.err.println("Error accepting backup: " + e.getMessage());
+                }
+            }
+        }, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Brings one backup up to date and keeps streaming to it until it disconnects
+    private void serve(Socket socket) {
+        Object follower = new Object();  // Identifies this backup to the log's acknowledgement tracking
+        try (socket;
+             DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(ACK_TIMEOUT_MILLIS);
+            long historyId = input.readLong();
+            long position = input.readLong();
+            if (replica != null && !replica.acceptsWrites()) {
+                return;  // Not a primary (yet); the backup tries its next address
+            }
+            System.out.println("Backup connected: " + socket.getRemoteSocketAddress());
+
+            if (!log.canResume(historyId, position)) {
+                position = sendCopy(output);
+            }
+            log.register(follower, position);
+            startAckReader(socket, input, follower);
+
+            while (true) {
+                List<ReplicationLog.Entry> entries = log.readAfter(position, MAX_BATCH, HEARTBEAT_MILLIS);
+                if (entries == null) {
+                    throw new IOException("Backup fell behind the replication backlog");  // It reconnects and gets a full copy
+                }
+                if (entries.isEmpty()) {
+                    output.writeByte(HEARTBEAT);
+                    output.writeLong(log.lastSequence());
+                } else {
+                    output.writeByte(RECORDS);
+                    output.writeLong(log.lastSequence());
+                    output.writeInt(entries.size());
+                    for (ReplicationLog.Entry entry : entries) {
+                        output.writeLong(entry.sequence());
+                        output.writeInt(entry.body().length);
+                        output.write(entry.body());
+                    }
+                    position = entries.get(entries.size() - 1).sequence();
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Backup disconnected: " + socket.getRemoteSocketAddress() + " (" + e.getMessage() + ")");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            log.unregister(follower);
+        }
+    }
+
+    // Sends every pair in the store and returns the sequence the stream continues after
+    private long sendCopy(DataOutputStream output) throws IOException {
+        long position = storage.replicationPoint();
+        output.writeByte(COPY_BEGIN);
+        output.writeLong(log.historyId());
+        output.writeLong(position);
+
+        long count = 0;
+        Map<String, byte[]> batch = new HashMap<>();
+        for (Iterator<Map.Entry<String, byte[]>> entries = storage.entries(); entries.hasNext(); ) {
+            Map.Entry<String, byte[]> entry = entries.next();
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() == MAX_BATCH || !entries.hasNext()) {
+                output.writeByte(COPY_PAIRS);
+                ReplicationLog.writePairs(output, batch);
+                count += batch.size();
+                batch.clear();
+            }
+        }
+        output.writeByte(COPY_END);
+        output.flush();
+        System.out.println("Full copy sent to backup: " + count + " pairs, stream continues after " + position);
+        return position;
+    }
+
+    // Reads the backup's acknowledgements on a thread of its own; closing the socket ends the stream too
+    private void startAckReader(Socket socket, DataInputStream input, Object follower) {
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    log.acknowledge(follower, input.readLong());
+                }
+            } catch (IOException e) {
+                log.unregister(follower);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+        }, "replication-acks-" + socket.getRemoteSocketAddress());
+        reader.setDaemon(true);
+        reader.start();
+    }
+}
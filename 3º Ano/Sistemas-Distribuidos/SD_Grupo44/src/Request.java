@@ -0,0 +1,224 @@
+import java.util.*;
+
+public class Request {
+    // Commands a client can send to the server, with their name in the text protocol and opcode in the binary one
+    public enum Type {
+        UNKNOWN("unknown", 0),
+        PUT("put", 1),
+        GET("get", 2),
+        MULTIPUT("multiput", 3),
+        MULTIGET("multiget", 4),
+        GETWHEN("getwhen", 5),
+        EXIT("exit", 6),
+        BINARY("binary", 7),  // Switches the connection to the binary protocol; only valid in the text protocol
+        VPUT("vput", 8),  // Stores a value with a version stamp unless a later one is already stored
+        VGET("vget", 9),  // Retrieves a value with its version stamp
+        SCAN("scan", 10),  // Retrieves one chunk of the pairs in a key range, in key order
+        PUTTTL("putttl", 11),  // Stores a value that expires after a time to live
+        CAS("cas", 12),  // Stores a value if the key still holds the expected one
+        INCREMENT("increment", 13),  // Adds to a 64-bit counter and returns the new count
+        PUTIFABSENT("putifabsent", 14),  // Stores a value if the key does not exist
+        TXGET("txget", 15),  // Retrieves values with the versions a transaction commits against
+        TXCOMMIT("txcommit", 16),  // Stores values if none of the keys read has changed since
+        PUTCHUNK("putchunk", 17),  // Stores one chunk of a streamed value; the last one makes the value visible
+        GETCHUNK("getchunk", 18),  // Retrieves one chunk of a streamed value
+        STATS("stats", 19);  // Retrieves the server's latency histograms and counters as text
+
+        private final String command;  // Name of the command in the text protocol
+        private final byte opcode;  // Code of the command in the binary protocol
+
+        Type(String command, int opcode) {
+            this.command = command;
+            this.opcode = (byte) opcode;
+        }
+
+        public String command() {
+            return command;
+        }
+
+        public byte opcode() {
+            return opcode;
+        }
+
+        // Finds the type for a command name, UNKNOWN if the name is not a known command
+        public static Type fromCommand(String command) {
+            for (Type type : values()) {
+                if (type.command.equals(command)) {
+                    return type;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        // Finds the type for a binary opcode, UNKNOWN if the opcode is not a known command
+        public static Type fromOpcode(byte opcode) {
+            for (Type type : values()) {
+                if (type.opcode == opcode) {
+                    return type;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    final int id;               // Chosen by the client and echoed in the reply, so replies can arrive in any order
+    final Type type;            // Which command this request is
+    String key;                 // Key for put, get and getwhen
+    byte[] value;               // Value for put, or the bytes of a chunk
+    String keyCond;             // Condition key for getwhen
+    byte[] valueCond;           // Condition value for getwhen
+    Map<String, byte[]> pairs;  // Key-value pairs for multiput and txcommit
+    List<String> keys;          // Keys for multiget and txget, in the order the client sent them
+    int version;                // Protocol version asked for by binary
+    long stamp;                 // Version stamp for vput
+    String from;                // First key of a scan (inclusive), "" for the start of the store
+    String to;                  // End of a scan (exclusive), "" for no end
+    int limit;                  // Most pairs a scan chunk may carry
+    long ttlMillis;             // Time to live for putttl
+    byte[] expected;            // Value cas expects the key to hold, null for none
+    long delta;                 // Amount increment adds
+    Map<String, Long> versions; // Keys a txcommit read, with the version each was read at
+    long upload;                // Upload a chunk belongs to, chosen by the client; 0 in getchunk for the current value
+    int index;                  // Position of a chunk in its value, from 0
+    long length;                // Length of the whole streamed value on its last chunk, -1 on the others
+
+    private Request(int id, Type type) {
+        this.id = id;
+        this.type = type;
+    }
+
+    // Factory methods, one per command
+    static Request put(int id, String key, byte[] value) {
+        Request request = new Request(id, Type.PUT);
+        request.key = key;
+        request.value = value;
+        return request;
+    }
+
+    static Request putTtl(int id, String key, long ttlMillis, byte[] value) {
+        Request request = new Request(id, Type.PUTTTL);
+        request.key = key;
+        request.ttlMillis = ttlMillis;
+        request.value = value;
+        return request;
+    }
+
+    static Request get(int id, String key) {
+        Request request = new Request(id, Type.GET);
+        request.key = key;
+        return request;
+    }
+
+    static Request multiPut(int id, Map<String, byte[]> pairs) {
+        Request request = new Request(id, Type.MULTIPUT);
+        request.pairs = pairs;
+        return request;
+    }
+
+    static Request multiGet(int id, List<String> keys) {
+        Request request = new Request(id, Type.MULTIGET);
+        request.keys = keys;
+        return request;
+    }
+
+    static Request getWhen(int id, String key, String keyCond, byte[] valueCond) {
+        Request request = new Request(id, Type.GETWHEN);
+        request.key = key;
+        request.keyCond = keyCond;
+        request.valueCond = valueCond;
+        return request;
+    }
+
+    static Request vput(int id, String key, long stamp, byte[] value) {
+        Request request = new Request(id, Type.VPUT);
+        request.key = key;
+        request.stamp = stamp;
+        request.value = value;
+        return request;
+    }
+
+    static Request vget(int id, String key) {
+        Request request = new Request(id, Type.VGET);
+        request.key = key;
+        return request;
+    }
+
+    static Request scan(int id, String from, String to, int limit) {
+        Request request = new Request(id, Type.SCAN);
+        request.from = from;
+        request.to = to;
+        request.limit = limit;
+        return request;
+    }
+
+    static Request cas(int id, String key, byte[] expected, byte[] value) {
+        Request request = new Request(id, Type.CAS);
+        request.key = key;
+        request.expected = expected;
+        request.value = value;
+        return request;
+    }
+
+    static Request increment(int id, String key, long delta) {
+        Request request = new Request(id, Type.INCREMENT);
+        request.key = key;
+        request.delta = delta;
+        return request;
+    }
+
+    static Request putIfAbsent(int id, String key, byte[] value) {
+        Request request = new Request(id, Type.PUTIFABSENT);
+        request.key = key;
+        request.value = value;
+        return request;
+    }
+
+    static Request txGet(int id, List<String> keys) {
+        Request request = new Request(id, Type.TXGET);
+        request.keys = keys;
+        return request;
+    }
+
+    static Request txCommit(int id, Map<String, Long> versions, Map<String, byte[]> pairs) {
+        Request request = new Request(id, Type.TXCOMMIT);
+        request.versions = versions;
+        request.pairs = pairs;
+        return request;
+    }
+
+    static Request putChunk(int id, String key, long upload, int index, long length, byte[] value) {
+        Request request = new Request(id, Type.PUTCHUNK);
+        request.key = key;
+        request.upload = upload;
+        request.index = index;
+        request.length = length;
+        request.value = value;
+        return request;
+    }
+
+    static Request getChunk(int id, String key, long upload, int index) {
+        Request request = new Request(id, Type.GETCHUNK);
+        request.key = key;
+        request.upload = upload;
+        request.index = index;
+        return request;
+    }
+
+    static Request stats(int id) {
+        return new Request(id, Type.STATS);
+    }
+
+    static Request exit(int id) {
+        return new Request(id, Type.EXIT);
+    }
+
+    static Request binary(int id, int version) {
+        Request request = new Request(id, Type.BINARY);
+        request.version = version;
+        return request;
+    }
+
+    static Request unknown(int id) {
+        return new Request(id, Type.UNKNOWN);
+    }
+}
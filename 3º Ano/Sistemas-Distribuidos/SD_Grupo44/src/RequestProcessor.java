@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+// Executes decoded requests against the storage, independently of how the client is connected
+public class RequestProcessor {
+    private static final int MAX_SCAN_CHUNK = 1000;  // Most pairs in one scan reply, whatever the client asks for
+
+    // Commands that write, whose replies wait for the write-ahead log and the backups
+    private static final Set<Request.Type> WRITES = EnumSet.of(Request.Type.PUT, Request.Type.PUTTTL, Request.Type.MULTIPUT,
+            Request.Type.VPUT, Request.Type.CAS, Request.Type.PUTIFABSENT, Request.Type.INCREMENT, Request.Type.TXCOMMIT,
+            Request.Type.PUTCHUNK);
+
+    private final StorageService storageService;  // Service that stores the key-value pairs
+    private final GetWhenService getWhenService;  // Service that answers getwhen requests once their condition holds
+    private final BackupReplica replica;  // Replication state when this server is a backup, otherwise null
+    private final ValueCompression compression = new ValueCompression();  // Converts the values of clients that did not negotiate compression
+    private final ServerStats stats;  // Where the time each command takes is recorded, and what the stats command reports
+
+    public RequestProcessor(StorageService storageService, GetWhenService getWhenService) {
+        this(storageService, getWhenService, null);
+    }
+
+    public RequestProcessor(StorageService storageService, GetWhenService getWhenService, BackupReplica replica) {
+        this(storageService, getWhenService, replica, new ServerStats());
+    }
+
+    public RequestProcessor(StorageService storageService, GetWhenService getWhenService, BackupReplica replica, ServerStats stats) {
+        this.storageService = storageService;
+        this.getWhenService = getWhenService;
+        this.replica = replica;
+        this.stats = stats;
+        stats.track(compression);
+    }
+
+    // Executes a request and hands its reply to the sink.
+    // getwhen replies are sent later, from another thread, so replies may reach the client out of order;
+    // the request id in each reply tells the client which request it answers.
+    // A command is timed until its reply is handed to the connection, a getwhen until its condition is met.
+    // For a sink that defers writes, a write is applied here and its reply handed over once the logs have it.
+    public void process(Request request, ResponseSink sink) throws IOException {
+        long start = System.nanoTime();
+        ResponseSink connection = sink;
+        if (sink.compressedValues()) {
+            compression.received(request);  // Stored as they came
+        } else {
+            compression.escape(request);
+            ResponseSink client = sink;
+            sink = response -> client.send(compression.decode(response));
+        }
+        if (request.type == Request.Type.GETWHEN) {
+            ResponseSink waiting = sink;
+            sink = response -> {
+                stats.commandDone(Request.Type.GETWHEN, start);
+                waiting.send(response);
+            };
+        }
+
+        if (replica != null) {
+            Response.Status refusal = switch (request.type) {
+                // A txget too: the versions it hands out are only known to the server the commit goes to
+                case PUT, MULTIPUT, VPUT, PUTTTL, CAS, INCREMENT, PUTIFABSENT, TXGET, TXCOMMIT, PUTCHUNK ->
+                        replica.acceptsWrites() ? null : Response.Status.NOT_PRIMARY;
+                case GET, MULTIGET, GETWHEN, VGET, SCAN, GETCHUNK -> replica.isFresh() ? null : Response.Status.STALE_REPLICA;
+                default -> null;
+            };
+            if (refusal != null) {
+                sink.send(Response.of(request.id, refusal));
+                return;
+            }
+        }
+
+        if (WRITES.contains(request.type) && connection.defersWrites()) {
+            // The reply carries no value, so there is nothing to decode for a plain client
+            connection.sendWhenLogged(storageService.withoutWaiting(() -> write(request)).thenApply(reply -> {
+                stats.commandDone(request.type, start);
+                return reply;
+            }));
+            return;
+        }
+
+        switch (request.type) {
+            case PUT, PUTTTL, MULTIPUT, VPUT, CAS, PUTIFABSENT, INCREMENT, TXCOMMIT, PUTCHUNK -> sink.send(write(request));
+            case GET -> {
+                ValueRef value = storageService.acquire(request.key);  // The sink releases it once written
+                sink.send(value != null
+                        ? Response.withRef(request.id, Response.Status.GET_OK, value)
+                        : Response.of(request.id, Response.Status.GET_NOT_FOUND));
+            }
+            case MULTIGET -> {
+                Map<String, byte[]> results = storageService.multiGet(request.keys);
+                sink.send(Response.multiGet(request.id, request.keys, results));
+            }
+            case GETWHEN -> getWhenService.addRequest(request.id, request.key, request.keyCond, request.valueCond, sink);
+            case VGET -> {
+                Versioned stored = Versioned.decode(storageService.get(request.key));
+                sink.send(stored != null
+                        ? Response.withStamp(request.id, Response.Status.VGET_OK, stored.stamp(), stored.value())
+                        : Response.of(request.id, Response.Status.GET_NOT_FOUND));
+            }
+            case TXGET -> {
+                ReadSet read = storageService.readSet(request.keys);
+                sink.send(Response.txGet(request.id, request.keys, read.values(), read.versions()));
+            }
+            case GETCHUNK -> sink.send(chunk(request));
+            case SCAN -> {
+                ScanChunk chunk = storageService.scan(request.from, request.to, Math.min(Math.max(request.limit, 1), MAX_SCAN_CHUNK));
+                sink.send(Response.scan(request.id, chunk.pairs(), chunk.next()));
+            }
+            case STATS -> sink.send(Response.withValue(request.id, Response.Status.STATS_OK,
+                    stats.report().getBytes(StandardCharsets.UTF_8)));
+            default -> sink.send(Response.of(request.id, Response.Status.UNKNOWN_COMMAND));
+        }
+        if (request.type != Request.Type.GETWHEN) {
+            stats.commandDone(request.type, start);
+        }
+    }
+
+    // Applies a write command and returns its reply
+    private Response write(Request request) {
+        return switch (request.type) {
+            case PUT -> {
+                storageService.put(request.key, request.value);
+                yield Response.of(request.id, Response.Status.PUT_OK);
+            }
+            case PUTTTL -> {
+                storageService.put(request.key, request.value, request.ttlMillis);
+                yield Response.of(request.id, Response.Status.PUT_OK);
+            }
+            case MULTIPUT -> {
+                storageService.multiPut(request.pairs);
+                yield Response.of(request.id, Response.Status.MULTIPUT_OK);
+            }
+            case VPUT -> {
+                // Kept only if it is later than what is stored, so replicas converge whatever order writes arrive in
+                Versioned stored = Versioned.decode(storageService.update(request.key, current -> {
+                    Versioned existing = Versioned.decode(current);
+                    return existing != null && existing.stamp() >= request.stamp
+                            ? current
+                            : new Versioned(request.stamp, request.value).encode();
+                }));
+                yield Response.withStamp(request.id, Response.Status.VPUT_OK, stored.stamp(), null);
+            }
+            case CAS -> Response.of(request.id, storageService.compareAndSet(request.key, request.expected, request.value)
+                    ? Response.Status.CAS_OK : Response.Status.CAS_FAILED);
+            case PUTIFABSENT -> Response.of(request.id, storageService.putIfAbsent(request.key, request.value)
+                    ? Response.Status.CAS_OK : Response.Status.CAS_FAILED);
+            case INCREMENT -> {
+                try {
+                    long count = storageService.incrementBy(request.key, request.delta);
+                    yield Response.withStamp(request.id, Response.Status.INCREMENT_OK, count, null);
+                } catch (IllegalStateException e) {
+                    yield Response.of(request.id, Response.Status.NOT_A_COUNTER);  // The value is left as it was
+                }
+            }
+            case TXCOMMIT -> Response.of(request.id, storageService.commit(request.versions, request.pairs)
+                    ? Response.Status.TX_OK : Response.Status.TX_CONFLICT);
+            case PUTCHUNK -> {
+                storageService.putChunk(request.key, request.upload, request.index, request.value);
+                boolean last = request.length >= 0;  // The chunks before it were handled first, in order
+                yield Response.of(request.id, !last || storageService.commitStream(request.key, request.upload, request.index + 1, request.length)
+                        ? Response.Status.PUT_OK : Response.Status.STREAM_INCOMPLETE);
+            }
+            default -> throw new IllegalArgumentException("Not a write: " + request.type);
+        };
+    }
+
+    // What compressed values have saved and cost so far
+    public ValueCompression.Stats compressionStats() {
+        return compression.stats();
+    }
+
+    // Reply to a getchunk: the chunk in place, as long as the value is still the upload the client started reading
+    private Response chunk(Request request) {
+        StreamedValue stream = storageService.streamed(request.key);
+        if (stream == null || request.index < 0 || request.index >= stream.chunks()) {
+            return Response.of(request.id, Response.Status.GET_NOT_FOUND);
+        }
+        if (request.upload != 0 && request.upload != stream.upload()) {
+            return Response.of(request.id, Response.Status.STREAM_REPLACED);
+        }
+        ValueRef chunk = storageService.acquireChunk(request.key, stream.upload(), request.index);
+        return chunk != null
+                ? Response.chunk(request.id, stream, chunk)
+                : Response.of(request.id, Response.Status.STREAM_REPLACED);  // Removed by a newer upload since we looked
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.*;
+
+public class Response {
+    // Outcome of a request, with the status string the text protocol sends for it and its binary code
+    public enum Status {
+        PUT_OK("Put_Ok", 1),
+        GET_OK("Get_Ok", 2),
+        GET_NOT_FOUND("Get_Not_Found", 3),
+        MULTIPUT_OK("MultiPut_Ok", 4),
+        MULTIGET_OK("MultiGet_Ok", 5),
+        GETWHEN_OK("GetWhen_Ok", 6),
+        GETWHEN_NOT_FOUND("GetWhen_Not_Found", 7),
+        GETWHEN_TIMEOUT("GetWhen_Timeout", 8),
+        BINARY_OK("Binary_Ok", 9),
+        PROTOCOL_UNSUPPORTED("Protocol_Unsupported", 10),
+        NOT_PRIMARY("Not_Primary", 11),  // Write sent to a backup; send it to the primary
+        STALE_REPLICA("Stale_Replica", 12),  // Backup too far behind its primary to serve reads
+        VPUT_OK("VPut_Ok", 13),  // Carries the stamp now stored, which is higher than the one sent if a later write won
+        VGET_OK("VGet_Ok", 14),
+        SCAN_OK("Scan_Ok", 15),
+        GETWHEN_EXPIRED("GetWhen_Expired", 16),  // The condition key expired while the request waited on it
+        CAS_OK("Cas_Ok", 17),  // The value was stored (cas, putifabsent)
+        CAS_FAILED("Cas_Failed", 18),  // The key did not hold the expected value, or existed for putifabsent
+        INCREMENT_OK("Increment_Ok", 19),  // Carries the new count
+        NOT_A_COUNTER("Not_A_Counter", 20),  // increment on a key holding something other than a counter
+        TXGET_OK("TxGet_Ok", 21),  // Carries the values read with their versions
+        TX_OK("Tx_Ok", 22),  // The transaction's writes were stored
+        TX_CONFLICT("Tx_Conflict", 23),  // A key read was written since; nothing was stored
+        CHUNK_OK("Chunk_Ok", 24),  // Carries a chunk of a streamed value and what the value is
+        STREAM_REPLACED("Stream_Replaced", 25),  // The upload a getchunk asked for has been replaced by a newer one
+        STREAM_INCOMPLETE("Stream_Incomplete", 26),  // The last chunk arrived but an earlier one is missing or expired
+        STATS_OK("Stats_Ok", 27),  // Carries the server's statistics report as UTF-8 text
+        UNKNOWN_COMMAND("Unknown command", 0);
+
+        private final String text;  // Status as written by the text protocol
+        private final byte code;  // Status as written by the binary protocol
+
+        Status(String text, int code) {
+            this.text = text;
+            this.code = (byte) code;
+        }
+
+        public String text() {
+            return text;
+        }
+
+        public byte code() {
+            return code;
+        }
+
+        // Finds the status for a binary code; unknown codes are reported as UNKNOWN_COMMAND
+        public static Status fromCode(byte code) {
+            for (Status status : values()) {
+                if (status.code == code) {
+                    return status;
+                }
+            }
+            return UNKNOWN_COMMAND;
+        }
+
+        // Finds the status for its text form, or null if there is none
+        public static Status fromText(String text) {
+            for (Status status : values()) {
+                if (status.text.equals(text)) {
+                    return status;
+                }
+            }
+            return null;
+        }
+    }
+
+    final int id;                      // Id of the request this replies to
+    final Status status;               // Outcome of the request
+    final byte[] value;                // Value for get and getwhen replies
+    final ValueRef ref;                // Value of a get reply handed over in place instead; released by the sink once written
+    final List<String> keys;           // Keys of a multiget reply, in request order
+    final Map<String, byte[]> values;  // Values of a multiget reply (null for missing keys), or the pairs of a scan chunk in key order
+    final long stamp;                  // Version stamp of a vput or vget reply, or the count of an increment reply
+    final String next;                 // Key the next scan chunk starts at, null once the scan is done
+    final Map<String, Long> versions;  // Version each key of a txget reply was read at
+    final StreamedValue stream;        // Streamed value a chunk reply belongs to
+
+    private Response(int id, Status status, byte[] value, ValueRef ref, List<String> keys, Map<String, byte[]> values, long stamp, String next,
+                     Map<String, Long> versions, StreamedValue stream) {
+        this.id = id;
+        this.status = status;
+        this.value = value;
+        this.ref = ref;
+        this.keys = keys;
+        this.values = values;
+        this.stamp = stamp;
+        this.next = next;
+        this.versions = versions;
+        this.stream = stream;
+    }
+
+    // Response that carries nothing but its status
+    static Response of(int id, Status status) {
+        return new Response(id, status, null, null, null, null, 0, null, null, null);
+    }
+
+    // Response that carries a single value
+    static Response withValue(int id, Status status, byte[] value) {
+        return new Response(id, status, value, null, null, null, 0, null, null, null);
+    }
+
+    // Response that carries a value still held by the storage; whoever writes it must release it
+    static Response withRef(int id, Status status, ValueRef ref) {
+        return new Response(id, status, null, ref, null, null, 0, null, null, null);
+    }
+
+    // Response that carries a version stamp, and the value for a vget
+    static Response withStamp(int id, Status status, long stamp, byte[] value) {
+        return new Response(id, status, value, null, null, null, stamp, null, null, null);
+    }
+
+    // The same reply carrying another single value, held on the heap
+    Response replacingValue(byte[] value) {
+        return new Response(id, status, value, null, keys, values, stamp, next, versions, stream);
+    }
+
+    // Length of the single value, or -1 if the response has none
+    int valueLength() {
+        return ref != null ? ref.length() : value != null ? value.length : -1;
+    }
+
+    // Lets go of the storage's value once the response has been written (or dropped)
+    void release() {
+        if (ref != null) {
+            ref.release();
+        }
+    }
+
+    // Reply to a multiget, keeping the order in which the client asked for the keys
+    static Response multiGet(int id, List<String> keys, Map<String, byte[]> values) {
+        return new Response(id, Status.MULTIGET_OK, null, null, keys, values, 0, null, null, null);
+    }
+
+    // Reply to a txget, keeping the order in which the client asked for the keys
+    static Response txGet(int id, List<String> keys, Map<String, byte[]> values, Map<String, Long> versions) {
+        return new Response(id, Status.TXGET_OK, null, null, keys, values, 0, null, versions, null);
+    }
+
+    // Reply to a getchunk: the chunk's bytes, in place, and the value they belong to
+    static Response chunk(int id, StreamedValue stream, ValueRef ref) {
+        return new Response(id, Status.CHUNK_OK, null, ref, null, null, 0, null, null, stream);
+    }
+
+    // Chunk received on the client side
+    static Response chunk(int id, StreamedValue stream, byte[] bytes) {
+        return new Response(id, Status.CHUNK_OK, bytes, null, null, null, 0, null, null, stream);
+    }
+
+    // Reply to a scan: one chunk of pairs, ordered by key, and where the next chunk starts
+    static Response scan(int id, Map<String, byte[]> pairs, String next) {
+        return new Response(id, Status.SCAN_OK, null, null, null, pairs, 0, next, null, null);
+    }
+}
@@ -0,0 +1,25 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+// Destination of the replies for one client connection.
+// Implementations must accept calls from any thread, since getwhen replies arrive from the GetWhenService.
+public interface ResponseSink {
+    void send(Response response) throws IOException;
+
+    // Whether the client negotiated compressed values, so that they reach it in their stored form (see ValueCompression)
+    default boolean compressedValues() {
+        return false;
+    }
+
+    // Whether the thread handing requests to the RequestProcessor must not wait for the write-ahead log or the
+    // backups (an event loop). The reply to a write then comes to sendWhenLogged() instead of send().
+    default boolean defersWrites() {
+        return false;
+    }
+
+    // Sends the reply to a write once it completes, i.e. once the logs have the write, from whichever thread
+    // completes it; if it fails the write is not acknowledged and the connection is dropped instead
+    default void sendWhenLogged(CompletableFuture<Response> reply) {
+        throw new UnsupportedOperationException("Writes are not deferred");
+    }
+}
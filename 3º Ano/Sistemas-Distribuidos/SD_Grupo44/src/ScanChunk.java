@@ -0,0 +1,5 @@
+import java.util.Map;
+
+// One chunk of a scan: pairs in key order, and the key the next chunk starts at, or null once the scan is done
+public record ScanChunk(Map<String, byte[]> pairs, String next) {
+}
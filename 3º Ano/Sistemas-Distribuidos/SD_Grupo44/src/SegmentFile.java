@@ -0,0 +1,349 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Immutable file of key-value pairs sorted by key, written by LsmStorageEngine when a memtable is flushed
+// or segments are compacted.
+//
+// The file is   entries | index | long index offset | long entry count | int magic   where an entry is
+// int key length | key | int value length | value   (length -1 and no value for a removed key) and the index is an int count followed by
+// (int key length | key | long offset) for the first entry of every block of about BLOCK_SIZE bytes.
+// The index stays in memory, so a lookup reads a single block.
+//
+// Values can also be handed out in place, as a region of the file that is sent with FileChannel.transferTo. Each
+// such region holds a reference to the file, so a compaction that deletes it only closes it once they are released.
+public class SegmentFile {
+    private static final int MAGIC = 0x53445354;  // "SDST"
+    private static final int FOOTER_SIZE = 20;
+    private static final int BLOCK_SIZE = 4096;  // Data bytes covered by one index entry
+    private static final int READ_AHEAD = 2 * BLOCK_SIZE;  // Bytes read at a time while scanning a block
+
+    // Value of a removed key, which hides the older values of the key in the segments after it; compared by identity
+    static final byte[] TOMBSTONE = new byte[0];
+
+    // Where a value is in the file; a length of -1 for a removed key
+    record Entry(long position, int length) {
+        boolean removed() {
+            return length < 0;
+        }
+    }
+
+    final Path path;
+    final long entries;  // Number of pairs in the file
+    private final FileChannel channel;  // Only positional reads, so lookups from many threads do not interfere
+    private final String[] indexKeys;  // First key of every block, ascending
+    private final long[] indexOffsets;  // File offset of every block
+    private final long dataEnd;  // Offset where the entries end and the index starts
+    private final AtomicInteger references = new AtomicInteger(1);  // The engine's, plus one per region handed out
+
+    private SegmentFile(Path path, FileChannel channel, String[] indexKeys, long[] indexOffsets, long dataEnd, long entries) {
+        this.path = path;
+        this.channel = channel;
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.dataEnd = dataEnd;
+        this.entries = entries;
+    }
+
+    // Writes pairs given in ascending key order to a new file and opens it
+    public static SegmentFile write(Path path, Iterator<Map.Entry<String, byte[]>> sorted) throws IOException {
+        List<String> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        long offset = 0;
+        long blockStart = -BLOCK_SIZE;
+        long count = 0;
+
+        try (FileOutputStream file = new FileOutputStream(path.toFile());
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            while (sorted.hasNext()) {
+                Map.Entry<String, byte[]> entry = sorted.next();
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = entry.getValue();
+                if (offset - blockStart >= BLOCK_SIZE) {
+                    indexKeys.add(entry.getKey());  // This entry starts a new block
+                    indexOffsets.add(offset);
+                    blockStart = offset;
+                }
+                output.writeInt(key.length);
+                output.write(key);
+                if (value == TOMBSTONE) {
+                    output.writeInt(-1);
+                } else {
+                    output.writeInt(value.length);
+                    output.write(value);
+                }
+                offset += 8 + key.length + value.length;
+                count++;
+            }
+
+            output.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] key = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                output.writeInt(key.length);
+                output.write(key);
+                output.writeLong(indexOffsets.get(i));
+            }
+            output.writeLong(offset);
+            output.writeLong(count);
+            output.writeInt(MAGIC);
+            output.flush();
+            file.getFD().sync();
+        }
+        return open(path);
+    }
+
+    // Opens an existing file, reading its index into memory
+    public static SegmentFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < FOOTER_SIZE + 4) {
+                throw new IOException("Segment file too short: " + path);
+            }
+            ByteBuffer footer = readAt(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long entries = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not a segment file: " + path);
+            }
+
+            ByteBuffer index = readAt(channel, indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+            int count = index.getInt();
+            String[] keys = new String[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[index.getInt()];
+                index.get(key);
+                keys[i] = new String(key, StandardCharsets.UTF_8);
+                offsets[i] = index.getLong();
+            }
+            return new SegmentFile(path, channel, keys, offsets, indexOffset, entries);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Value stored under the key in this file, TOMBSTONE if the file has it removed, or null if the file does not have it
+    public byte[] get(String key) throws IOException {
+        Entry entry = locate(key);
+        return entry == null ? null : read(entry);
+    }
+
+    // The value of an entry found by locate(), TOMBSTONE for a removed key
+    public byte[] read(Entry entry) throws IOException {
+        return entry.removed() ? TOMBSTONE : readAt(channel, entry.position, entry.length).array();
+    }
+
+    // The value of an entry as a region of the file, sent without being read onto the heap; must be released.
+    // Null if the file was closed meanwhile (it was compacted away), in which case the caller looks again.
+    public ValueRef acquire(Entry entry) {
+        for (int count = references.get(); count > 0; count = references.get()) {
+            if (references.compareAndSet(count, count + 1)) {
+                return new Region(entry.position, entry.length);
+            }
+        }
+        return null;
+    }
+
+    // Where the key's value is in this file, or null if the file does not have it.
+    // The block is scanned through a window of READ_AHEAD bytes, so a large value that does not match is
+    // skipped rather than read.
+    public Entry locate(String key) throws IOException {
+        int block = floorBlock(key);
+        if (block < 0) {
+            return null;  // Smaller than every key in the file
+        }
+        long position = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        long bufferStart = position;
+        ByteBuffer buffer = window(position, end, 0);
+
+        while (position < end) {
+            int offset = (int) (position - bufferStart);
+            if (offset + 4 > buffer.limit()) {
+                buffer = window(position, end, 4);
+                bufferStart = position;
+                offset = 0;
+            }
+            int keyLength = buffer.getInt(offset);
+            if (offset + 8 + keyLength > buffer.limit()) {
+                buffer = window(position, end, 8 + keyLength);
+                bufferStart = position;
+                offset = 0;
+            }
+            byte[] candidate = new byte[keyLength];
+            buffer.get(offset + 4, candidate);
+            int valueLength = buffer.getInt(offset + 4 + keyLength);
+            long valuePosition = position + 8 + keyLength;
+
+            int order = new String(candidate, StandardCharsets.UTF_8).compareTo(key);
+            if (order == 0) {
+                return new Entry(valuePosition, valueLength);
+            }
+            if (order > 0) {
+                return null;  // Passed the place where the key would be
+            }
+            position = valuePosition + Math.max(valueLength, 0);
+        }
+        return null;
+    }
+
+    // Reads every pair in key order, removed keys with TOMBSTONE as their value, for compaction
+    public Iterator<Map.Entry<String, byte[]>> iterator() throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ)), 1 << 16));
+        return new Iterator<>() {
+            private long remaining = entries;
+
+            @Override
+            public boolean hasNext() {
+                if (remaining == 0) {
+                    closeQuietly(input);
+                }
+                return remaining > 0;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (remaining == 0) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    byte[] key = new byte[input.readInt()];
+                    input.readFully(key);
+                    int valueLength = input.readInt();
+                    byte[] value = valueLength < 0 ? TOMBSTONE : new byte[valueLength];
+                    input.readFully(value);
+                    remaining--;
+                    return Map.entry(new String(key, StandardCharsets.UTF_8), value);
+                } catch (IOException e) {
+                    closeQuietly(input);
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    // Removes the file once it has been compacted away; it stays open until the regions still out are released
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+        release();
+    }
+
+    public void close() throws IOException {
+        release();
+    }
+
+    private void release() throws IOException {
+        if (references.decrementAndGet() == 0) {
+            channel.close();
+        }
+    }
+
+    // A value handed out in place
+    private final class Region implements ValueRef {
+        private final long position;
+        private final int length;
+
+        Region(long position, int length) {
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            try {
+                return readAt(channel, position, length).asReadOnlyBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        // Reads just the prefix's length, not the whole value
+        @Override
+        public boolean startsWith(byte[] prefix) {
+            try {
+                return length >= prefix.length && readAt(channel, position, prefix.length).equals(ByteBuffer.wrap(prefix));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean inFile() {
+            return true;
+        }
+
+        @Override
+        public long transferTo(long offset, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position + offset, length - offset, target);
+        }
+
+        // Through a small buffer the JDK copies with; the whole value never lands on the heap
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            WritableByteChannel target = Channels.newChannel(output);
+            for (long sent = 0; sent < length; ) {
+                sent += transferTo(sent, target);
+            }
+        }
+
+        @Override
+        public void release() {
+            try {
+                SegmentFile.this.release();
+            } catch (IOException e) {
+                System.err.println("Error closing segment file: " + e.getMessage());
+            }
+        }
+    }
+
+    // Index of the last block whose first key is not greater than the key, or -1
+    private int floorBlock(String key) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (indexKeys[middle].compareTo(key) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    // Reads from the position up to READ_AHEAD bytes (but at least the needed ones), without passing the end
+    private ByteBuffer window(long position, long end, int needed) throws IOException {
+        return readAt(channel, position, (int) Math.min(end - position, Math.max(needed, READ_AHEAD)));
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Segment file is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Read-only file, nothing to lose
+        }
+    }
+}
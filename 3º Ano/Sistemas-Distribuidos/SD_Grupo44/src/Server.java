@@ -1,56 +1,243 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.*;
 import java.util.concurrent.*;
 
 public class Server {
-    // Semaphore to limit the number of clients that can access the server at once
-    private final Semaphore semaphore;
+    private static final int ACCEPT_BACKLOG = 4096;  // Pending connections the kernel may queue for us
+
+    // Policy that limits the number of clients that can access the server at once
+    private final AdmissionPolicy admission;
 
     // Instances of services: storage, user, and the getWhen service
     private final StorageService storageService;
     private final UserService userService;
     private final GetWhenService getWhenService;
 
-    // Port where the server listens for client connections
-    private final int port;
+    // Removes the keys stored with a time to live once they expire
+    private final ExpiryService expiryService;
+
+    // Executes client requests, shared by every connection whatever the server mode
+    private final RequestProcessor processor;
+
+    // Latencies and counters, reported by the stats command
+    private final ServerStats stats;
+
+    // Writes streamed to backups, and the backup side when this server follows a primary (null when not used)
+    private final ReplicationLog replicationLog;
+    private final BackupReplica replica;
+
+    // Settings of this server (port, mode, ...)
+    private final ServerConfig config;
 
     // Constructor to initialize the server with maximum clients and port
-    public Server(int maxClients, int port) {
-        this.semaphore = new Semaphore(maxClients); // Initialize the semaphore with a limit on the number of concurrent clients
-        this.storageService = new StorageService(); // Initialize the storage service
-        this.userService = new UserService(); // Initialize the user service
+    public Server(int maxClients, int port) throws IOException {
+        this(withLimits(maxClients, port));
+    }
+
+    // Constructor to initialize the server from a full configuration.
+    // With durability enabled this replays the write-ahead log, so it fails if the log cannot be read.
+    public Server(ServerConfig config) throws IOException {
+        this.config = config;
+        this.stats = new ServerStats();
+        this.admission = new AdmissionPolicy(config.maxClients, config.admission, config.maxQueued); // Limit on the number of concurrent clients
+        this.replicationLog = config.replicated()
+                ? new ReplicationLog(config.replicationAck, config.replicationBacklogMegabytes << 20)
+                : null;
+        this.storageService = openStorage(config, replicationLog, stats); // Initialize the storage service
+        this.replica = config.primaries.isEmpty() ? null : new BackupReplica(storageService, replicationLog,
+                config.primaries, config.maxStalenessMillis, config.failoverTimeoutMillis);
+        this.userService = new UserService(config.sessionTokens()); // Initialize the user service
         this.getWhenService = new GetWhenService(storageService); // Initialize the getWhen service, passing the storage service
-        this.port = port; // Set the server port
+        this.expiryService = new ExpiryService(storageService, replica);
+        this.processor = new RequestProcessor(storageService, getWhenService, replica, stats);
+        if (config.compressionStatsIntervalMillis > 0) {
+            reportCompressionStats(processor, config.compressionStatsIntervalMillis);
+        }
+        stats.track(storageService);
+        stats.track(getWhenService);
+        if (!config.mode.equals("nio")) {
+            stats.track(admission);  // The event loop admits every client
+        }
+        if (config.statsFile != null && config.statsIntervalMillis > 0) {
+            writeStats(stats, Path.of(config.statsFile), config.statsIntervalMillis);
+        }
     }
 
-    // Method to start the server and handle incoming client connections
-    public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) { // Create a ServerSocket bound to the specified port
-            System.out.println("Server running on port: " + port); // Print server information
+    // In-memory storage, or storage recovered from and logged to the write-ahead log in the data directory.
+    // Writes also go to the replication log when one is given.
+    private static StorageService openStorage(ServerConfig config, ReplicationLog replicationLog, ServerStats stats) throws IOException {
+        Path dir = Path.of(config.dataDir);
+        StorageEngine engine = switch (config.engine) {
+            case "map" -> new MapStorageEngine(config.durability == null ? null : new SnapshotStore(dir));
+            case "lsm" -> new LsmStorageEngine(dir.resolve("lsm"), config.memtableMegabytes << 20);
+            case "offheap" -> new OffHeapStorageEngine(config.offHeapMegabytes << 20,
+                    config.offHeapFile == null ? null : Path.of(config.offHeapFile),
+                    config.durability == null ? null : new SnapshotStore(dir));
+            default -> throw new IllegalArgumentException("Unknown storage engine: " + config.engine);
+        };
+        if (config.cacheMegabytes > 0) {
+            if (!config.engine.equals("lsm")) {
+                throw new IllegalArgumentException("A cache needs the disk-backed engine (--engine=lsm)");
+            }
+            CachingStorageEngine cache = new CachingStorageEngine(engine, config.cacheMegabytes << 20);
+            if (config.cacheStatsIntervalMillis > 0) {
+                reportCacheStats(cache, config.cacheStatsIntervalMillis);
+            }
+            stats.track(cache);
+            engine = cache;
+        }
+        if (config.durability == null) {
+            return new StorageService(engine, null, replicationLog);
+        }
+
+        System.out.println("Write-ahead log: " + dir + " (" + config.durability.name().toLowerCase() + ")");
+        StorageService storage = new StorageService(engine,
+                new WriteAheadLog(dir, config.durability, config.syncIntervalMillis), replicationLog);
+        if (config.snapshotIntervalMillis > 0) {
+            scheduleCheckpoints(storage, config.snapshotIntervalMillis);
+        }
+        return storage;
+    }
+
+    // Takes a checkpoint (snapshot or memtable flush) every interval on a background thread
+    private static void scheduleCheckpoints(StorageService storage, long intervalMillis) {
+        ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                storage.checkpoint();
+            } catch (IOException e) {
+                System.err.println("Error writing checkpoint: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Prints the cache's hit, miss and eviction counts every interval, for sizing --cache-mb
+    private static void reportCacheStats(CachingStorageEngine cache, long intervalMillis) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cache-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            CachingStorageEngine.Stats stats = cache.stats();
+            System.out.printf("Cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries in %d KB%n",
+                    stats.hits(), stats.misses(), 100 * stats.hitRate(), stats.evictions(), stats.entries(), stats.bytes() >> 10);
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Prints how much the compressed values save and what inflating them for plain clients costs, every interval
+    // once a client has stored any
+    private static void reportCompressionStats(RequestProcessor processor, long intervalMillis) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "compression-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            ValueCompression.Stats stats = processor.compressionStats();
+            if (stats.compressedValues() > 0) {
+                System.out.printf("Compression: %d values stored compressed, %d KB as %d KB (%.2fx); %d inflated for plain clients in %d ms%n",
+                        stats.compressedValues(), stats.originalBytes() >> 10, stats.storedBytes() >> 10, stats.ratio(),
+                        stats.decompressedValues(), TimeUnit.NANOSECONDS.toMillis(stats.decompressNanos()));
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Replaces the stats file with the current report every interval. The report goes to a temporary file that is
+    // then moved over the old one, so whoever reads the file never sees half a report.
+    private static void writeStats(ServerStats stats, Path file, long intervalMillis) {
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        writer.scheduleAtFixedRate(() -> {
+            try {
+                Files.writeString(temporary, stats.report());
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Error writing stats: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static ServerConfig withLimits(int maxClients, int port) {
+        ServerConfig config = new ServerConfig();
+        config.maxClients = maxClients;
+        config.port = port;
+        return config;
+    }
+
+    // Method to start the server in the configured mode
+    public void start() throws IOException {
+        if (config.replicationPort > 0) {
+            new ReplicationServer(config.replicationPort, storageService, replicationLog, replica).start();
+        }
+        if (replica != null) {
+            replica.start();
+        }
+        expiryService.start();
+
+        switch (config.mode) {
+            case "threaded" -> startThreaded(Executors.newCachedThreadPool());
+            case "virtual" -> startThreaded(newVirtualThreadExecutor());
+            case "nio" -> new NioServer(config.port, config.ioThreads, config.maxInFlightBytes(), userService, processor, stats).start();
+            default -> System.err.println("Unknown server mode: " + config.mode);
+        }
+    }
+
+    // Accepts clients and handles each one in its own thread, taken from the given executor
+    private void startThreaded(ExecutorService executor) {
+        // A channel rather than a plain ServerSocket, so the sockets have channels that stored files can be transferred to
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(config.port), ACCEPT_BACKLOG);
+            System.out.println("Server running on port: " + config.port + " (" + config.mode + ")"); // Print server information
 
             // Loop to continuously accept client connections
             while (true) {
                 // Accept a client connection and create a socket for communication
-                Socket clientSocket = serverSocket.accept();
+                Socket clientSocket = serverChannel.accept().socket();
 
-                // Start a new thread to handle the client connection
-                new Thread(new ClientHandler(
+                // Hand the client connection to a thread of its own
+                executor.execute(new ClientHandler(
                     clientSocket,            // Client's socket
-                    storageService,          // Storage service
                     userService,             // User service
-                    getWhenService,          // GetWhen service
-                    semaphore                // Semaphore to control concurrent access
-                )).start(); // Start the thread that will handle the client
+                    processor,               // Executes the client's requests
+                    admission,               // Policy to control concurrent access
+                    config.maxInFlightBytes(), // Largest request the client may send
+                    stats                    // Counts the connection and its bytes
+                ));
             }
         } catch (IOException e) { // Catch any IOException during the server's operation
             System.err.println("Server error: " + e.getMessage()); // Print any error that occurs
+        } finally {
+            executor.shutdown();
         }
     }
 
-    // Main method to start the server with specified maximum clients and port
+    // Executor that starts a virtual thread per task.
+    // Looked up reflectively so the project still compiles on JDKs older than 21, where this mode is unavailable.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual thread mode needs Java 21 or later", e);
+        }
+    }
+
+    // Main method to start the server, e.g. "java Server --mode=nio --port=11111"
     public static void main(String[] args) {
-        int maxClients = 5; // Maximum number of clients allowed to connect at once
-        int port = 11111; // Port the server will listen on
-        new Server(maxClients, port).start(); // Create a new server and start it
+        try {
+            new Server(ServerConfig.fromArgs(args)).start(); // Create a new server and start it
+        } catch (IOException e) {
+            System.err.println("Error starting server: " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,108 @@
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Settings of a server instance, read from "--name=value" command line arguments
+public class ServerConfig {
+    int port = 11111;  // Port the server listens on
+    int maxClients = 5;  // Maximum number of clients served at once in threaded and virtual modes
+    AdmissionPolicy.Mode admission = AdmissionPolicy.Mode.QUEUE;  // What happens to clients beyond maxClients
+    int maxQueued = Integer.MAX_VALUE;  // Maximum number of clients waiting for a slot in queue admission
+    String mode = "threaded";  // "threaded" (platform thread per client), "virtual" (virtual thread per client) or "nio" (selector event loop)
+    int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);  // Event loop threads in nio mode
+    WriteAheadLog.SyncPolicy durability = null;  // When writes reach the write-ahead log's disk, or null ("none") to keep data in memory only
+    long syncIntervalMillis = 100;  // Time between syncs with the "interval" durability
+    String dataDir = "data";  // Directory holding the write-ahead log, snapshots and LSM segments
+    long snapshotIntervalMillis = 60_000;  // Time between checkpoints (snapshots, or memtable flushes with lsm) when durability is enabled, 0 for none
+    String engine = "map";  // "map" (everything on the heap), "lsm" (memtable plus sorted segment files on disk) or "offheap" (values in slabs outside the heap)
+    long memtableMegabytes = 64;  // Memtable size that makes the lsm engine flush it to a segment file
+    long offHeapMegabytes = 1024;  // Most slab memory the offheap engine may use
+    String offHeapFile = null;  // Scratch file the offheap engine maps its slabs from, or null for direct buffers
+    long cacheMegabytes = 0;  // Heap for a cache of hot values in front of the lsm engine, 0 for none
+    long cacheStatsIntervalMillis = 60_000;  // Time between cache hit/miss/eviction reports on the console, 0 for none
+    int replicationPort = 0;  // Port backups connect to for the stream of writes, 0 for none
+    List<InetSocketAddress> primaries = List.of();  // Replication ports of the primary (and peers to fail over to) when this server is a backup
+    ReplicationLog.AckMode replicationAck = ReplicationLog.AckMode.ASYNC;  // Whether writes wait for the backups
+    long replicationBacklogMegabytes = 64;  // Recent writes kept so a reconnecting backup can resume instead of copying everything
+    long maxStalenessMillis = 1000;  // How far behind its primary a backup may be and still serve reads
+    long failoverTimeoutMillis = 0;  // Silence from the primary after which a backup promotes itself, 0 for never
+    long maxInFlightMegabytes = 64;  // Most a connection may have buffered: one request frame, or in nio mode replies queued for it
+    long compressionStatsIntervalMillis = 60_000;  // Time between reports of the compression ratio and inflate time on the console, 0 for none
+    long sessionTtlMillis = UserService.DEFAULT_SESSION_TTL_MILLIS;  // How long a session token lets a client log in again without its password
+    String sessionSecret = null;  // Key session tokens are signed with, shared by servers that accept each other's tokens; null for a random one
+    String statsFile = null;  // File the latency histograms and counters are written to every statsIntervalMillis, or null for none
+    long statsIntervalMillis = 10_000;  // Time between writes of the stats file
+
+    // Builds a configuration from the command line, keeping the defaults for anything not given
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+
+            switch (name) {
+                case "port" -> config.port = Integer.parseInt(value);
+                case "max-clients" -> config.maxClients = Integer.parseInt(value);
+                case "admission" -> config.admission = AdmissionPolicy.Mode.valueOf(value.toUpperCase());
+                case "max-queued" -> config.maxQueued = Integer.parseInt(value);
+                case "mode" -> config.mode = value;
+                case "io-threads" -> config.ioThreads = Integer.parseInt(value);
+                case "durability" -> config.durability = value.equals("none") ? null : WriteAheadLog.SyncPolicy.valueOf(value.toUpperCase());
+                case "sync-interval-ms" -> config.syncIntervalMillis = Long.parseLong(value);
+                case "data-dir" -> config.dataDir = value;
+                case "snapshot-interval-ms" -> config.snapshotIntervalMillis = Long.parseLong(value);
+                case "engine" -> config.engine = value;
+                case "memtable-mb" -> config.memtableMegabytes = Long.parseLong(value);
+                case "offheap-mb" -> config.offHeapMegabytes = Long.parseLong(value);
+                case "offheap-file" -> config.offHeapFile = value;
+                case "cache-mb" -> config.cacheMegabytes = Long.parseLong(value);
+                case "cache-stats-interval-ms" -> config.cacheStatsIntervalMillis = Long.parseLong(value);
+                case "replication-port" -> config.replicationPort = Integer.parseInt(value);
+                case "primary" -> config.primaries = parseAddresses(value);
+                case "replication-ack" -> config.replicationAck = ReplicationLog.AckMode.valueOf(value.toUpperCase());
+                case "replication-backlog-mb" -> config.replicationBacklogMegabytes = Long.parseLong(value);
+                case "max-staleness-ms" -> config.maxStalenessMillis = Long.parseLong(value);
+                case "failover-timeout-ms" -> config.failoverTimeoutMillis = Long.parseLong(value);
+                case "max-inflight-mb" -> config.maxInFlightMegabytes = Long.parseLong(value);
+                case "compression-stats-interval-ms" -> config.compressionStatsIntervalMillis = Long.parseLong(value);
+                case "session-ttl-ms" -> config.sessionTtlMillis = Long.parseLong(value);
+                case "session-secret" -> config.sessionSecret = value;
+                case "stats-file" -> config.statsFile = value;
+                case "stats-interval-ms" -> config.statsIntervalMillis = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return config;
+    }
+
+    // Whether writes are logged for backups, as a primary or as a backup that may be promoted
+    boolean replicated() {
+        return replicationPort > 0 || !primaries.isEmpty();
+    }
+
+    // The in-flight limit in bytes, as the int that buffers are sized with
+    int maxInFlightBytes() {
+        return (int) Math.min(maxInFlightMegabytes << 20, Integer.MAX_VALUE - 8);
+    }
+
+    // Signer of the session tokens handed out at login
+    SessionTokens sessionTokens() {
+        return sessionSecret == null
+                ? SessionTokens.withRandomSecret(sessionTtlMillis)
+                : new SessionTokens(sessionSecret.getBytes(StandardCharsets.UTF_8), sessionTtlMillis);
+    }
+
+    // Parses "host:port,host:port,..."
+    private static List<InetSocketAddress> parseAddresses(String value) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String address : value.split(",")) {
+            int colon = address.lastIndexOf(':');
+            addresses.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+        return addresses;
+    }
+}
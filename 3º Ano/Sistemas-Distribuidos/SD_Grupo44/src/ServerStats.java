@@ -0,0 +1,165 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// What the server has done since it started, to tell where time goes: how long each command took on the server,
+// bytes and connections in and out, how long clients waited for an admission slot, and the figures the storage,
+// getwhen, cache and compression keep on their own. Everything is counted with adders and histograms, so recording
+// never takes a lock; report() reads it all for the "stats" command and the file written every --stats-interval-ms.
+public class ServerStats {
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<Request.Type, LatencyHistogram> commands = new EnumMap<>(Request.Type.class);  // Filled once, then only read
+    private final LatencyHistogram admissionWaits = new LatencyHistogram();  // Time from accept to holding a slot (threaded and virtual modes)
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+
+    // Parts that keep figures of their own, added while the server starts; null for those it does not use
+    private volatile StorageService storage;
+    private volatile GetWhenService getWhen;
+    private volatile AdmissionPolicy admission;
+    private volatile CachingStorageEngine cache;
+    private volatile ValueCompression compression;
+
+    public ServerStats() {
+        for (Request.Type type : Request.Type.values()) {
+            commands.put(type, new LatencyHistogram());
+        }
+    }
+
+    public void track(StorageService storage) {
+        this.storage = storage;
+    }
+
+    public void track(GetWhenService getWhen) {
+        this.getWhen = getWhen;
+    }
+
+    public void track(AdmissionPolicy admission) {
+        this.admission = admission;
+    }
+
+    public void track(CachingStorageEngine cache) {
+        this.cache = cache;
+    }
+
+    public void track(ValueCompression compression) {
+        this.compression = compression;
+    }
+
+    // Records how long the server took over a command, from decoded request to reply handed to the connection
+    public void commandDone(Request.Type type, long startNanos) {
+        commands.get(type).recordSince(startNanos);
+    }
+
+    public void admissionWaited(long startNanos) {
+        admissionWaits.recordSince(startNanos);
+    }
+
+    public void received(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void sent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void connectionOpened() {
+        openConnections.incrementAndGet();
+        acceptedConnections.increment();
+    }
+
+    public void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    // Counts what is read from a client's socket
+    public InputStream counting(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    // Counts what is written to a client's socket
+    public OutputStream counting(OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);  // FilterOutputStream would write it a byte at a time
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    // Everything above as text, latencies in microseconds
+    public String report() {
+        StringBuilder text = new StringBuilder();
+        Formatter out = new Formatter(text);
+        out.format("uptime %d s, %d connections open, %d accepted", (System.currentTimeMillis() - startMillis) / 1000,
+                openConnections.get(), acceptedConnections.sum());
+        if (admission != null) {
+            out.format(", %d waiting for a slot", admission.queued());
+        }
+        out.format("%nbytes in %d, out %d%n", bytesIn.sum(), bytesOut.sum());
+        if (getWhen != null) {
+            out.format("getwhen backlog %d%n", getWhen.pending());
+        }
+
+        out.format("%-14s %10s %9s %9s %9s %9s %9s %9s%n", "latency (us)", "count", "mean", "p50", "p90", "p99", "p99.9", "max");
+        for (Map.Entry<Request.Type, LatencyHistogram> command : commands.entrySet()) {
+            formatLatencies(out, command.getKey().command(), command.getValue().snapshot());
+        }
+        formatLatencies(out, "admission wait", admissionWaits.snapshot());
+        if (storage != null) {
+            formatLatencies(out, "stripe wait", storage.stripeWaits().snapshot());  // Contended acquisitions only
+        }
+
+        if (cache != null) {
+            CachingStorageEngine.Stats cached = cache.stats();
+            out.format("cache %d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries in %d KB%n",
+                    cached.hits(), cached.misses(), 100 * cached.hitRate(), cached.evictions(), cached.entries(), cached.bytes() >> 10);
+        }
+        ValueCompression.Stats stats = compression != null ? compression.stats() : null;
+        if (stats != null && stats.compressedValues() > 0) {  // Once a client has stored any
+            out.format("compression %d values, %d KB stored as %d KB (%.2fx), %d inflated for plain clients in %d ms%n",
+                    stats.compressedValues(), stats.originalBytes() >> 10, stats.storedBytes() >> 10, stats.ratio(),
+                    stats.decompressedValues(), TimeUnit.NANOSECONDS.toMillis(stats.decompressNanos()));
+        }
+        return text.toString();
+    }
+
+    // One row of the latency table, left out while nothing was recorded
+    private static void formatLatencies(Formatter out, String name, LatencyHistogram.Snapshot latencies) {
+        if (latencies.count() == 0) {
+            return;
+        }
+        out.format("%-14s %10d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n", name, latencies.count(), latencies.meanNanos() / 1000,
+                latencies.percentile(0.5) / 1000.0, latencies.percentile(0.9) / 1000.0, latencies.percentile(0.99) / 1000.0,
+                latencies.percentile(0.999) / 1000.0, latencies.maxNanos() / 1000.0);
+    }
+}
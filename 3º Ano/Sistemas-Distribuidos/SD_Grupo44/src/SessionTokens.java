@@ -0,0 +1,78 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Signed session tokens, handed out at login so that a reconnecting client can log in again without its password.
+//
+// A token is   base64url(username) . expiry in epoch milliseconds . base64url(HMAC-SHA256 of the two)
+// and is checked with nothing but the server's secret: no lookup, no file, no state per session. The secret is
+// random unless one is configured, so by default every token dies with the server; servers given the same secret
+// accept each other's tokens. A token cannot be revoked before it expires, which keeps the lifetime short.
+public class SessionTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long ttlMillis;  // How long a token is valid once issued
+    private final ThreadLocal<Mac> macs;  // A Mac is not thread-safe, and setting one up costs more than signing
+
+    public SessionTokens(byte[] secret, long ttlMillis) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.ttlMillis = ttlMillis;
+        this.macs = ThreadLocal.withInitial(this::newMac);
+        newMac();  // Fails now rather than at the first login if the JDK lacks the algorithm
+    }
+
+    // Tokens signed with a secret of their own, valid until this server stops
+    public static SessionTokens withRandomSecret(long ttlMillis) {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return new SessionTokens(secret, ttlMillis);
+    }
+
+    // A token for a user who just proved who they are
+    public String issue(String username) {
+        String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8)) + "." + (System.currentTimeMillis() + ttlMillis);
+        return payload + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    // The user a token was issued to, or null if it is malformed, forged or expired
+    public String verify(String token) {
+        int signatureStart = token.lastIndexOf('.');
+        int expiryStart = token.lastIndexOf('.', signatureStart - 1);
+        if (expiryStart < 0) {
+            return null;
+        }
+        String payload = token.substring(0, signatureStart);
+        try {
+            if (!MessageDigest.isEqual(sign(payload), DECODER.decode(token.substring(signatureStart + 1)))) {
+                return null;
+            }
+            if (Long.parseLong(token.substring(expiryStart + 1, signatureStart)) < System.currentTimeMillis()) {
+                return null;
+            }
+            return new String(DECODER.decode(token.substring(0, expiryStart)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {  // Not base64, or not a number
+            return null;
+        }
+    }
+
+    private byte[] sign(String payload) {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign session tokens: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Key-value commands spread over several servers, each key going to the node a HashRing assigns it.
+//
+// Every node gets its own pipelined connection. multiPut and multiGet are split by node and the parts sent
+// to all nodes at once, then merged back; they are atomic on each node but not across nodes. getWhen waits
+// for the condition on the node of keyCond and then reads key from its own node. A transaction can only commit
+// if all of its keys live on one node, since nodes do not coordinate commits between them.
+// Servers do not move data between them, so keys that change owner when a node is added or removed start
+// out missing on their new node.
+public class ShardedKeyValueService implements KeyValueStore {
+    private static final int VIRTUAL_NODES = 160;  // Points per node on the ring; enough for an even spread
+
+    private final HashRing<AsyncKeyValueService> ring = new HashRing<>(VIRTUAL_NODES);
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();  // Connection to each node, by "host:port"
+    private final String username;
+    private final String password;
+    private final boolean compress;  // Whether the connections ask for compressed values
+
+    private ShardedKeyValueService(String username, String password, boolean compress) {
+        this.username = username;
+        this.password = password;
+        this.compress = compress;
+    }
+
+    // Connects and logs in to every node, given as "host:port"; the user must exist on all of them
+    public static ShardedKeyValueService connect(List<String> nodes, String username, String password) throws IOException {
+        return connect(nodes, username, password, false);
+    }
+
+    // As connect, sending large values compressed to the nodes that support it
+    public static ShardedKeyValueService connect(List<String> nodes, String username, String password, boolean compress) throws IOException {
+        ShardedKeyValueService service = new ShardedKeyValueService(username, password, compress);
+        try {
+            for (String node : nodes) {
+                service.addNode(node);
+            }
+            return service;
+        } catch (IOException e) {
+            service.close();
+            throw e;
+        }
+    }
+
+    // Connects to another node and gives it its share of the keys
+    public void addNode(String node) throws IOException {
+        int colon = node.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port but got: " + node);
+        }
+        Client client = Client.connect(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)), username, password, compress);
+        if (clients.putIfAbsent(node, client) != null) {
+            client.close();
+            throw new IllegalArgumentException("Node already on the ring: " + node);
+        }
+        ring.add(node, client.async());
+    }
+
+    // Takes a node off the ring, its keys going to the next nodes, and disconnects from it
+    public void removeNode(String node) throws IOException {
+        Client client = clients.remove(node);
+        if (client != null) {
+            ring.remove(node);
+            client.close();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value) {
+        return ring.nodeFor(key).put(key, value);
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value, Duration ttl) {
+        return ring.nodeFor(key).put(key, value, ttl);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String key) {
+        return ring.nodeFor(key).get(key);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> cas(String key, byte[] expected, byte[] value) {
+        return ring.nodeFor(key).cas(key, expected, value);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putIfAbsent(String key, byte[] value) {
+        return ring.nodeFor(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public CompletableFuture<Long> incrementBy(String key, long delta) {
+        return ring.nodeFor(key).incrementBy(key, delta);
+    }
+
+    @Override
+    public CompletableFuture<Void> multiPut(Map<String, byte[]> pairs) {
+        Map<AsyncKeyValueService, List<String>> parts = ring.partition(pairs.keySet());
+        List<CompletableFuture<Void>> replies = new ArrayList<>();
+        parts.forEach((node, keys) -> {
+            Map<String, byte[]> part = new HashMap<>();
+            for (String key : keys) {
+                part.put(key, pairs.get(key));
+            }
+            replies.add(node.multiPut(part));
+        });
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> multiGet(List<String> keys) {
+        Map<AsyncKeyValueService, List<String>> parts = ring.partition(keys);
+        List<CompletableFuture<Map<String, byte[]>>> replies = new ArrayList<>();
+        parts.forEach((node, nodeKeys) -> replies.add(node.multiGet(nodeKeys)));
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, byte[]> values = new HashMap<>();
+            for (CompletableFuture<Map<String, byte[]>> reply : replies) {
+                values.putAll(reply.join());
+            }
+            return values;
+        });
+    }
+
+    // Every chunk of a key goes to the key's node, so an upload stays on one connection
+    @Override
+    public CompletableFuture<Void> putChunk(String key, long upload, int index, long length, byte[] bytes) {
+        return ring.nodeFor(key).putChunk(key, upload, index, length, bytes);
+    }
+
+    @Override
+    public CompletableFuture<ValueChunk> getChunk(String key, long upload, int index) {
+        return ring.nodeFor(key).getChunk(key, upload, index);
+    }
+
+    @Override
+    public CompletableFuture<ReadSet> readSet(List<String> keys) {
+        Map<AsyncKeyValueService, List<String>> parts = ring.partition(keys);
+        List<CompletableFuture<ReadSet>> replies = new ArrayList<>();
+        parts.forEach((node, nodeKeys) -> replies.add(node.readSet(nodeKeys)));
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, byte[]> values = new HashMap<>();
+            Map<String, Long> versions = new HashMap<>();
+            for (CompletableFuture<ReadSet> reply : replies) {
+                values.putAll(reply.join().values());
+                versions.putAll(reply.join().versions());
+            }
+            return new ReadSet(values, versions);
+        });
+    }
+
+    // Sent to the node that holds every key read and written; refused if they are spread over several
+    @Override
+    public CompletableFuture<Boolean> commit(Map<String, Long> readVersions, Map<String, byte[]> writes) {
+        Set<String> keys = new HashSet<>(readVersions.keySet());
+        keys.addAll(writes.keySet());
+        Map<AsyncKeyValueService, List<String>> parts = ring.partition(keys);
+        if (parts.size() > 1) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Transaction keys span " + parts.size() + " nodes"));
+        }
+        if (parts.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return parts.keySet().iterator().next().commit(readVersions, writes);
+    }
+
+    // Asks every node for a chunk of the range and merges them. Past the first limit keys of the merge a node
+    // may still hold keys, so the scan continues at the smallest key not returned.
+    @Override
+    public CompletableFuture<ScanChunk> scan(String from, String to, int limit) {
+        List<CompletableFuture<ScanChunk>> replies = new ArrayList<>();
+        for (Client client : clients.values()) {
+            replies.add(client.async().scan(from, to, limit));
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            TreeMap<String, byte[]> merged = new TreeMap<>();
+            String next = null;
+            for (CompletableFuture<ScanChunk> reply : replies) {
+                ScanChunk chunk = reply.join();
+                merged.putAll(chunk.pairs());
+                if (chunk.next() != null && (next == null || chunk.next().compareTo(next) < 0)) {
+                    next = chunk.next();
+                }
+            }
+            Map<String, byte[]> pairs = new LinkedHashMap<>();
+            for (Map.Entry<String, byte[]> pair : merged.entrySet()) {
+                if (pairs.size() == limit || (next != null && pair.getKey().compareTo(next) >= 0)) {
+                    return new ScanChunk(pairs, pair.getKey());
+                }
+                pairs.put(pair.getKey(), pair.getValue());
+            }
+            return new ScanChunk(pairs, next);
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getWhen(String key, String keyCond, byte[] valueCond) {
+        AsyncKeyValueService condNode = ring.nodeFor(keyCond);
+        AsyncKeyValueService keyNode = ring.nodeFor(key);
+        if (condNode == keyNode) {
+            return keyNode.getWhen(key, keyCond, valueCond);  // Both on one server: atomic there
+        }
+        return condNode.getWhen(keyCond, keyCond, valueCond).thenCompose(met -> keyNode.get(key));
+    }
+
+    // The report of every node, each under its "host:port"
+    @Override
+    public CompletableFuture<String> stats() {
+        Map<String, CompletableFuture<String>> replies = new TreeMap<>();
+        clients.forEach((node, client) -> replies.put(node, client.async().stats()));
+        return CompletableFuture.allOf(replies.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            StringBuilder reports = new StringBuilder();
+            replies.forEach((node, reply) -> reports.append("== ").append(node).append(" ==\n").append(reply.join()));
+            return reports.toString();
+        });
+    }
+
+    // Disconnects from every node
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (String node : new ArrayList<>(clients.keySet())) {
+            try {
+                removeNode(node);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
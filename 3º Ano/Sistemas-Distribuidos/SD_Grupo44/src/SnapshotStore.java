@@ -0,0 +1,158 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+// Point-in-time copies of the store, kept next to the write-ahead log.
+//
+// snapshot-<n>.snap holds every write logged in the segments before n, and possibly some later ones
+// (it is taken while writers carry on), so recovery loads it and replays segments n and up.
+// The file is   int magic | int version | long segment   then entries   int key length | key | int value length | value
+// and ends with   int -1 | long entry count. It is written under a temporary name and renamed when complete.
+public class SnapshotStore {
+    private static final int MAGIC = 0x53445350;  // "SDSP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int END_MARKER = -1;  // Where the next key length would be, marks the trailer
+    private static final long WINDOW = 1L << 30;  // Bytes mapped at a time; a single mapping cannot exceed 2 GB
+
+    private final Path dir;  // Directory holding the snapshot files
+
+    public SnapshotStore(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+    }
+
+    // Number of the write-ahead log segment the latest snapshot leads into, or 0 if there is no snapshot
+    public long latest() throws IOException {
+        List<Long> numbers = listSnapshots();
+        return numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1);
+    }
+
+    // Writes a snapshot of the given entries that the log continues from the given segment.
+    // The entries may change while they are being written; the log replay after it fixes that up.
+    public void write(long segment, Iterable<Map.Entry<String, byte[]>> entries) throws IOException {
+        Path temporary = dir.resolve("snapshot.tmp");
+        long count = 0;
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(segment);
+            for (Map.Entry<String, byte[]> entry : entries) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = entry.getValue();
+                output.writeInt(key.length);
+                output.write(key);
+                output.writeInt(value.length);
+                output.write(value);
+                count++;
+            }
+            output.writeInt(END_MARKER);
+            output.writeLong(count);
+            output.flush();
+            file.getFD().sync();  // On disk before it gets its final name
+        }
+        Files.move(temporary, snapshotPath(segment), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Snapshot written: " + count + " entries, log continues at segment " + segment);
+    }
+
+    // Memory-maps a snapshot and hands every entry to the callback
+    public void load(long segment, BiConsumer<String, byte[]> apply) throws IOException {
+        Path path = snapshotPath(segment);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedSnapshot input = new MappedSnapshot(file);
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readLong() != segment) {
+                throw new IOException("Not a snapshot of segment " + segment + ": " + path);
+            }
+
+            long count = 0;
+            while (true) {
+                int keyLength = input.readInt();
+                if (keyLength == END_MARKER) {
+                    break;
+                }
+                String key = new String(input.readBytes(keyLength), StandardCharsets.UTF_8);
+                apply.accept(key, input.readBytes(input.readInt()));
+                count++;
+            }
+            if (input.readLong() != count) {
+                throw new IOException("Snapshot entry count does not match: " + path);
+            }
+            System.out.println("Snapshot loaded: " + count + " entries from " + path.getFileName());
+        }
+    }
+
+    // Deletes the snapshots older than the given one
+    public void deleteOlderThan(long segment) throws IOException {
+        for (long number : listSnapshots()) {
+            if (number < segment) {
+                Files.deleteIfExists(snapshotPath(number));
+            }
+        }
+    }
+
+    private List<Long> listSnapshots() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*.snap")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(9, name.length() - 5)));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private Path snapshotPath(long segment) {
+        return dir.resolve(String.format("snapshot-%010d.snap", segment));
+    }
+
+    // Sequential reader over a memory-mapped file, mapping it one window at a time
+    private static class MappedSnapshot {
+        private final FileChannel file;
+        private MappedByteBuffer window;
+        private long windowStart = 0;  // File offset of the start of the current window
+
+        MappedSnapshot(FileChannel file) throws IOException {
+            this.file = file;
+            this.window = file.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(file.size(), WINDOW));
+        }
+
+        int readInt() throws IOException {
+            ensure(4);
+            return window.getInt();
+        }
+
+        long readLong() throws IOException {
+            ensure(8);
+            return window.getLong();
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Corrupt snapshot: negative length");
+            }
+            ensure(length);
+            byte[] bytes = new byte[length];
+            window.get(bytes);
+            return bytes;
+        }
+
+        // Maps a new window starting at the current position if fewer than n bytes are left in this one
+        private void ensure(int n) throws IOException {
+            if (window.remaining() >= n) {
+                return;
+            }
+            long position = windowStart + window.position();
+            if (file.size() - position < n) {
+                throw new EOFException("Snapshot is truncated");
+            }
+            windowStart = position;
+            window = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(file.size() - position, Math.max(WINDOW, n)));
+        }
+    }
+}
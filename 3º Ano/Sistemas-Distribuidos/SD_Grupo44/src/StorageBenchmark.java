@@ -0,0 +1,72 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Measures StorageService throughput with a mixed workload at several client thread counts.
+// Usage: java StorageBenchmark [seconds per run] [thread counts...], e.g. "java StorageBenchmark 5 1 8 32"
+public class StorageBenchmark {
+    private static final int KEY_COUNT = 10_000;  // Size of the key space the clients work on
+    private static final int VALUE_SIZE = 64;  // Size of every stored value in bytes
+    private static final int BATCH_SIZE = 10;  // Keys per multiPut / multiGet
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int[] threadCounts = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 1, 8, 32 };
+
+        String[] keys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "key" + i;
+        }
+
+        System.out.println("threads,ops_per_sec (80% get, 10% put, 5% multiPut, 5% multiGet of " + BATCH_SIZE + " keys)");
+        for (int threads : threadCounts) {
+            StorageService storage = new StorageService();
+            for (String key : keys) {
+                storage.put(key, new byte[VALUE_SIZE]);
+            }
+            run(storage, keys, threads, 1);  // Warm-up, not reported
+            long ops = run(storage, keys, threads, seconds);
+            System.out.printf("%d,%d%n", threads, ops / seconds);
+        }
+    }
+
+    // Runs the workload on the given number of threads for a while and returns the number of operations done
+    private static long run(StorageService storage, String[] keys, int threads, int seconds) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                byte[] value = new byte[VALUE_SIZE];
+                while (System.nanoTime() < deadline) {
+                    int dice = random.nextInt(100);
+                    if (dice < 80) {
+                        storage.get(keys[random.nextInt(keys.length)]);
+                    } else if (dice < 90) {
+                        storage.put(keys[random.nextInt(keys.length)], value);
+                    } else if (dice < 95) {
+                        Map<String, byte[]> pairs = new HashMap<>();
+                        for (int i = 0; i < BATCH_SIZE; i++) {
+                            pairs.put(keys[random.nextInt(keys.length)], value);
+                        }
+                        storage.multiPut(pairs);
+                    } else {
+                        List<String> batch = new ArrayList<>(BATCH_SIZE);
+                        for (int i = 0; i < BATCH_SIZE; i++) {
+                            batch.add(keys[random.nextInt(keys.length)]);
+                        }
+                        storage.multiGet(batch);
+                    }
+                    ops.increment();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return ops.sum();
+    }
+}
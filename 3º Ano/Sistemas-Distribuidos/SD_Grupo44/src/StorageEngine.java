@@ -0,0 +1,37 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+// Where StorageService keeps its key-value pairs.
+// StorageService adds the locking, the write-ahead log and the write listeners on top, so an engine
+// only has to make single reads and writes thread-safe.
+public interface StorageEngine extends AutoCloseable {
+    // Value stored under the key, or null if there is none
+    byte[] get(String key);
+
+    // The value in place, for engines that can hand it out without a copy; the caller must release it
+    default ValueRef acquire(String key) {
+        byte[] value = get(key);
+        return value == null ? null : ValueRef.of(value);
+    }
+
+    // Stores a value; a null value removes the key
+    void put(String key, byte[] value);
+
+    // As above for several pairs
+    void putAll(Map<String, byte[]> pairs);
+
+    // Every pair in the store, for copying all of it elsewhere. Writes made during the walk may or may not
+    // show up; whoever copies has to catch up on them some other way (e.g. a log replay).
+    Iterator<Map.Entry<String, byte[]>> entries() throws IOException;
+
+    // Loads whatever the engine persisted on its own and returns the write-ahead log segment to replay
+    // from (0 for the whole log)
+    long recover() throws IOException;
+
+    // Persists everything applied so far, which covers the write-ahead log before the given segment
+    void checkpoint(long segment) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -1,68 +1,799 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.List;
 import java.util.HashMap;
 
+// Front of the key-value store used by the request handlers. Keeps the pairs in a StorageEngine and adds
+// the atomicity of multiPut / multiGet, the write-ahead log, replication and the write listeners on top of it.
+// multiGet reads a snapshot kept by a VersionHistory, so it takes no lock and never holds back the writers.
+// Without logs, and while no snapshot is open, a put of a plain key takes no lock either.
+// The engines are hash tables, so an ordered index of the keys is kept beside them for scans.
+//
+// A key stored with a time to live keeps its deadline in the engine as well, under deadlineKey(key), written in the
+// same write as the value; the logs, the backups and a restart therefore keep it without a format of their own.
+// Once the deadline passes the key reads as missing, and the ExpiryService removes it soon after with expire().
+// A removal is a write of null, which the engines and the logs understand.
+//
+// A value too large for one request is streamed in chunks, each stored as a pair of its own under chunkKey(), and the
+// description of the whole (a StreamedValue) under streamKey(key). Chunks are staged with a time to live, so the ones
+// of an upload that never finishes expire; commitStream() then makes them permanent and the new value visible in
+// one write. These internal keys share the stripe of the key they belong to and are kept out of scans. A key holds
+// either a plain value or a streamed one: writing one form removes the other in the same write.
+//
+// Transactions are optimistic: readSet() hands out the version of every key read, and commit() checks them under the
+// stripe locks of the keys involved and applies the writes only if none has moved.
 public class StorageService {
-    // A thread-safe map to store key-value pairs, using ConcurrentHashMap to ensure thread safety
-    private final Map<String, byte[]> store = new ConcurrentHashMap<>();
-    
-    // Reentrant lock to ensure that multiple threads do not concurrently modify the map
-    private final ReentrantLock storeLock = new ReentrantLock();
+    // Number of lock stripes; 64 so that a set of stripes fits in the bits of one long
+    private static final int STRIPE_COUNT = 64;
 
-    // Method to store a key-value pair in the map
+    // Spacing of the per-stripe counters of unlocked writes, in ints: a cache line, so stripes do not share one
+    private static final int COUNTER_SPACING = 16;
+
+    // Number of version slots for transactions; keys share a slot by hash, so a write to one key can fail a
+    // transaction that read another one of its slot, but never lets a changed key through
+    private static final int VERSION_SLOTS = 1 << 16;
+
+    // Start of the internal keys that hold deadlines; a NUL character clients do not type, and kept out of scans
+    private static final String DEADLINE_PREFIX = "\0ttl:";
+
+    // Start of the internal keys of streamed values: the description, and the chunks, whose keys are the prefix,
+    // the upload and the index in fixed-width hex, then the key they belong to
+    private static final String STREAM_PREFIX = "\0stream:";
+    private static final String CHUNK_PREFIX = "\0chunk:";
+    private static final int CHUNK_HEADER = CHUNK_PREFIX.length() + 16 + 1 + 8 + 1;
+
+    // How long the chunks of an upload may take to be committed before they expire
+    private static final long STAGING_TTL_MILLIS = 10 * 60_000;
+
+    // Keys removed per write when a backup drops what a full copy did not include
+    private static final int REMOVAL_BATCH = 1000;
+
+    // Where the key-value pairs are kept (in memory, or on disk with an LSM tree)
+    private final StorageEngine engine;
+
+    // Locks held by every write but an unlocked put while it logs, versions and applies its values, so the logs and
+    // the version history have the writes of every key in the order they were applied. Reads never lock.
+    private final ReentrantLock[] stripes = newStripes();
+
+    // Puts in progress without their stripe lock, per stripe (see putUnlocked). A write that takes a stripe's
+    // lock waits for its count to drop to 0, and an unlocked put backs off if the lock is held.
+    private final AtomicIntegerArray unlockedPuts = new AtomicIntegerArray(STRIPE_COUNT * COUNTER_SPACING);
+
+    // How long writes waited for a stripe another write held; uncontended acquisitions are not recorded
+    private final LatencyHistogram stripeWaits = new LatencyHistogram();
+
+    // Recent values of the keys being written, for the snapshots multiGet reads
+    private final VersionHistory versions = new VersionHistory();
+
+    // Every key in the store, in order; a key is added before its write is visible, by a write its stripe excludes
+    private final NavigableSet<String> keyIndex = new ConcurrentSkipListSet<>();
+
+    // Deadline (epoch milliseconds) of every key stored with a time to live, mirroring the deadline keys in the engine
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+
+    // Streamed value of every key that has one, mirroring the stream keys in the engine
+    private final Map<String, StreamedValue> streams = new ConcurrentHashMap<>();
+
+    // Version of the last write to a key of each slot, set after the engine is written by a write its stripe excludes, which
+    // transactions validate their reads against. Counted up from the start time shifted left, so a version never
+    // comes back after a restart and a read made before one never validates.
+    private final long versionBase = System.currentTimeMillis() << 22;
+    private final AtomicLongArray slotVersions = newSlotVersions(versionBase);
+
+    // Log every write goes to before it is acknowledged, or null to keep the data in memory only
+    private final WriteAheadLog wal;
+
+    // Writes streamed to backup servers, or null when there are none
+    private final ReplicationLog replication;
+
+    // Components told about every write, e.g. the GetWhenService waking up requests that wait on a key
+    private final List<WriteListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Latest log ticket and replication record of the writes this thread makes inside withoutWaiting(), which
+    // leaves the waiting for them to the future it returns; null outside it
+    private final ThreadLocal<long[]> deferredLogs = new ThreadLocal<>();
+
+    // In-memory storage without a log
+    public StorageService() {
+        this.engine = new MapStorageEngine();
+        this.wal = null;
+        this.replication = null;
+    }
+
+    // Storage in the given engine that starts from what the engine persisted plus the log after it,
+    // and logs every later write (without a log, whatever the engine keeps on its own)
+    public StorageService(StorageEngine engine, WriteAheadLog wal) throws IOException {
+        this(engine, wal, null);
+    }
+
+    // As above, also appending every write to a replication log for the backups
+    public StorageService(StorageEngine engine, WriteAheadLog wal, ReplicationLog replication) throws IOException {
+        this.engine = engine;
+        this.wal = wal;
+        this.replication = replication;
+
+        long segment = engine.recover();
+        if (wal != null) {
+            wal.replay(segment, engine::putAll);
+        }
+        for (Iterator<Map.Entry<String, byte[]>> entries = engine.entries(); entries.hasNext(); ) {
+            Map.Entry<String, byte[]> entry = entries.next();
+            index(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Persists the store (a snapshot, or a memtable flush) and drops the log that makes redundant.
+    // Writers are held back only while the log switches to a new segment, not while the engine persists.
+    // Must not run concurrently with itself.
+    public void checkpoint() throws IOException {
+        if (wal == null) {
+            throw new IllegalStateException("Checkpoints need a write-ahead log");
+        }
+        if (wal.currentSegmentEmpty()) {
+            return;  // Nothing written since the last snapshot
+        }
+        long segment;
+        long all = lockAllStripes();  // No write is halfway between logged and applied
+        try {
+            segment = wal.rotate();  // Everything before this segment is now in the engine
+        } finally {
+            unlockStripes(all);
+        }
+        engine.checkpoint(segment);
+        wal.deleteSegmentsBefore(segment);
+    }
+
+    // Method to store a key-value pair; a time to live the key had is dropped.
+    // With a write-ahead log it returns only once the write is as durable as the log's sync policy promises,
+    // and with sync replication once every connected backup has applied it.
     public void put(String key, byte[] value) {
-        storeLock.lock();  // Acquire the lock to ensure thread-safety during modification
+        int stripe = stripeOf(key);
+        if (wal == null && replication == null && putUnlocked(stripe, key, value)) {
+            return;
+        }
+        Commit commit = new Commit();
+        lock(stripe);
         try {
-            store.put(key, value);  // Put the key-value pair in the store
+            apply(commit, withoutDeadlines(Collections.singletonMap(key, value)), true);
         } finally {
-            storeLock.unlock();  // Ensure that the lock is released after the operation
+            stripes[stripe].unlock();
+            publish(commit);
         }
+        complete(commit);  // Outside the lock, so writers to the same stripe share the sync
     }
 
-    // Method to retrieve the value for a specific key from the map
-    public byte[] get(String key) {
-        storeLock.lock();  // Acquire the lock to ensure thread-safety during retrieval
+    // Puts a pair without taking its stripe lock, for a store without logs (no order to keep in them) while no
+    // snapshot is open (no history to keep). Unlocked puts of a key may race each other, like two locked ones
+    // queueing for the stripe, but never a locked write of its stripe. Returns false, having written nothing,
+    // if the put needs the lock: the stripe is held, a snapshot is open, or the key has a deadline or a streamed
+    // value to drop along with its value.
+    private boolean putUnlocked(int stripe, String key, byte[] value) {
+        int counter = stripe * COUNTER_SPACING;
+        long version = 0;
+        unlockedPuts.incrementAndGet(counter);  // Before the lock is checked, see lock(stripe)
+        try {
+            if (stripes[stripe].isLocked() || deadlines.containsKey(key) || streams.containsKey(key)) {
+                return false;
+            }
+            version = versions.recordUnlocked(key);
+            if (version == 0) {
+                return false;
+            }
+            engine.put(key, value);
+            index(key, value);
+            slotVersions.set(slotOf(key), versionBase + version);  // After the engine, see readSet
+        } finally {
+            unlockedPuts.decrementAndGet(counter);
+            if (version != 0) {
+                versions.publish(version, List.of(key));
+            }
+        }
+        notifyListeners(key, value);
+        return true;
+    }
+
+    // Stores a key-value pair that expires ttlMillis from now, replacing any deadline the key had
+    public void put(String key, byte[] value, long ttlMillis) {
+        Map<String, byte[]> pairs = new HashMap<>();
+        pairs.put(key, value);
+        pairs.put(deadlineKey(key), ByteBuffer.allocate(Long.BYTES).putLong(System.currentTimeMillis() + ttlMillis).array());
+        write(pairs, true);
+    }
+
+    // Replaces the value of a key with what the function makes of the current one (null if there is none),
+    // atomically with respect to other updates of the key, and returns the value now stored.
+    // If the function returns the current value itself nothing is written. Unlike put, the key keeps its
+    // time to live, unless it has already expired.
+    public byte[] update(String key, UnaryOperator<byte[]> function) {
+        int stripe = stripeOf(key);
+        Commit commit = new Commit();
+        byte[] updated;
+        lock(stripe);
+        try {
+            boolean lapsed = expired(key);
+            byte[] current = lapsed ? null : engine.get(key);
+            updated = function.apply(current);
+            if (updated == current) {
+                return current;
+            }
+            Map<String, byte[]> pair = Collections.singletonMap(key, updated);
+            apply(commit, lapsed ? withoutDeadlines(pair) : pair, true);
+        } finally {
+            stripes[stripe].unlock();
+            publish(commit);
+        }
+        complete(commit);
+        return updated;
+    }
+
+    // Stores a value if the key holds the expected one (compared by content, compressed or not; null for a key that does not exist),
+    // atomically with respect to every other write of the key; returns whether it did
+    public boolean compareAndSet(String key, byte[] expected, byte[] value) {
+        boolean[] swapped = {false};
+        update(key, current -> {
+            swapped[0] = ValueCompression.sameValue(current, expected);
+            return swapped[0] ? value : current;
+        });
+        return swapped[0];
+    }
+
+    // Stores a value if the key does not exist; returns whether it did
+    public boolean putIfAbsent(String key, byte[] value) {
+        return compareAndSet(key, null, value);
+    }
+
+    // Adds delta to the counter under the key, which starts at 0 if the key does not exist, and returns the new
+    // count; wraps around like a long. A counter is the 8-byte big-endian value, stored like any value a client
+    // writes: escaped by ValueCompression if it starts with its MAGIC, so reads decode it to the same 8 bytes and an
+    // 8-byte value a client wrote is a counter too. Throws IllegalStateException if the key holds something else.
+    public long incrementBy(String key, long delta) {
+        byte[] stored = update(key, current -> {
+            if (current != null && (ValueCompression.isCompressed(current) || ValueCompression.decode(current).length != Long.BYTES)) {
+                throw new IllegalStateException("Not a counter: " + key);  // A compressed value is far longer than 8 bytes
+            }
+            long count = current == null ? 0 : ByteBuffer.wrap(ValueCompression.decode(current)).getLong();
+            return ValueCompression.escape(ByteBuffer.allocate(Long.BYTES).putLong(count + delta).array());
+        });
+        return ByteBuffer.wrap(ValueCompression.decode(stored)).getLong();
+    }
+
+    // Values of the keys and the version each was read at, for a transaction to commit() against. A version is
+    // read before its value, so a write racing with the read can only make the commit fail, never go unnoticed.
+    public ReadSet readSet(List<String> keys) {
+        Map<String, byte[]> values = new HashMap<>();
+        Map<String, Long> readVersions = new HashMap<>();
+        for (String key : keys) {
+            readVersions.put(key, slotVersions.get(slotOf(key)));
+            values.put(key, get(key));
+        }
+        return new ReadSet(values, readVersions);
+    }
+
+    // Applies the writes atomically if every key read still has the version it was read at, i.e. nothing written
+    // since could have changed what the writes were computed from; returns whether it did. The check is optimistic:
+    // reads take no lock, and only the stripes of the keys read and written are locked while checking and writing.
+    public boolean commit(Map<String, Long> readVersions, Map<String, byte[]> writes) {
+        Set<String> keys = new HashSet<>(readVersions.keySet());
+        keys.addAll(writes.keySet());
+        Commit commit = new Commit();
+        long locked = lockStripes(keys);
+        try {
+            for (Map.Entry<String, Long> read : readVersions.entrySet()) {
+                if (slotVersions.get(slotOf(read.getKey())) != read.getValue()) {
+                    return false;  // Written since it was read
+                }
+            }
+            if (writes.isEmpty()) {
+                return true;  // The reads were consistent; nothing to write
+            }
+            apply(commit, withoutDeadlines(writes), true);
+        } finally {
+            unlockStripes(locked);
+            publish(commit);
+        }
+        complete(commit);
+        return true;
+    }
+
+    // Stages one chunk of a streamed value; it expires unless commitStream() includes it in time
+    public void putChunk(String key, long upload, int index, byte[] bytes) {
+        put(chunkKey(key, upload, index), bytes, STAGING_TTL_MILLIS);
+    }
+
+    // Makes the staged chunks of an upload the key's streamed value, in one write that also keeps the chunks for good
+    // and removes those of the value it replaces. Returns false, writing nothing, if a chunk is missing: never
+    // staged, or expired before the upload finished.
+    public boolean commitStream(String key, long upload, int chunks, long length) {
+        Map<String, byte[]> pairs = new HashMap<>();
+        pairs.put(streamKey(key), new StreamedValue(upload, chunks, length).encode());
+        Commit commit = new Commit();
+        int stripe = stripeOf(key);  // Which every chunk of the key shares
+        lock(stripe);
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < chunks; i++) {
+                String chunk = chunkKey(key, upload, i);
+                Long deadline = deadlines.get(chunk);
+                if (deadline == null || deadline <= now) {
+                    return false;
+                }
+                pairs.put(deadlineKey(chunk), null);
+            }
+            StreamedValue replaced = streams.get(key);
+            if (replaced != null && replaced.upload() != upload) {
+                for (int i = 0; i < replaced.chunks(); i++) {
+                    pairs.put(chunkKey(key, replaced.upload(), i), null);
+                }
+            }
+            if (engine.get(key) != null) {
+                pairs.put(key, null);  // The plain value it replaces
+            }
+            apply(commit, withoutDeadlines(pairs), true);
+        } finally {
+            stripes[stripe].unlock();
+            publish(commit);
+        }
+        complete(commit);
+        return true;
+    }
+
+    // The streamed value stored under the key, or null if there is none
+    public StreamedValue streamed(String key) {
+        return streams.get(key);
+    }
+
+    // One chunk of a streamed value, in place where the engine allows; the caller must release it.
+    // Null if the upload has been replaced and its chunks removed.
+    public ValueRef acquireChunk(String key, long upload, int index) {
+        return acquire(chunkKey(key, upload, index));
+    }
+
+    // Removes the given keys whose deadline has passed, unless a write has given them a new one or none
+    // meanwhile, in one write; returns how many it removed
+    public int expire(Collection<String> keys) {
+        Commit commit = new Commit();
+        long locked = lockStripes(keys);
         try {
-            return store.get(key);  // Return the value associated with the key
+            Map<String, byte[]> removals = new HashMap<>();
+            long now = System.currentTimeMillis();
+            for (String key : keys) {
+                Long deadline = deadlines.get(key);
+                if (deadline != null && deadline <= now) {
+                    removals.put(key, null);
+                    removals.put(deadlineKey(key), null);
+                }
+            }
+            if (removals.isEmpty()) {
+                return 0;
+            }
+            apply(commit, removals, true);
         } finally {
-            storeLock.unlock();  // Ensure that the lock is released after the operation
+            unlockStripes(locked);
+            publish(commit);
         }
+        complete(commit);
+        return commit.pairs.size() / 2;
+    }
+
+    // Deadline of a key stored with a time to live, or null if it has none
+    public Long deadline(String key) {
+        return deadlines.get(key);
+    }
+
+    // Every key with a deadline, and the deadline
+    public Map<String, Long> deadlines() {
+        return Collections.unmodifiableMap(deadlines);
+    }
+
+    // How long writes have waited for each other's stripe locks
+    public LatencyHistogram stripeWaits() {
+        return stripeWaits;
+    }
+
+    // The key whose deadline is stored under the given key, or null if it is an ordinary key
+    public static String expiringKey(String key) {
+        return key.startsWith(DEADLINE_PREFIX) ? key.substring(DEADLINE_PREFIX.length()) : null;
+    }
+
+    // Method to retrieve the value for a specific key from the map
+    public byte[] get(String key) {
+        return expired(key) ? null : engine.get(key);  // Return the value associated with the key
+    }
+
+    // Retrieves a value without copying it where the engine allows (off-heap); the caller must release it
+    public ValueRef acquire(String key) {
+        return expired(key) ? null : engine.acquire(key);
     }
 
     // Method to store multiple key-value pairs in the map
     public void multiPut(Map<String, byte[]> pairs) {
-        storeLock.lock();  // Acquire the lock to ensure thread-safety during modification
+        write(pairs, true);
+    }
+
+    // Stores pairs copied from a primary outside its replication stream, i.e. a full copy sent to a backup;
+    // they are not logged for replication, since the stream resumes after them
+    public void loadReplica(Map<String, byte[]> pairs) {
+        write(pairs, false);
+    }
+
+    // Removes every pair whose key a full copy did not include, once the whole copy is loaded, so a backup keeps
+    // nothing its primary has removed meanwhile (expired keys, the chunks of a replaced stream...). Like the copy,
+    // not logged for replication. Returns how many keys it removed.
+    public int retainReplica(Set<String> copied) throws IOException {
+        List<String> stale = new ArrayList<>();
+        for (Iterator<Map.Entry<String, byte[]>> entries = engine.entries(); entries.hasNext(); ) {
+            String key = entries.next().getKey();
+            if (!copied.contains(key)) {
+                stale.add(key);
+            }
+        }
+        for (int start = 0; start < stale.size(); start += REMOVAL_BATCH) {
+            Map<String, byte[]> removals = new HashMap<>();
+            for (String key : stale.subList(start, Math.min(start + REMOVAL_BATCH, stale.size()))) {
+                removals.put(key, null);
+            }
+            write(removals, false);
+        }
+        return stale.size();
+    }
+
+    // Waits until no write is halfway between logged and applied and returns the latest replication record.
+    // Everything up to it is in the engine, so a copy of entries() plus the records after it covers the store.
+    public long replicationPoint() {
+        long all = lockAllStripes();
+        try {
+            return replication.lastSequence();
+        } finally {
+            unlockStripes(all);
+        }
+    }
+
+    // Every pair in the store, for a full copy to a backup
+    public Iterator<Map.Entry<String, byte[]>> entries() throws IOException {
+        return engine.entries();
+    }
+
+    private void write(Map<String, byte[]> pairs, boolean replicate) {
+        Commit commit = new Commit();
+        long locked = lockStripes(pairs.keySet());  // Lock only the stripes of these keys
         try {
-            store.putAll(pairs);  // Put all the key-value pairs in the store
+            apply(commit, withoutDeadlines(pairs), replicate);
         } finally {
-            storeLock.unlock();  // Ensure that the lock is released after the operation
+            unlockStripes(locked);  // Ensure that the locks are released after the operation
+            publish(commit);
+        }
+        complete(commit);  // Outside the locks, so writers to the same stripes share the sync
+    }
+
+    // What a write still has to do once its stripes are unlocked
+    private static final class Commit {
+        Map<String, byte[]> pairs;  // As written, with the removals of dropped deadlines
+        long ticket = 0;  // Write-ahead log ticket to wait for, 0 if none
+        long sequence = 0;  // Replication record to wait for, 0 if none
+        long version = 0;  // Version to publish, 0 until recorded
+    }
+
+    // Logs, versions and applies a write; called with the stripes of its keys locked
+    private void apply(Commit commit, Map<String, byte[]> pairs, boolean replicate) {
+        pairs = withoutStreams(pairs);
+        commit.pairs = pairs;
+        if (wal != null) {
+            commit.ticket = wal.append(pairs);  // One record, so the batch is replayed all or nothing
+        }
+        if (replicate && replication != null) {
+            commit.sequence = replication.append(pairs);  // Likewise applied by the backups all at once
+        }
+        if (pairs.size() == 1) {
+            Map.Entry<String, byte[]> pair = pairs.entrySet().iterator().next();
+            commit.version = versions.record(pair.getKey(), pair.getValue(), engine::get);
+            engine.put(pair.getKey(), pair.getValue());
+        } else {
+            commit.version = versions.record(pairs, engine::get);  // One version, so snapshots see all of the batch or none
+            engine.putAll(pairs);  // Put all the key-value pairs in the store
+        }
+        pairs.forEach(this::index);
+        for (String key : pairs.keySet()) {
+            slotVersions.set(slotOf(key), versionBase + commit.version);  // After the engine, see readSet
+        }
+    }
+
+    // Makes a write visible to snapshots once every earlier one is; called right after unlocking, even if it failed
+    private void publish(Commit commit) {
+        if (commit.version != 0) {
+            versions.publish(commit.version, commit.pairs.keySet());
         }
     }
 
-    // Method to retrieve the values for a list of keys from the map
+    // Waits for the logs, or leaves that to withoutWaiting(), and tells the listeners about a write
+    private void complete(Commit commit) {
+        long[] deferred = deferredLogs.get();
+        if (deferred == null) {
+            awaitLogs(commit.ticket, commit.sequence);
+        } else {
+            deferred[0] = Math.max(deferred[0], commit.ticket);  // Records are durable, and applied, in order
+            deferred[1] = Math.max(deferred[1], commit.sequence);
+        }
+        commit.pairs.forEach(this::notifyListeners);  // After unlocking, so listeners never run under a stripe lock
+    }
+
+    // Adds the removal of their deadline for the keys written without one that had one (stripes locked).
+    // A write that carries the deadline keys itself (a put with a time to live, a backup's copy) is kept as it is.
+    private Map<String, byte[]> withoutDeadlines(Map<String, byte[]> pairs) {
+        if (deadlines.isEmpty()) {
+            return pairs;
+        }
+        Map<String, byte[]> written = pairs;
+        for (String key : pairs.keySet()) {
+            if (deadlines.containsKey(key) && !pairs.containsKey(deadlineKey(key))) {
+                if (written == pairs) {
+                    written = new HashMap<>(pairs);
+                }
+                written.put(deadlineKey(key), null);
+            }
+        }
+        return written;
+    }
+
+    // Adds the removal of the streamed value and its chunks for the keys written as plain values that had one (stripes
+    // locked). A write that carries the key's stream entry itself (commitStream) is kept as it is.
+    private Map<String, byte[]> withoutStreams(Map<String, byte[]> pairs) {
+        if (streams.isEmpty()) {
+            return pairs;
+        }
+        Map<String, byte[]> written = pairs;
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            String key = pair.getKey();
+            StreamedValue stream = pair.getValue() != null ? streams.get(key) : null;  // A removal leaves the stream alone
+            if (stream != null && !pairs.containsKey(streamKey(key))) {
+                if (written == pairs) {
+                    written = new HashMap<>(pairs);
+                }
+                written.put(streamKey(key), null);
+                for (int i = 0; i < stream.chunks(); i++) {
+                    written.put(chunkKey(key, stream.upload(), i), null);
+                }
+            }
+        }
+        return written;
+    }
+
+    // Keeps the key index, the deadlines and the streams in step with a pair just written (stripe locked)
+    private void index(String key, byte[] value) {
+        String expiring = expiringKey(key);
+        if (expiring != null) {
+            if (value == null) {
+                deadlines.remove(expiring);
+            } else {
+                deadlines.put(expiring, ByteBuffer.wrap(value).getLong());
+            }
+        } else if (key.startsWith(STREAM_PREFIX)) {
+            String owner = ownerOf(key);  // Not for scans
+            if (value == null) {
+                streams.remove(owner);
+            } else {
+                streams.put(owner, StreamedValue.decode(value));
+            }
+        } else if (key.startsWith(CHUNK_PREFIX)) {
+            return;  // Not for scans
+        } else if (value == null) {
+            keyIndex.remove(key);
+        } else {
+            keyIndex.add(key);
+        }
+    }
+
+    // Whether the key's deadline has passed; it then reads as missing until expire() removes it
+    private boolean expired(String key) {
+        if (deadlines.isEmpty()) {
+            return false;
+        }
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis();
+    }
+
+    private static String deadlineKey(String key) {
+        return DEADLINE_PREFIX + key;
+    }
+
+    private static String streamKey(String key) {
+        return STREAM_PREFIX + key;
+    }
+
+    private static String chunkKey(String key, long upload, int index) {
+        return String.format("%s%016x:%08x:%s", CHUNK_PREFIX, upload, index, key);
+    }
+
+    // Method to retrieve the values for a list of keys from the map, all as of one snapshot
     public Map<String, byte[]> multiGet(List<String> keys) {
-        storeLock.lock();  // Acquire the lock to ensure thread-safety during retrieval
+        long snapshot = versions.openSnapshot();
         try {
             Map<String, byte[]> results = new HashMap<>();  // Create a map to hold the results
             for (String key : keys) {
-                byte[] value = store.get(key);  // Retrieve the value for each key
-                results.put(key, value);  // Put the key-value pair in the results map
+                byte[] latest = engine.get(key);  // Read before the history, which then covers any newer write
+                results.put(key, expired(key) ? null : versions.read(key, snapshot, latest));  // Put the value as of the snapshot in the results map
             }
             return results;  // Return the map of key-value pairs
         } finally {
-            storeLock.unlock();  // Ensure that the lock is released after the operation
+            versions.closeSnapshot(snapshot);  // Lets the history of the keys written meanwhile be dropped
+        }
+    }
+
+    // Up to limit pairs with from <= key < to ("" for no bound) in key order, all as of one snapshot, and the
+    // key the next chunk starts at (null if there is none). Chunks are not a snapshot of the whole range.
+    public ScanChunk scan(String from, String to, int limit) {
+        NavigableSet<String> range = to.isEmpty() ? keyIndex.tailSet(from, true) : keyIndex.subSet(from, true, to, false);
+        Map<String, byte[]> pairs = new LinkedHashMap<>();
+        long snapshot = versions.openSnapshot();
+        try {
+            for (String key : range) {
+                if (pairs.size() == limit) {
+                    return new ScanChunk(pairs, key);
+                }
+                byte[] value = versions.read(key, snapshot, engine.get(key));
+                if (value != null && !expired(key)) {  // Null if indexed by a write after the snapshot
+                    pairs.put(key, value);
+                }
+            }
+            return new ScanChunk(pairs, null);
+        } finally {
+            versions.closeSnapshot(snapshot);
         }
     }
 
     // Method to retrieve the value for a specific key (this is a simplified version of the get method)
     public byte[] getValue(String key) {
-        storeLock.lock();  // Acquire the lock to ensure thread-safety during retrieval
+        return get(key);  // Return the value associated with the key
+    }
+
+    // Makes the writes of an action without waiting for the logs, and returns a future of its result that
+    // completes once they are as durable and as replicated as the blocking calls wait for; it fails if the
+    // write-ahead log does, and the writes must then not be acknowledged. For a thread that must not wait for a
+    // disk sync or a backup, e.g. an event loop; the writes are visible, and the listeners told, right away.
+    public <T> CompletableFuture<T> withoutWaiting(Supplier<T> action) {
+        long[] logs = new long[2];
+        deferredLogs.set(logs);
+        T result;
         try {
-            return store.get(key);  // Return the value associated with the key
+            result = action.get();
         } finally {
-            storeLock.unlock();  // Ensure that the lock is released after the operation
+            deferredLogs.remove();
+        }
+        CompletableFuture<Void> durable = logs[0] != 0 ? wal.whenDurable(logs[0]) : CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> replicated = logs[1] != 0 ? replication.whenReplicated(logs[1]) : CompletableFuture.completedFuture(null);
+        return durable.thenCombine(replicated, (logged, applied) -> result);
+    }
+
+    // Registers a component to be told about every write
+    public void addWriteListener(WriteListener listener) {
+        listeners.add(listener);
+    }
+
+    // Waits for the write-ahead log and the backups, whichever the write was logged to
+    private void awaitLogs(long ticket, long sequence) {
+        try {
+            if (ticket != 0) {
+                wal.awaitDurable(ticket);
+            }
+            if (sequence != 0) {
+                replication.awaitReplicated(sequence);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // The write is not acknowledged; the connection is dropped instead
+        }
+    }
+
+    private void notifyListeners(String key, byte[] value) {
+        for (WriteListener listener : listeners) {
+            listener.onWrite(key, value);
+        }
+    }
+
+    private static ReentrantLock[] newStripes() {
+        ReentrantLock[] stripes = new ReentrantLock[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        return stripes;
+    }
+
+    private static AtomicLongArray newSlotVersions(long base) {
+        AtomicLongArray versions = new AtomicLongArray(VERSION_SLOTS);
+        for (int i = 0; i < VERSION_SLOTS; i++) {
+            versions.set(i, base);
+        }
+        return versions;
+    }
+
+    // Index of the stripe that guards a key
+    private static int stripeOf(String key) {
+        return hashOf(key) & (STRIPE_COUNT - 1);
+    }
+
+    // Index of a key's version slot; the slots of a stripe's keys are all guarded by that stripe
+    private static int slotOf(String key) {
+        return hashOf(key) & (VERSION_SLOTS - 1);
+    }
+
+    // Hash of a key for the stripes and the slots; an internal key goes with the key it belongs to
+    private static int hashOf(String key) {
+        int hash = ownerOf(key).hashCode();
+        return hash ^ (hash >>> 16);  // Spread the high bits like HashMap does
+    }
+
+    // The key a deadline, stream or chunk key belongs to, or the key itself for an ordinary key
+    private static String ownerOf(String key) {
+        String expiring = expiringKey(key);
+        if (expiring != null) {
+            key = expiring;
+        }
+        if (key.startsWith(STREAM_PREFIX)) {
+            return key.substring(STREAM_PREFIX.length());
+        }
+        return key.startsWith(CHUNK_PREFIX) && key.length() >= CHUNK_HEADER ? key.substring(CHUNK_HEADER) : key;
+    }
+
+    // Locks the stripes of the given keys in ascending order, so two batches can never deadlock.
+    // Returns the locked stripes as a bit set.
+    private long lockStripes(Iterable<String> keys) {
+        long mask = 0;
+        for (String key : keys) {
+            mask |= 1L << stripeOf(key);
+        }
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            lock(Long.numberOfTrailingZeros(bits));
+        }
+        return mask;
+    }
+
+    // Takes a stripe lock and waits out the unlocked puts already under way in the stripe, which never block;
+    // the wait is timed only if another write held the stripe. The lock is taken before the count is read, and an
+    // unlocked put counts itself before it checks the lock, so one of the two always sees the other.
+    private void lock(int stripe) {
+        long start = 0;
+        if (!stripes[stripe].tryLock()) {
+            start = System.nanoTime();
+            stripes[stripe].lock();
+        }
+        while (unlockedPuts.get(stripe * COUNTER_SPACING) != 0) {
+            if (start == 0) {
+                start = System.nanoTime();
+            }
+            Thread.yield();
+        }
+        if (start != 0) {
+            stripeWaits.recordSince(start);
+        }
+    }
+
+    private long lockAllStripes() {
+        for (int stripe = 0; stripe < STRIPE_COUNT; stripe++) {
+            lock(stripe);
+        }
+        return -1L;  // Every bit set
+    }
+
+    private void unlockStripes(long mask) {
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            stripes[Long.numberOfTrailingZeros(bits)].unlock();
         }
     }
 }
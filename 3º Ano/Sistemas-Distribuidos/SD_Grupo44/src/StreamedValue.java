@@ -0,0 +1,20 @@
+import java.nio.ByteBuffer;
+
+// A value stored in chunks by putchunk, as kept by StorageService: the upload that wrote it, how many chunks it has
+// and its length. Stored as   long upload | int chunks | long length   under the key's stream entry.
+public record StreamedValue(long upload, int chunks, long length) {
+    private static final int SIZE = Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    public byte[] encode() {
+        return ByteBuffer.allocate(SIZE).putLong(upload).putInt(chunks).putLong(length).array();
+    }
+
+    // The streamed value these bytes describe, or null for none
+    public static StreamedValue decode(byte[] stored) {
+        if (stored == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(stored);
+        return new StreamedValue(buffer.getLong(), buffer.getInt(), buffer.getLong());
+    }
+}
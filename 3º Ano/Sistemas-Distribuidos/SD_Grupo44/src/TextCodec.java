@@ -0,0 +1,279 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Reads requests and writes responses in the writeUTF based protocol every connection starts with
+public final class TextCodec implements ProtocolCodec {
+    public static final TextCodec INSTANCE = new TextCodec();
+
+    private TextCodec() {
+    }
+
+    // Reads one full request frame; throws EOFException if the stream ends in the middle of it
+    @Override
+    public Request readRequest(DataInputStream input, int maxBytes) throws IOException {
+        String command = input.readUTF();  // Every frame starts with the command name
+        int id = input.readInt();  // followed by the request id the reply must carry
+        long[] budget = {maxBytes};  // Value bytes the rest of the frame may still hold
+
+        // Arguments are read left to right, in the order the client wrote them
+        return switch (Request.Type.fromCommand(command)) {
+            case PUT -> Request.put(id, input.readUTF(), readValue(input, budget));
+            case GET -> Request.get(id, input.readUTF());
+            case MULTIPUT -> Request.multiPut(id, readPairs(input, budget));
+            case MULTIGET -> Request.multiGet(id, readKeys(input));
+            case GETWHEN -> Request.getWhen(id, input.readUTF(), input.readUTF(), readValue(input, budget));
+            case EXIT -> Request.exit(id);
+            case BINARY -> Request.binary(id, input.readInt());
+            case VPUT -> Request.vput(id, input.readUTF(), input.readLong(), readValue(input, budget));
+            case VGET -> Request.vget(id, input.readUTF());
+            case SCAN -> Request.scan(id, input.readUTF(), input.readUTF(), input.readInt());
+            case PUTTTL -> Request.putTtl(id, input.readUTF(), input.readLong(), readValue(input, budget));
+            case CAS -> Request.cas(id, input.readUTF(), readNullableValue(input, budget), readValue(input, budget));
+            case INCREMENT -> Request.increment(id, input.readUTF(), input.readLong());
+            case PUTIFABSENT -> Request.putIfAbsent(id, input.readUTF(), readValue(input, budget));
+            case TXGET -> Request.txGet(id, readKeys(input));
+            case TXCOMMIT -> Request.txCommit(id, readVersions(input), readPairs(input, budget));
+            case PUTCHUNK -> Request.putChunk(id, input.readUTF(), input.readLong(), input.readInt(), input.readLong(), readValue(input, budget));
+            case GETCHUNK -> Request.getChunk(id, input.readUTF(), input.readLong(), input.readInt());
+            case STATS -> Request.stats(id);
+            default -> Request.unknown(id);
+        };
+    }
+
+    // Reads the key-value pairs of a multiput
+    private static Map<String, byte[]> readPairs(DataInputStream input, long[] budget) throws IOException {
+        int numPairs = input.readInt();  // Number of key-value pairs that follow
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < numPairs; i++) {
+            String key = input.readUTF();
+            pairs.put(key, readValue(input, budget));
+        }
+        return pairs;
+    }
+
+    // Reads the keys a txcommit read, each with its version
+    private static Map<String, Long> readVersions(DataInputStream input) throws IOException {
+        int numKeys = input.readInt();
+        Map<String, Long> versions = new HashMap<>();
+        for (int i = 0; i < numKeys; i++) {
+            String key = input.readUTF();
+            versions.put(key, input.readLong());
+        }
+        return versions;
+    }
+
+    // Reads the keys of a multiget
+    private static List<String> readKeys(DataInputStream input) throws IOException {
+        int numKeys = input.readInt();  // Number of keys that follow
+        List<String> keys = new ArrayList<>();  // Not sized by numKeys, which the client chose
+        for (int i = 0; i < numKeys; i++) {
+            keys.add(input.readUTF());
+        }
+        return keys;
+    }
+
+    // Walks the fields of the next request without allocating any of them, so a frame still arriving is not parsed
+    // again and its values allocated on every read. A malformed frame counts as complete, for readRequest to report.
+    @Override
+    public boolean hasCompleteFrame(ByteBuffer buffer) {
+        ByteBuffer frame = buffer.duplicate();
+        try {
+            int commandLength = frame.getShort() & 0xFFFF;
+            if (commandLength > frame.remaining()) {
+                return false;
+            }
+            byte[] command = new byte[Math.min(commandLength, 32)];  // Longer than any command, so an unknown one either way
+            frame.get(command);
+            skip(frame, commandLength - command.length + Integer.BYTES);  // and the request id
+            switch (Request.Type.fromCommand(new String(command, StandardCharsets.UTF_8))) {
+                case PUT, PUTIFABSENT -> {
+                    skipUtf(frame);
+                    skipValue(frame);
+                }
+                case GET, VGET -> skipUtf(frame);
+                case MULTIPUT -> skipPairs(frame);
+                case MULTIGET, TXGET -> {
+                    for (int i = frame.getInt(); i > 0; i--) {
+                        skipUtf(frame);
+                    }
+                }
+                case GETWHEN -> {
+                    skipUtf(frame);
+                    skipUtf(frame);
+                    skipValue(frame);
+                }
+                case BINARY -> skip(frame, Integer.BYTES);
+                case VPUT, PUTTTL -> {
+                    skipUtf(frame);
+                    skip(frame, Long.BYTES);
+                    skipValue(frame);
+                }
+                case SCAN -> {
+                    skipUtf(frame);
+                    skipUtf(frame);
+                    skip(frame, Integer.BYTES);
+                }
+                case CAS -> {
+                    skipUtf(frame);
+                    int expected = frame.getInt();
+                    skip(frame, Math.max(expected, 0));  // -1 for no expected value
+                    skipValue(frame);
+                }
+                case INCREMENT -> {
+                    skipUtf(frame);
+                    skip(frame, Long.BYTES);
+                }
+                case TXCOMMIT -> {
+                    for (int i = frame.getInt(); i > 0; i--) {
+                        skipUtf(frame);
+                        skip(frame, Long.BYTES);
+                    }
+                    skipPairs(frame);
+                }
+                case PUTCHUNK -> {
+                    skipUtf(frame);
+                    skip(frame, Long.BYTES + Integer.BYTES + Long.BYTES);
+                    skipValue(frame);
+                }
+                case GETCHUNK -> {
+                    skipUtf(frame);
+                    skip(frame, Long.BYTES + Integer.BYTES);
+                }
+                default -> {
+                    // No arguments
+                }
+            }
+            return true;
+        } catch (BufferUnderflowException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;  // Negative length
+        }
+    }
+
+    private static void skipPairs(ByteBuffer frame) {
+        for (int i = frame.getInt(); i > 0; i--) {
+            skipUtf(frame);
+            skipValue(frame);
+        }
+    }
+
+    private static void skipUtf(ByteBuffer frame) {
+        skip(frame, frame.getShort() & 0xFFFF);
+    }
+
+    private static void skipValue(ByteBuffer frame) {
+        skip(frame, frame.getInt());
+    }
+
+    // Moves past bytes of the frame; throws BufferUnderflowException if they have not all arrived
+    private static void skip(ByteBuffer frame, int bytes) {
+        if (bytes > frame.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        frame.position(frame.position() + bytes);  // IllegalArgumentException if negative
+    }
+
+    // Writes a response the way text protocol clients expect to read it
+    @Override
+    public void writeResponse(DataOutputStream output, Response response) throws IOException {
+        output.writeInt(response.id);  // Every reply starts with the id of its request
+
+        if (response.status == Response.Status.MULTIGET_OK) {
+            // A multiget reply has no status line, just the number of keys and each key with its value
+            output.writeInt(response.keys.size());
+            for (String key : response.keys) {
+                output.writeUTF(key);
+                writeNullableValue(output, response.values.get(key));
+            }
+            return;
+        }
+
+        output.writeUTF(response.status.text());  // Status line
+        if (response.status == Response.Status.CHUNK_OK) {
+            // What the chunk belongs to, then the chunk like the value of a get
+            output.writeLong(response.stream.upload());
+            output.writeInt(response.stream.chunks());
+            output.writeLong(response.stream.length());
+        }
+        if (response.status == Response.Status.TXGET_OK) {
+            // The number of keys, then each key with its version and value
+            output.writeInt(response.keys.size());
+            for (String key : response.keys) {
+                output.writeUTF(key);
+                output.writeLong(response.versions.get(key));
+                writeNullableValue(output, response.values.get(key));
+            }
+        }
+        if (response.status == Response.Status.VPUT_OK || response.status == Response.Status.VGET_OK
+                || response.status == Response.Status.INCREMENT_OK) {
+            output.writeLong(response.stamp);  // Version stamp, before the value of a vget, or the new count
+        }
+        if (response.status == Response.Status.SCAN_OK) {
+            // The number of pairs, each key with its value, then whether there is more and where it starts
+            output.writeInt(response.values.size());
+            for (Map.Entry<String, byte[]> pair : response.values.entrySet()) {
+                output.writeUTF(pair.getKey());
+                writeNullableValue(output, pair.getValue());
+            }
+            output.writeBoolean(response.next != null);
+            if (response.next != null) {
+                output.writeUTF(response.next);
+            }
+        }
+        if (response.ref != null) {
+            output.writeInt(response.ref.length());  // Length of the value
+            response.ref.writeTo(output);            // The value itself, straight from the storage
+        } else if (response.value != null) {
+            output.writeInt(response.value.length);  // Length of the value
+            output.write(response.value);            // The value itself
+        }
+    }
+
+    // Encodes a single string frame (authentication prompts and replies)
+    public static byte[] encode(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(message);
+        return bytes.toByteArray();
+    }
+
+    // Reads a length-prefixed value, taking its length from the frame's budget first
+    private static byte[] readValue(DataInputStream input, long[] budget) throws IOException {
+        byte[] value = new byte[take(input.readInt(), budget)];
+        input.readFully(value);
+        return value;
+    }
+
+    // Reads a length-prefixed value, null for length -1
+    private static byte[] readNullableValue(DataInputStream input, long[] budget) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[take(length, budget)];
+        input.readFully(value);
+        return value;
+    }
+
+    private static int take(int length, long[] budget) throws IOException {
+        if (length < 0 || length > budget[0]) {
+            throw new ProtocolException("Value of " + length + " bytes is over the connection's in-flight limit");
+        }
+        budget[0] -= length;
+        return length;
+    }
+
+    // Writes a length-prefixed value, or -1 when there is no value
+    private static void writeNullableValue(DataOutputStream output, byte[] value) throws IOException {
+        if (value != null) {
+            output.writeInt(value.length);
+            output.write(value);
+        } else {
+            output.writeInt(-1);
+        }
+    }
+}
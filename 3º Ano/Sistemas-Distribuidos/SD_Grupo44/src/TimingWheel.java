@@ -0,0 +1,101 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// Hierarchical timing wheel: schedules an item for a deadline in O(1), and each tick only touches the items due
+// then, however many are scheduled further ahead.
+//
+// Time is cut into ticks of tickMillis. Level 0 has a slot for each of the next 64 ticks, level 1 a slot for each
+// of the next 64 stretches of 64 ticks, and so on up to LEVELS levels (about 21 years with 10 ms ticks). An item
+// goes to the level whose span covers its distance from now, in the slot of its deadline. Whenever the ticks of a
+// level's slot begin, its items move down to the finer levels, so each item is moved at most once per level before
+// its own slot in level 0 comes up. Items further ahead than the top level wait in its last slot and go round again.
+//
+// schedule may be called from any thread; the items are handed over through a queue that advance drains, so only
+// the thread calling advance ever touches the slots.
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;  // Slots per level
+    private static final int LEVELS = 6;
+
+    // An item in a slot, linked to the next one in the same slot
+    private static final class Timer<T> {
+        final T item;
+        final long tick;  // Tick the item is due at
+        Timer<T> next;
+
+        Timer(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    private final Queue<Timer<T>> scheduled = new ConcurrentLinkedQueue<>();  // Handed over by schedule, not yet in a slot
+    private final Timer<T>[][] slots;  // Head of each slot's list, by level
+    private long currentTick;  // Last tick advanced past
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.slots = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    // Schedules an item for the first tick at or after the deadline (epoch milliseconds); thread-safe
+    public void schedule(T item, long deadlineMillis) {
+        scheduled.add(new Timer<>(item, Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis)));
+    }
+
+    // Moves the wheel up to the given time and hands every item due by then to the consumer, in deadline order
+    // (ticks, not milliseconds). Called from one thread only.
+    public void advance(long nowMillis, Consumer<T> due) {
+        for (Timer<T> timer; (timer = scheduled.poll()) != null; ) {
+            place(timer, currentTick + 1);  // The current tick's slot has already been emptied
+        }
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level);  // This level's slot starts now; spread it over the levels below
+                }
+            }
+            int slot = (int) (currentTick & (SLOTS - 1));
+            Timer<T> timer = slots[0][slot];
+            slots[0][slot] = null;
+            for (; timer != null; timer = timer.next) {
+                due.accept(timer.item);
+            }
+        }
+    }
+
+    // Puts an item in the slot for its tick, on the coarsest level it needs; one due before the earliest tick
+    // given goes in that tick's slot
+    private void place(Timer<T> timer, long earliest) {
+        long tick = Math.max(timer.tick, earliest);
+        long distance = tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && distance >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        if (distance >= 1L << (SLOT_BITS * LEVELS)) {
+            tick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;  // Beyond the top level; placed again from there
+        }
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        timer.next = slots[level][slot];
+        slots[level][slot] = timer;
+    }
+
+    // Empties the slot of a level whose ticks begin now, placing its items again closer to their tick
+    private void cascade(int level) {
+        int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        Timer<T> timer = slots[level][slot];
+        slots[level][slot] = null;
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            place(timer, currentTick);  // Level 0's slot for this tick is emptied after the cascades
+            timer = next;
+        }
+    }
+}
@@ -1,73 +1,167 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
+// Registered users and their passwords, kept in a UserStore as salted PBKDF2 hashes.
+//
+// Hashing a password is slow on purpose, so a login whose password was verified once is remembered: the next one
+// with the same password only costs a SHA-256 of it under a key of this server's, and does not look at the store.
+// Wrong passwords are never remembered and always pay the full hash. A registration hashes outside any lock and
+// only then joins the store's group commit, so concurrent registrations share the disk sync instead of queueing.
 public class UserService {
-    // A thread-safe map to store usernames and their corresponding passwords
-    private final Map<String, String> userDatabase = new ConcurrentHashMap<>();
-    private static final String USER_CSV_FILE = "src/users.csv";  // File that stores user data in CSV format
+    private static final String USER_CSV_FILE = "src/users.csv";  // Plaintext file of earlier versions, imported while it exists
+    private static final String USER_LOG_FILE = "src/users.log";  // Append-only log of the users
+    private static final String USER_INDEX_FILE = "src/users.idx";  // Index of where each user is in the log
+    static final long DEFAULT_SESSION_TTL_MILLIS = 60 * 60 * 1000;  // How long a session token lets a user back in
+    private static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int HASH_ITERATIONS = 100_000;  // Stored with each hash, so raising it leaves older hashes valid
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int MAX_VERIFIED = 100_000;  // Logins remembered; past that an arbitrary one is forgotten
 
-    // Constructor initializes the user service and loads the user data from the CSV file
-    public UserService() {
-        loadUserDatabase();  // Load user database from file upon initialization
+    private final UserStore store;
+    private final SessionTokens sessions;  // Signs the tokens that let a user log in again without the password
+    private final Set<String> registering = ConcurrentHashMap.newKeySet();  // Usernames being registered right now
+    private final Map<String, byte[]> verified = new ConcurrentHashMap<>();  // Proof of the last password verified, by user
+    private final byte[] proofKey = new byte[32];  // Mixed into the proofs, so they are no use outside this process
+    private final SecureRandom random = new SecureRandom();
+
+    // Constructor initializes the user service and opens the user store, importing whoever of users.csv it lacks
+    public UserService() throws IOException {
+        this(SessionTokens.withRandomSecret(DEFAULT_SESSION_TTL_MILLIS));
+    }
+
+    public UserService(SessionTokens sessions) throws IOException {
+        this.sessions = sessions;
+        random.nextBytes(proofKey);
+        this.store = new UserStore(Paths.get(USER_LOG_FILE), Paths.get(USER_INDEX_FILE));
+        importCsv();  // On every start, so an import cut short by a crash is finished
+        System.out.println("User database loaded. Total users: " + store.size());
     }
 
-    // Loads the user database from the CSV file (if it exists)
-    private void loadUserDatabase() {
+    // Registers a new user; fails if the username is taken
+    public void saveUser(String username, String password) throws IOException {
+        if (!registering.add(username)) {
+            throw new IOException("Username already exists");  // Being registered by someone else right now
+        }
         try {
-            // Check if the file exists, if not, create an empty file
-            if (!Files.exists(Paths.get(USER_CSV_FILE))) {
-                Files.createFile(Paths.get(USER_CSV_FILE));
-                return;  // Exit if the file doesn't exist
+            if (store.find(username) != null) {
+                throw new IOException("Username already exists");
             }
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            store.add(new UserStore.User(username, HASH_ITERATIONS, salt, hash(password, salt, HASH_ITERATIONS)));
+        } finally {
+            registering.remove(username);
+        }
+        remember(username, proofOf(username, password));
+        System.out.println("User registered: " + username);
+    }
 
-            // Read all lines from the CSV file
-            List<String> lines = Files.readAllLines(Paths.get(USER_CSV_FILE));
-            for (String line : lines) {
-                // Split each line by the comma to extract the username and password
-                String[] parts = line.split(",");
-                if (parts.length == 2) {
-                    // Add the username and password to the userDatabase map
-                    userDatabase.put(parts[0], parts[1]);
-                }
+    // Authenticates a user by checking if the username exists and if the password matches
+    public boolean authenticate(String username, String password) {
+        if (isVerified(username, password)) {
+            return true;
+        }
+        try {
+            UserStore.User user = store.find(username);
+            if (user == null || !MessageDigest.isEqual(hash(password, user.salt(), user.iterations()), user.hash())) {
+                return false;
             }
-            System.out.println("User database loaded. Total users: " + userDatabase.size());
         } catch (IOException e) {
-            // If an error occurs while reading the file, print the error message
-            System.err.println("Error loading user database: " + e.getMessage());
+            System.err.println("Error reading user database: " + e.getMessage());
+            return false;
         }
+        remember(username, proofOf(username, password));
+        return true;
     }
 
-    // Registers a new user and saves their username and password to the database and CSV file
-    public synchronized void saveUser(String username, String password) throws IOException {
-        // Check if the username already exists in the database
-        if (userDatabase.containsKey(username)) {
-            throw new IOException("Username already exists");  // If exists, throw an exception
-        }
-
-        // Add the new user to the userDatabase map
-        userDatabase.put(username, password);
-
-        // Prepare the user entry to write to the CSV file (username,password)
-        String userEntry = username + "," + password + "\n";
+    // Whether this password is the one last verified for the user; cheap, and false only means "not known yet"
+    public boolean isVerified(String username, String password) {
+        byte[] known = verified.get(username);
+        return known != null && MessageDigest.isEqual(known, proofOf(username, password));
+    }
 
-        // Append the user entry to the CSV file
-        Files.write(Paths.get(USER_CSV_FILE), 
-                   userEntry.getBytes(), 
-                   StandardOpenOption.CREATE, 
-                   StandardOpenOption.APPEND);
-        System.out.println("User registered: " + username);
+    // A session token for a user who just logged in or registered
+    public String issueToken(String username) {
+        return sessions.issue(username);
     }
 
-    // Authenticates a user by checking if the username exists and if the password matches
-    public boolean authenticate(String username, String password) {
-        return userDatabase.containsKey(username) && 
-               userDatabase.get(username).equals(password);  // Check if username and password match
+    // The user a session token was issued to, or null if it is not valid (any more); checked without the user database
+    public String authenticateToken(String token) {
+        return sessions.verify(token);
     }
 
     // Checks if the user already exists in the database
     public boolean userExists(String username) {
-        return userDatabase.containsKey(username);  // Returns true if the username exists
+        try {
+            return store.find(username) != null;
+        } catch (IOException e) {
+            System.err.println("Error reading user database: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Moves the users of the plaintext file of earlier versions into the store, hashing their passwords. Users the
+    // store already has are skipped, so once everyone is in this is one index lookup per line.
+    private void importCsv() throws IOException {
+        Path csv = Paths.get(USER_CSV_FILE);
+        if (!Files.exists(csv)) {
+            return;
+        }
+        int imported = 0;
+        for (String line : Files.readAllLines(csv)) {
+            String[] parts = line.split(",");
+            if (parts.length == 2 && store.find(parts[0]) == null) {
+                byte[] salt = new byte[SALT_BYTES];
+                random.nextBytes(salt);
+                store.add(new UserStore.User(parts[0], HASH_ITERATIONS, salt, hash(parts[1], salt, HASH_ITERATIONS)));
+                imported++;
+            }
+        }
+        if (imported > 0) {
+            System.out.println("Imported " + imported + " users from " + USER_CSV_FILE + "; once every user is in, it may be deleted");
+        }
+    }
+
+    private void remember(String username, byte[] proof) {
+        if (verified.size() >= MAX_VERIFIED) {
+            Iterator<String> users = verified.keySet().iterator();
+            if (users.hasNext()) {
+                verified.remove(users.next());
+            }
+        }
+        verified.put(username, proof);
+    }
+
+    // Cheap digest of a login, equal only for the same username and password
+    private byte[] proofOf(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(proofKey);
+            digest.update(username.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot verify passwords: " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(HASH_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot hash passwords: " + e.getMessage(), e);
+        } finally {
+            spec.clearPassword();
+        }
     }
 }
@@ -0,0 +1,396 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// Registered users on disk: an append-only log of their records and a hash index of where each one is, so that
+// neither startup nor a lookup reads more than a few records however many users there are.
+//
+// The log holds one record per user,   int length | int CRC32 | body   as in the WriteAheadLog, with the body
+//   UTF username | int iterations | byte salt length | salt | byte hash length | hash.
+// Registrations copy their record into a shared buffer and one flusher thread writes whatever accumulated with a
+// single write and fsync, so concurrent registrations share one sync (group commit).
+//
+// The index is a file mapped in memory: a header   long magic | int slots | int count | long indexed   and an
+// open-addressing table of   int hash | long offset + 1   slots (0 for an empty one), doubled in a new file once it
+// is half full. A user is indexed after its record is synced, and the index is synced before its header says how
+// much of the log it covers, so startup only replays the log after that point; replaying a record already indexed
+// just points its slot at it again.
+public class UserStore {
+    private static final int HEADER_SIZE = 8;  // Length and checksum in front of every record
+    private static final long INDEX_MAGIC = 0x5553455249445801L;  // "USERIDX" and format version 1
+    private static final int INDEX_HEADER = 32;
+    private static final int SLOT_SIZE = 12;
+    private static final int INITIAL_SLOTS = 1 << 12;
+    private static final int READ_AHEAD = 128;  // Bytes read for a lookup, enough for a whole record of a usual username
+
+    // A user's record: the password is only kept as a salted hash
+    public record User(String username, int iterations, byte[] salt, byte[] hash) {}
+
+    // A user appended to the log, at the offset of its record
+    private record Appended(String username, long offset) {}
+
+    private final Path logPath;
+    private final Path indexPath;
+    private final FileChannel log;  // Appended to by the flusher only; lookups read it at their offsets
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();  // Guards the index fields
+    private MappedByteBuffer index;
+    private int slots;  // Power of two
+    private int count;  // Users indexed
+
+    private final ReentrantLock lock = new ReentrantLock();  // Guards the fields below
+    private final Condition pendingAvailable = lock.newCondition();  // Signalled when a record is appended
+    private final Condition flushed = lock.newCondition();  // Signalled when a batch has been written and indexed
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();  // Records not yet written
+    private List<Appended> pendingUsers = new ArrayList<>();  // Their users, to index once written
+    private long logEnd;  // Log offset the next record appended goes to, once everything pending is written
+    private long appended = 0;  // Number of records appended so far
+    private long written = 0;  // Number of records written, synced and indexed; never counts a failed batch
+    private IOException failure;  // Set if writing the log failed; that batch and every later registration fail
+
+    // Opens the log and its index, creating both if need be, and indexes whatever the index does not cover yet
+    public UserStore(Path logPath, Path indexPath) throws IOException {
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long indexed = openIndex();
+        if (indexed > log.size()) {  // Index of another log; build it again
+            index = createIndex(indexPath, INITIAL_SLOTS);
+            slots = INITIAL_SLOTS;
+            count = 0;
+            indexed = 0;
+        }
+        logEnd = replay(indexed);
+        log.position(logEnd);
+        index.force();
+        writeHeader(logEnd);
+
+        Thread flusher = new Thread(this::flushLoop, "user-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Number of registered users
+    public int size() {
+        indexLock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // The user's record, or null if there is no such user
+    public User find(String username) throws IOException {
+        int hash = hashOf(username);
+        indexLock.readLock().lock();
+        try {
+            for (int slot = hash & (slots - 1); ; slot = (slot + 1) & (slots - 1)) {
+                int at = INDEX_HEADER + slot * SLOT_SIZE;
+                long offset = index.getLong(at + Integer.BYTES) - 1;
+                if (offset < 0) {
+                    return null;
+                }
+                if (index.getInt(at) == hash) {
+                    User user = read(offset);
+                    if (user.username().equals(username)) {
+                        return user;
+                    }
+                }
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // Adds a user and returns once the record is synced and indexed. The caller makes sure the username is new.
+    public void add(User user) throws IOException {
+        byte[] record = encode(user);
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new IOException("User log failed", failure);
+            }
+            pending.write(record, 0, record.length);
+            pendingUsers.add(new Appended(user.username(), logEnd));
+            logEnd += record.length;
+            long ticket = ++appended;
+            pendingAvailable.signal();
+            while (written < ticket && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (written < ticket) {
+                throw new IOException("User log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Body of the flusher thread: writes, syncs and indexes every batch that accumulated meanwhile
+    private void flushLoop() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            List<Appended> users;
+            long batchEnd;
+            long batchEndOffset;
+            lock.lock();
+            try {
+                while (pending.size() == 0) {
+                    pendingAvailable.awaitUninterruptibly();
+                }
+                batch = pending;
+                users = pendingUsers;
+                batchEnd = appended;
+                batchEndOffset = logEnd;
+                pending = new ByteArrayOutputStream();
+                pendingUsers = new ArrayList<>();
+                if (failure != null) {
+                    continue;  // Appended just before the failure; their add() already threw, so they are dropped
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                log.force(false);  // One fsync for every registration in the batch
+                indexLock.writeLock().lock();
+                try {
+                    for (Appended user : users) {
+                        insert(hashOf(user.username()), user.offset(), user.username());
+                    }
+                    index.force();
+                    writeHeader(batchEndOffset);  // Synced with the next batch; a crash meanwhile replays this one again
+                } finally {
+                    indexLock.writeLock().unlock();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                if (error == null) {
+                    written = batchEnd;
+                } else {
+                    failure = error;  // Leaves written behind, so every add() of the batch throws
+                    System.err.println("User log failed: " + error.getMessage());
+                }
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Maps the index file, or creates an empty one; returns how much of the log it covers
+    private long openIndex() throws IOException {
+        if (Files.exists(indexPath)) {
+            try (FileChannel file = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (file.size() >= INDEX_HEADER) {
+                    MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_WRITE, 0, file.size());
+                    int mappedSlots = mapped.getInt(8);
+                    if (mapped.getLong(0) == INDEX_MAGIC && Integer.bitCount(mappedSlots) == 1
+                            && file.size() == INDEX_HEADER + (long) mappedSlots * SLOT_SIZE) {
+                        index = mapped;
+                        slots = mappedSlots;
+                        count = mapped.getInt(12);
+                        return mapped.getLong(16);
+                    }
+                }
+            }
+            System.err.println("User index is damaged; building it again from the log");
+        }
+        index = createIndex(indexPath, INITIAL_SLOTS);
+        slots = INITIAL_SLOTS;
+        count = 0;
+        return 0;
+    }
+
+    // Indexes every intact record from the given offset on and cuts off a torn tail; returns the end of the log
+    private long replay(long from) throws IOException {
+        long validEnd = from;
+        long size = log.size();
+        int records = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(from))));
+        try {
+            while (true) {
+                int length = input.readInt();
+                int checksum = input.readInt();
+                if (length <= 0 || length > size - validEnd - HEADER_SIZE) {
+                    break;  // Garbage where a record header should be, or a record cut short
+                }
+                byte[] body = new byte[length];
+                input.readFully(body);
+                if (checksum != crcOf(body)) {
+                    break;  // The record was only partly written
+                }
+                String username = decode(body).username();
+                insert(hashOf(username), validEnd, username);
+                validEnd += HEADER_SIZE + length;
+                records++;
+            }
+        } catch (EOFException e) {
+            // End of the log, possibly in the middle of a record
+        }
+        if (records > 0) {
+            count = countSlots();  // The count in the header may be older than slots synced before a crash
+            System.out.println("User log: indexed " + records + " records");
+        }
+        if (log.size() > validEnd) {
+            System.err.println("User log: dropping " + (log.size() - validEnd) + " bytes of incomplete records");
+            log.truncate(validEnd);
+        }
+        return validEnd;
+    }
+
+    // Points the username's slot at a record, taking a free slot if the user is not indexed yet (index lock held)
+    private void insert(int hash, long offset, String username) throws IOException {
+        if ((count + 1) * 2 > slots) {
+            grow();
+        }
+        for (int slot = hash & (slots - 1); ; slot = (slot + 1) & (slots - 1)) {
+            int at = INDEX_HEADER + slot * SLOT_SIZE;
+            long existing = index.getLong(at + Integer.BYTES) - 1;
+            if (existing < 0) {
+                index.putInt(at, hash);
+                index.putLong(at + Integer.BYTES, offset + 1);
+                count++;
+                return;
+            }
+            if (index.getInt(at) == hash && read(existing).username().equals(username)) {
+                index.putLong(at + Integer.BYTES, offset + 1);  // Replayed again after a crash
+                return;
+            }
+        }
+    }
+
+    // Moves the index to a file with twice the slots (index lock held)
+    private void grow() throws IOException {
+        Path next = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        int nextSlots = slots * 2;
+        MappedByteBuffer bigger = createIndex(next, nextSlots);
+        for (int slot = 0; slot < slots; slot++) {
+            int at = INDEX_HEADER + slot * SLOT_SIZE;
+            long offset = index.getLong(at + Integer.BYTES);
+            if (offset == 0) {
+                continue;
+            }
+            int hash = index.getInt(at);
+            int target = hash & (nextSlots - 1);
+            while (bigger.getLong(INDEX_HEADER + target * SLOT_SIZE + Integer.BYTES) != 0) {
+                target = (target + 1) & (nextSlots - 1);
+            }
+            bigger.putInt(INDEX_HEADER + target * SLOT_SIZE, hash);
+            bigger.putLong(INDEX_HEADER + target * SLOT_SIZE + Integer.BYTES, offset);
+        }
+        bigger.putInt(12, count);
+        bigger.putLong(16, index.getLong(16));
+        bigger.force();
+        Files.move(next, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = bigger;
+        slots = nextSlots;
+    }
+
+    // Number of slots in use, counted the slow way
+    private int countSlots() {
+        int used = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (index.getLong(INDEX_HEADER + slot * SLOT_SIZE + Integer.BYTES) != 0) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    // Creates an empty index file with the given number of slots and maps it
+    private static MappedByteBuffer createIndex(Path path, int slots) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) slots * SLOT_SIZE);
+            mapped.putLong(0, INDEX_MAGIC);
+            mapped.putInt(8, slots);
+            return mapped;
+        }
+    }
+
+    // Records how much of the log the index covers (index lock held, or before the flusher starts)
+    private void writeHeader(long indexed) {
+        index.putInt(12, count);
+        index.putLong(16, indexed);
+    }
+
+    // Reads the record at a log offset, usually with a single read
+    private User read(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_AHEAD);
+        while (buffer.position() < HEADER_SIZE) {
+            if (log.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("User log " + logPath + " is truncated");
+            }
+        }
+        int length = buffer.getInt(0);
+        if (HEADER_SIZE + length > buffer.capacity()) {
+            buffer = ByteBuffer.allocate(HEADER_SIZE + length).put(buffer.flip());
+        }
+        buffer.limit(HEADER_SIZE + length);
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("User log " + logPath + " is truncated");
+            }
+        }
+        return decode(Arrays.copyOfRange(buffer.array(), HEADER_SIZE, HEADER_SIZE + length));
+    }
+
+    // Spreads String.hashCode, which is the same in every JVM, over the bits the table uses
+    private static int hashOf(String username) {
+        int hash = username.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static byte[] encode(User user) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeUTF(user.username());
+            out.writeInt(user.iterations());
+            out.writeByte(user.salt().length);
+            out.write(user.salt());
+            out.writeByte(user.hash().length);
+            out.write(user.hash());
+            byte[] bytes = body.toByteArray();
+            return ByteBuffer.allocate(HEADER_SIZE + bytes.length).putInt(bytes.length).putInt(crcOf(bytes)).put(bytes).array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // In-memory streams do not fail
+        }
+    }
+
+    private static User decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        String username = in.readUTF();
+        int iterations = in.readInt();
+        byte[] salt = new byte[in.readUnsignedByte()];
+        in.readFully(salt);
+        byte[] hash = new byte[in.readUnsignedByte()];
+        in.readFully(hash);
+        return new User(username, iterations, salt, hash);
+    }
+
+    private static int crcOf(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
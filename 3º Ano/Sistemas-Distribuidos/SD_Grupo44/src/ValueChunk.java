@@ -0,0 +1,3 @@
+// One chunk of a streamed value as a client receives it, with the value it belongs to
+public record ValueChunk(StreamedValue value, int index, byte[] bytes) {
+}
@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Values kept compressed from the client that wrote them to the store and back to the clients that read them.
+//
+// A client that switches with the compressed version of the binary protocol sends and receives every value in its
+// stored form: a value of MIN_BYTES or more that deflates to at most 7/8 of its size is sent as
+//   MAGIC | DEFLATED | 4 byte original length | zlib stream
+// and any other value as it is, unless it happens to start with MAGIC, in which case it is escaped as
+//   MAGIC | ESCAPED | value.
+// The server stores that form untouched, so compressed values cost it no CPU. The values of clients that did not
+// negotiate compression are escaped on the way in, which copies nothing unless they start with MAGIC, and decoded
+// on the way out, which only costs an inflate for the values stored compressed. Chunks of streamed values are sent
+// as they are either way. Values compared by the server (cas, getwhen) are compared decoded.
+//
+// The static methods are the encoding, used by both sides; an instance converts requests and replies for the
+// server's plain connections and counts what the compression saves and costs.
+public class ValueCompression {
+    public static final int MIN_BYTES = 1024;  // Values shorter than this are never compressed; the saving is not worth the CPU
+
+    private static final byte[] MAGIC = {0, 'K', 'V', 'z'};  // Starts every value in a form other than the raw one
+    private static final byte ESCAPED = 0;
+    private static final byte DEFLATED = 1;
+    private static final int HEADER = MAGIC.length + 1;
+    private static final int DEFLATED_HEADER = HEADER + Integer.BYTES;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private final LongAdder compressedValues = new LongAdder();  // Values written compressed by clients
+    private final LongAdder originalBytes = new LongAdder();  // Their size before compression
+    private final LongAdder storedBytes = new LongAdder();  // Their size as stored
+    private final LongAdder decompressedValues = new LongAdder();  // Values inflated for plain clients
+    private final LongAdder decompressNanos = new LongAdder();  // Time spent inflating them
+
+    // What the compression has saved and cost since the server started
+    public record Stats(long compressedValues, long originalBytes, long storedBytes, long decompressedValues, long decompressNanos) {
+        // Original size over stored size of the values written compressed, 1 if there are none
+        public double ratio() {
+            return storedBytes == 0 ? 1 : (double) originalBytes / storedBytes;
+        }
+    }
+
+    // ---- Encoding ----
+
+    // Stored form of a value; compressed if asked to and it is worth it, otherwise the value itself (escaped if need be)
+    public static byte[] encode(byte[] value, boolean compress) {
+        if (compress && value.length >= MIN_BYTES) {
+            byte[] deflated = deflate(value);
+            if (deflated != null) {
+                return deflated;
+            }
+        }
+        return escape(value);
+    }
+
+    // Stored form of a value that is never compressed: the value itself unless it starts with MAGIC
+    public static byte[] escape(byte[] value) {
+        if (value == null || !startsWithMagic(value)) {
+            return value;
+        }
+        byte[] escaped = Arrays.copyOf(MAGIC, HEADER + value.length);
+        escaped[MAGIC.length] = ESCAPED;
+        System.arraycopy(value, 0, escaped, HEADER, value.length);
+        return escaped;
+    }
+
+    // The value a stored form stands for; throws IllegalStateException if a compressed one is corrupt
+    public static byte[] decode(byte[] stored) {
+        if (!isEncoded(stored)) {
+            return stored;
+        }
+        if (stored[MAGIC.length] == ESCAPED) {
+            return Arrays.copyOfRange(stored, HEADER, stored.length);
+        }
+        return inflate(stored);
+    }
+
+    // Whether a stored value is in a form other than the raw one, so decode has something to do
+    public static boolean isEncoded(byte[] stored) {
+        return stored != null && stored.length >= HEADER && startsWithMagic(stored)
+                && (stored[MAGIC.length] == ESCAPED || stored[MAGIC.length] == DEFLATED && stored.length >= DEFLATED_HEADER);
+    }
+
+    // Whether a stored value is compressed
+    public static boolean isCompressed(byte[] stored) {
+        return isEncoded(stored) && stored[MAGIC.length] == DEFLATED;
+    }
+
+    // Whether two stored values stand for the same value, whichever form each is in
+    public static boolean sameValue(byte[] a, byte[] b) {
+        if (Arrays.equals(a, b)) {
+            return true;
+        }
+        return (isEncoded(a) || isEncoded(b)) && Arrays.equals(decode(a), decode(b));
+    }
+
+    private static boolean startsWithMagic(byte[] value) {
+        return Arrays.equals(value, 0, Math.min(value.length, MAGIC.length), MAGIC, 0, MAGIC.length);
+    }
+
+    // The compressed form, or null if it would not come to 7/8 of the value or less
+    private static byte[] deflate(byte[] value) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        byte[] out = new byte[value.length - value.length / 8];
+        System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+        out[MAGIC.length] = DEFLATED;
+        ByteBuffer.wrap(out, HEADER, Integer.BYTES).putInt(value.length);
+        int written = DEFLATED_HEADER;
+        while (!deflater.finished() && written < out.length) {
+            written += deflater.deflate(out, written, out.length - written);
+        }
+        return deflater.finished() ? Arrays.copyOf(out, written) : null;
+    }
+
+    private static byte[] inflate(byte[] stored) {
+        int length = ByteBuffer.wrap(stored, HEADER, Integer.BYTES).getInt();
+        if (length < 0) {
+            throw new IllegalStateException("Corrupt compressed value");
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(stored, DEFLATED_HEADER, stored.length - DEFLATED_HEADER);
+        byte[] value = new byte[length];
+        try {
+            int read = 0;
+            while (read < length) {
+                int count = inflater.inflate(value, read, length - read);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += count;
+            }
+            // The stream must end exactly there, checksum included
+            if (read < length || inflater.inflate(new byte[1]) > 0 || !inflater.finished()) {
+                throw new IllegalStateException("Corrupt compressed value");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed value: " + e.getMessage());
+        }
+        return value;
+    }
+
+    // ---- Server side ----
+
+    // Counts the values a client that negotiated compression is writing; they are stored as they are
+    void received(Request request) {
+        if (request.type == Request.Type.PUTCHUNK) {
+            return;
+        }
+        count(request.value);
+        if (request.pairs != null) {
+            request.pairs.values().forEach(this::count);
+        }
+    }
+
+    // Puts the values of a plain client's request in their stored form. Chunks of streamed values are left alone.
+    void escape(Request request) {
+        if (request.type == Request.Type.PUTCHUNK) {
+            return;
+        }
+        request.value = escape(request.value);
+        request.expected = escape(request.expected);
+        request.valueCond = escape(request.valueCond);
+        if (request.pairs != null) {
+            request.pairs.replaceAll((key, value) -> escape(value));
+        }
+    }
+
+    // The reply with its values decoded, for a plain client. Anything decoded replaces a value held in place.
+    Response decode(Response response) throws IOException {
+        try {
+            switch (response.status) {
+                case GET_OK, GETWHEN_OK, VGET_OK -> {
+                    if (response.ref != null) {
+                        if (!response.ref.startsWith(MAGIC)) {
+                            return response;  // Sent from where it is held
+                        }
+                        byte[] stored = response.ref.toByteArray();
+                        response.release();
+                        return response.replacingValue(decodeCounted(stored));
+                    }
+                    return isEncoded(response.value) ? response.replacingValue(decodeCounted(response.value)) : response;
+                }
+                case MULTIGET_OK, SCAN_OK, TXGET_OK -> {
+                    response.values.replaceAll((key, value) -> decodeCounted(value));  // Built for this reply alone
+                    return response;
+                }
+                default -> {
+                    return response;
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(compressedValues.sum(), originalBytes.sum(), storedBytes.sum(), decompressedValues.sum(), decompressNanos.sum());
+    }
+
+    private void count(byte[] stored) {
+        if (isCompressed(stored)) {
+            compressedValues.increment();
+            originalBytes.add(ByteBuffer.wrap(stored, HEADER, Integer.BYTES).getInt());
+            storedBytes.add(stored.length);
+        }
+    }
+
+    private byte[] decodeCounted(byte[] stored) {
+        if (!isCompressed(stored)) {
+            return decode(stored);
+        }
+        long start = System.nanoTime();
+        byte[] value = inflate(stored);
+        decompressNanos.add(System.nanoTime() - start);
+        decompressedValues.increment();
+        return value;
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// A stored value handed out without copying it, e.g. a slice of an off-heap slab.
+// The storage keeps the bytes in place until release() is called, so whoever ends up with the
+// reference must release it exactly once, after the bytes have been written out.
+public interface ValueRef {
+    // Read-only view of the value, from position 0 to its length
+    ByteBuffer buffer();
+
+    int length();
+
+    void release();
+
+    // Whether the value is kept in a file, so that transferTo can send it without copying it through the heap
+    default boolean inFile() {
+        return false;
+    }
+
+    // Writes the value from offset on to the channel, as much of it as the channel takes; returns how many bytes.
+    // A value in a file goes with FileChannel.transferTo, straight from the page cache to a socket.
+    default long transferTo(long offset, WritableByteChannel target) throws IOException {
+        ByteBuffer source = buffer();
+        source.position(Math.toIntExact(offset));
+        return target.write(source);
+    }
+
+    // Writes the value to a stream through a small buffer, never copying all of it onto the heap at once
+    default void writeTo(OutputStream output) throws IOException {
+        ByteBuffer source = buffer();
+        if (source.hasArray()) {
+            output.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(source.remaining(), 8192)];
+        while (source.hasRemaining()) {
+            int count = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, count);
+            output.write(chunk, 0, count);
+        }
+    }
+
+    // Whether the value starts with the given bytes
+    default boolean startsWith(byte[] prefix) {
+        ByteBuffer value = buffer();
+        return value.remaining() >= prefix.length && value.slice(0, prefix.length).equals(ByteBuffer.wrap(prefix));
+    }
+
+    // Copies the value onto the heap
+    default byte[] toByteArray() {
+        byte[] bytes = new byte[length()];
+        buffer().get(bytes);
+        return bytes;
+    }
+
+    // Reference to a value that already lives on the heap; releasing it does nothing
+    static ValueRef of(byte[] value) {
+        return new ValueRef() {
+            @Override
+            public ByteBuffer buffer() {
+                return ByteBuffer.wrap(value).asReadOnlyBuffer();
+            }
+
+            @Override
+            public int length() {
+                return value.length;
+            }
+
+            @Override
+            public void release() {
+                // Left to the garbage collector
+            }
+        };
+    }
+}
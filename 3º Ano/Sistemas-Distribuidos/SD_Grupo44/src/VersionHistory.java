@@ -0,0 +1,201 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// Multi-version concurrency control for StorageService: lets a reader see the store as of one instant
+// without holding back the writers.
+//
+// Every write gets the next version number. While a snapshot is open, a write adds its values, newest first, to
+// the history of each of its keys before they reach the engine, which keeps the latest value as before. A reader
+// opens a snapshot at the latest version, reads the engine, and takes the newest value at or before its snapshot
+// from the key's history if there is one. A history is trimmed as soon as no open snapshot is older than its
+// entries, and with no snapshot open writes keep none: any snapshot opened later is at or after them.
+//  - Versions become visible in order, and a snapshot opens only once every version up to it is visible, so it
+//    never sees a write without every write numbered before it, and always sees the writes that returned.
+//    Writers mark their version applied in a ring and move visible past it with a compare-and-set, so they never
+//    lock or wait for each other; only a snapshot waiting for a write still in progress blocks.
+//  - A write that starts a key's history while a snapshot is open first records the key's current value as
+//    version 0, which that snapshot falls back to.
+public class VersionHistory {
+    // One value of a key, linked to the one it replaced
+    private record Version(long number, byte[] value, Version older) {
+        // The value a snapshot sees: the newest at or before it
+        Version at(long snapshot) {
+            Version version = this;
+            while (version != null && version.number > snapshot) {
+                version = version.older;
+            }
+            return version;
+        }
+
+        // This history without the versions no snapshot at or after the horizon needs, or null if the
+        // engine's value is all that is left
+        Version trim(long horizon) {
+            if (number <= horizon) {
+                return null;
+            }
+            Version kept = older == null ? null : older.number <= horizon ? older.last() : older.trim(horizon);
+            return kept == older ? this : new Version(number, value, kept);
+        }
+
+        // This version without the ones before it
+        Version last() {
+            return older == null ? this : new Version(number, value, null);
+        }
+    }
+
+    private final Map<String, Version> histories = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();  // Last version handed out
+    private final AtomicInteger openSnapshots = new AtomicInteger();  // Tells writers whether to record the current value first
+
+    // Versions applied to the engine, each in slot number % RING_SIZE until visible passes it; a write waits only
+    // if it is a whole ring ahead of the oldest write still in progress
+    private static final int RING_SIZE = 1 << 12;
+    private final AtomicLongArray applied = new AtomicLongArray(RING_SIZE);
+    private final AtomicLong visible = new AtomicLong();  // Every version up to this one is applied
+    private final AtomicInteger waiting = new AtomicInteger();  // Snapshots blocked until visible reaches them
+
+    // The fields below are guarded by lock, which writers take only to wake a waiting snapshot or to trim histories
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition advanced = lock.newCondition();
+    private final TreeMap<Long, Collection<String>> retired = new TreeMap<>();  // Applied writes whose histories may still be trimmed
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();  // Open snapshots, with how many readers share each
+
+    // Numbers a write and adds its values to the histories of its keys. Called with the keys' stripes locked,
+    // before the engine is written; current reads a key's value from the engine.
+    public long record(Map<String, byte[]> pairs, Function<String, byte[]> current) {
+        long number = clock.incrementAndGet();
+        boolean snapshotOpen = openSnapshots.get() > 0;  // Read after the increment: a snapshot not seen here is at or after number
+        pairs.forEach((key, value) -> record(number, snapshotOpen, key, value, current));
+        return number;
+    }
+
+    // As above for a single key
+    public long record(String key, byte[] value, Function<String, byte[]> current) {
+        long number = clock.incrementAndGet();
+        record(number, openSnapshots.get() > 0, key, value, current);
+        return number;
+    }
+
+    // Numbers a single-key write made without the key's stripe lock, which keeps no history; 0, with nothing
+    // recorded, if a snapshot is open, and the write has to be made under the lock after all
+    public long recordUnlocked(String key) {
+        long number = clock.incrementAndGet();
+        if (openSnapshots.get() > 0) {
+            publish(number, List.of());  // Nothing is written under it
+            return 0;
+        }
+        histories.remove(key);
+        return number;
+    }
+
+    private void record(long number, boolean snapshotOpen, String key, byte[] value, Function<String, byte[]> current) {
+        if (!snapshotOpen) {
+            histories.remove(key);  // Left by an earlier snapshot, and would hide this write from later ones
+            return;
+        }
+        histories.compute(key, (k, history) -> {
+            if (history == null) {
+                history = new Version(0, current.apply(key), null);
+            }
+            return new Version(number, value, history);
+        });
+    }
+
+    // Marks a recorded write as applied to the engine; it is visible once every write before it is too
+    public void publish(long number, Collection<String> keys) {
+        while (number - visible.get() > RING_SIZE) {
+            Thread.yield();  // Its slot still marks the write a ring before it
+        }
+        applied.set((int) (number & (RING_SIZE - 1)), number);
+        boolean advancedHere = false;
+        for (long last = visible.get(); applied.get((int) (last + 1 & (RING_SIZE - 1))) == last + 1; last = visible.get()) {
+            advancedHere |= visible.compareAndSet(last, last + 1);  // Else another writer moved it; look again
+        }
+        if (advancedHere && waiting.get() > 0) {  // Read after visible moved, see openSnapshot
+            lock.lock();
+            try {
+                advanced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (!histories.isEmpty()) {  // Else nothing this write recorded is left to trim
+            lock.lock();
+            try {
+                retire(number, keys);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Opens a snapshot of everything written so far, once it is all visible
+    public long openSnapshot() {
+        lock.lock();
+        try {
+            openSnapshots.incrementAndGet();  // Before the clock is read, see record
+            long snapshot = clock.get();
+            snapshots.merge(snapshot, 1, Integer::sum);
+            if (visible.get() < snapshot) {
+                waiting.incrementAndGet();  // Before visible is read again, so the write that moves it wakes us
+                while (visible.get() < snapshot) {
+                    advanced.awaitUninterruptibly();  // A write before it is still being applied
+                }
+                waiting.decrementAndGet();
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void closeSnapshot(long snapshot) {
+        lock.lock();
+        try {
+            snapshots.merge(snapshot, -1, (count, one) -> count + one == 0 ? null : count + one);
+            openSnapshots.decrementAndGet();
+            reclaim();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The value of a key as of a snapshot, given its value in the engine read after the snapshot was opened
+    public byte[] read(String key, long snapshot, byte[] latest) {
+        Version history = histories.get(key);  // Written to before the engine, so it covers whatever was read there
+        if (history == null) {
+            return latest;
+        }
+        Version version = history.at(snapshot);
+        return version != null ? version.value : latest;
+    }
+
+    // Trims the histories of a write just applied, or keeps it for later while a snapshot is older. With none open
+    // it need not be visible yet: any snapshot opened later is at or after it. Called with the lock held.
+    private void retire(long number, Collection<String> keys) {
+        if (snapshots.isEmpty()) {
+            for (String key : keys) {
+                histories.computeIfPresent(key, (k, history) -> history.trim(number));
+            }
+        } else {
+            retired.put(number, keys);
+        }
+        reclaim();
+    }
+
+    // Trims the histories of visible writes that no open snapshot is older than; called with the lock held
+    private void reclaim() {
+        long horizon = snapshots.isEmpty() ? visible.get() : Math.min(snapshots.firstKey(), visible.get());
+        while (!retired.isEmpty() && retired.firstKey() <= horizon) {
+            for (String key : retired.pollFirstEntry().getValue()) {
+                histories.computeIfPresent(key, (k, history) -> history.trim(horizon));
+            }
+        }
+    }
+}
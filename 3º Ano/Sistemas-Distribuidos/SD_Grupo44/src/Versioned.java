@@ -0,0 +1,24 @@
+import java.nio.ByteBuffer;
+
+// A value with the version stamp of the write that produced it, as kept by vput / vget.
+// Stored as   long stamp | value bytes   under the key itself; a higher stamp is a later write.
+public record Versioned(long stamp, byte[] value) {
+    public byte[] encode() {
+        return ByteBuffer.allocate(Long.BYTES + value.length).putLong(stamp).put(value).array();
+    }
+
+    // The versioned value stored as these bytes, or null for none
+    public static Versioned decode(byte[] stored) {
+        if (stored == null) {
+            return null;
+        }
+        if (stored.length < Long.BYTES) {
+            throw new IllegalStateException("Not a versioned value");  // Written with a plain put
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(stored);
+        long stamp = buffer.getLong();
+        byte[] value = new byte[buffer.remaining()];
+        buffer.get(value);
+        return new Versioned(stamp, value);
+    }
+}
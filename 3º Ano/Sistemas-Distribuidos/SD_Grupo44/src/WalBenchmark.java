@@ -0,0 +1,100 @@
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Measures put throughput and latency under each write-ahead log sync policy, at several client thread counts.
+// Usage: java WalBenchmark [seconds per run] [thread counts...], e.g. "java WalBenchmark 5 1 8 32"
+public class WalBenchmark {
+    private static final int KEY_COUNT = 10_000;  // Size of the key space the clients write to
+    private static final int VALUE_SIZE = 64;  // Size of every written value in bytes
+    private static final long SYNC_INTERVAL_MILLIS = 100;  // Interval used for the INTERVAL policy
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int[] threadCounts = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 1, 8, 32 };
+
+        String[] keys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "key" + i;
+        }
+
+        List<WriteAheadLog.SyncPolicy> policies = new ArrayList<>();
+        policies.add(null);  // No log at all, as a baseline
+        policies.addAll(List.of(WriteAheadLog.SyncPolicy.OS, WriteAheadLog.SyncPolicy.INTERVAL, WriteAheadLog.SyncPolicy.ALWAYS));
+
+        System.out.println("policy,threads,puts_per_sec,p50_us,p99_us");
+        for (WriteAheadLog.SyncPolicy policy : policies) {
+            for (int threads : threadCounts) {
+                Path dir = Files.createTempDirectory("wal-bench");
+                WriteAheadLog wal = null;
+                StorageService storage;
+                if (policy == null) {
+                    storage = new StorageService();
+                } else {
+                    wal = new WriteAheadLog(dir, policy, SYNC_INTERVAL_MILLIS);
+                    storage = new StorageService(new MapStorageEngine(new SnapshotStore(dir)), wal);
+                }
+
+                run(storage, keys, threads, 1);  // Warm-up, not reported
+                long[] latencies = run(storage, keys, threads, seconds);
+                Arrays.sort(latencies);
+                System.out.printf("%s,%d,%d,%d,%d%n",
+                        policy == null ? "none" : policy.name().toLowerCase(), threads, latencies.length / seconds,
+                        percentile(latencies, 0.50) / 1000, percentile(latencies, 0.99) / 1000);
+
+                if (wal != null) {
+                    wal.close();
+                }
+                deleteQuietly(dir);
+            }
+        }
+    }
+
+    // Runs puts on the given number of threads for a while and returns the latency of every put in nanoseconds
+    private static long[] run(StorageService storage, String[] keys, int threads, int seconds) throws InterruptedException {
+        List<long[]> perThread = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                byte[] value = new byte[VALUE_SIZE];
+                long[] latencies = new long[1024];
+                int count = 0;
+                long now;
+                while ((now = System.nanoTime()) < deadline) {
+                    storage.put(keys[random.nextInt(keys.length)], value);
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - now;
+                }
+                perThread.add(Arrays.copyOf(latencies, count));
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return perThread.stream().flatMapToLong(Arrays::stream).toArray();
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    private static void deleteQuietly(Path dir) {
+        try (var files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (Exception e) {
+            System.err.println("Error deleting " + dir + ": " + e.getMessage());
+        }
+    }
+}
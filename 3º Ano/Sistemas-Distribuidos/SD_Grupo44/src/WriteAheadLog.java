@@ -0,0 +1,427 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Append-only log of every write, replayed on startup so the store survives a restart.
+//
+// Writers only copy their record into a shared buffer; one flusher thread writes whatever has
+// accumulated with a single write (and a single fsync under ALWAYS), so concurrent writers share
+// one sync (group commit). Each record is   int length | int CRC32 | body   and a record that was
+// cut short by a crash fails its length or checksum and is dropped on replay.
+//
+// The log is a series of numbered segment files (wal-<n>.log). A snapshot rotates to a new segment
+// and, once it is written, deletes the segments before it, so a restart only replays what came after
+// the latest snapshot.
+public class WriteAheadLog implements AutoCloseable {
+    // When a write counts as durable
+    public enum SyncPolicy {
+        ALWAYS,    // Acknowledged only after fsync; writers waiting at the same time share one fsync
+        INTERVAL,  // Acknowledged once written to the OS; fsync every intervalMillis, so up to that much can be lost
+        OS         // Acknowledged once written to the OS; the OS decides when it reaches the disk
+    }
+
+    private static final byte PUT_RECORD = 1;  // Body: int count, then count times (UTF key, int length, value), length -1 and no value for a removal
+    private static final int HEADER_SIZE = 8;  // Length and checksum in front of every body
+
+    // What replaying a segment found: how many records, and whether something after the last of them was cut off
+    private record Replayed(int records, boolean torn) {}
+
+    private final Path dir;  // Directory holding the segment files
+    private final SyncPolicy policy;
+    private final long intervalMillis;  // Time between forced syncs under INTERVAL
+    private final ReentrantLock lock = new ReentrantLock();  // Guards the fields below
+    private final Condition pendingAvailable = lock.newCondition();  // Signalled when a record is appended
+    private final Condition flushed = lock.newCondition();  // Signalled when a batch has been written
+    private FileChannel channel;  // Segment being written; the flusher takes it together with each batch
+    private long segment;  // Number of the segment being written
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();  // Records not yet written
+    private long appended = 0;  // Number of records appended so far
+    private long written = 0;  // Number of records written (and synced, under ALWAYS)
+    private IOException failure;  // Set if writing the log failed; every later write fails too
+    private final TreeMap<Long, CompletableFuture<Void>> durable = new TreeMap<>();  // Futures of whenDurable, by ticket
+    private boolean started = false;  // Appends are refused until replay has run
+    private boolean closed = false;  // Set by close; the flusher stops once nothing is pending
+    private Thread flusher;  // Writes the pending records
+    private ScheduledExecutorService syncTimer;  // Forces the file every intervalMillis under INTERVAL
+
+    public WriteAheadLog(Path dir, SyncPolicy policy, long intervalMillis) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+    }
+
+    // Hands every intact record of the segments numbered fromSegment and up to the callback, in log order,
+    // cuts off a torn tail and starts accepting appends right after the last intact record. Replay stops at the
+    // first damaged record even if later segments follow, so what is recovered is always a prefix of the log;
+    // those segments are renamed to wal-<n>.log.dropped rather than deleted.
+    public void replay(long fromSegment, Consumer<Map<String, byte[]>> apply) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        for (long number : listSegments()) {
+            if (number >= fromSegment) {
+                segments.add(number);
+            }
+        }
+
+        int records = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Replayed replayed = replaySegment(segmentPath(segments.get(i)), apply);
+            records += replayed.records();
+            if (replayed.torn() && i < segments.size() - 1) {
+                List<Long> dropped = segments.subList(i + 1, segments.size());
+                System.err.println("Write-ahead log: damaged record in the middle of the log; not replaying the "
+                        + dropped.size() + " segments after " + segmentPath(segments.get(i)).getFileName());
+                for (long number : dropped) {
+                    Path path = segmentPath(number);
+                    Files.move(path, path.resolveSibling(path.getFileName() + ".dropped"), StandardCopyOption.REPLACE_EXISTING);
+                }
+                segments = segments.subList(0, i + 1);
+                break;
+            }
+        }
+        System.out.println("Write-ahead log replayed: " + records + " records from " + segments.size() + " segments");
+
+        segment = segments.isEmpty() ? Math.max(fromSegment, 1) : segments.get(segments.size() - 1);
+        channel = openSegment(segment);
+        channel.position(channel.size());
+        start();
+    }
+
+    // Starts a new segment and returns its number; every record appended so far stays in the previous ones.
+    // The caller must keep appends out while this runs (StorageService holds every stripe lock).
+    public long rotate() throws IOException {
+        FileChannel next = openSegment(segment + 1);
+        FileChannel previous;
+        lock.lock();
+        try {
+            while (written < appended && failure == null) {
+                flushed.awaitUninterruptibly();  // Let the flusher write the rest of the current segment
+            }
+            previous = channel;
+            channel = next;
+            segment++;
+        } finally {
+            lock.unlock();
+        }
+        previous.force(false);
+        previous.close();
+        return segment;
+    }
+
+    // Whether nothing has been logged in the current segment, i.e. a snapshot now would change nothing
+    public boolean currentSegmentEmpty() throws IOException {
+        lock.lock();
+        try {
+            return appended == written && channel.size() == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deletes the segments numbered below the given one, once a snapshot covers them
+    public void deleteSegmentsBefore(long number) throws IOException {
+        for (long old : listSegments()) {
+            if (old < number) {
+                Files.deleteIfExists(segmentPath(old));
+            }
+        }
+    }
+
+    // Replays one segment file and truncates whatever follows its last intact record
+    private Replayed replaySegment(Path path, Consumer<Map<String, byte[]>> apply) throws IOException {
+        long validEnd = 0;
+        int records = 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = file.size();
+            DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file)));
+            try {
+                while (true) {
+                    int length = input.readInt();
+                    int checksum = input.readInt();
+                    if (length <= 0 || length > size - validEnd - HEADER_SIZE) {
+                        break;  // Garbage where a record header should be, or a record cut short
+                    }
+                    byte[] body = new byte[length];
+                    input.readFully(body);
+                    if (checksum != crcOf(body)) {
+                        break;  // The record was only partly written
+                    }
+                    apply.accept(decode(body));
+                    validEnd += HEADER_SIZE + length;
+                    records++;
+                }
+            } catch (EOFException e) {
+                // End of the segment, possibly in the middle of a record
+            }
+
+            if (file.size() > validEnd) {
+                System.err.println("Write-ahead log: dropping " + (file.size() - validEnd) + " bytes of incomplete records from " + path.getFileName());
+                file.truncate(validEnd);
+                return new Replayed(records, true);
+            }
+        }
+        return new Replayed(records, false);
+    }
+
+    // Numbers of the segment files in the directory, in ascending order
+    private List<Long> listSegments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private Path segmentPath(long number) {
+        return dir.resolve(String.format("wal-%010d.log", number));
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Appends a record holding the given pairs and returns a ticket for awaitDurable.
+    // Records are written in the order this method is called.
+    public long append(Map<String, byte[]> pairs) {
+        byte[] record = encode(pairs);
+        lock.lock();
+        try {
+            if (!started) {
+                throw new IllegalStateException("Write-ahead log used before replay");
+            }
+            pending.write(record, 0, record.length);
+            pendingAvailable.signal();
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits until the record with this ticket is as durable as the sync policy promises
+    public void awaitDurable(long ticket) throws IOException {
+        lock.lock();
+        try {
+            while (written < ticket && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new IOException("Write-ahead log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // As awaitDurable, without waiting: the future completes once the record is durable, or fails with the log,
+    // on the flusher thread unless it already has
+    public CompletableFuture<Void> whenDurable(long ticket) {
+        lock.lock();
+        try {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(new IOException("Write-ahead log failed", failure));
+            }
+            if (written >= ticket) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return durable.computeIfAbsent(ticket, t -> new CompletableFuture<>());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes what is still pending, syncs and closes the file
+    @Override
+    public void close() throws IOException {
+        if (syncTimer != null) {
+            syncTimer.shutdown();
+        }
+        lock.lock();
+        try {
+            closed = true;
+            pendingAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    private void start() {
+        lock.lock();
+        try {
+            started = true;
+        } finally {
+            lock.unlock();
+        }
+
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        if (policy == SyncPolicy.INTERVAL) {
+            syncTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncTimer.scheduleAtFixedRate(this::syncQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Body of the flusher thread: writes every batch that accumulated while the previous one was being written,
+    // until the log is closed and nothing is left
+    private void flushLoop() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            long batchEnd;
+            FileChannel target;
+            lock.lock();
+            try {
+                while (pending.size() == 0 && !closed) {
+                    pendingAvailable.awaitUninterruptibly();
+                }
+                if (pending.size() == 0) {
+                    return;
+                }
+                batch = pending;
+                batchEnd = appended;
+                target = channel;
+                pending = new ByteArrayOutputStream();
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                if (policy == SyncPolicy.ALWAYS) {
+                    target.force(false);  // One fsync for every writer in the batch
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            List<CompletableFuture<Void>> done;
+            IOException failed;
+            lock.lock();
+            try {
+                if (error != null && failure == null) {
+                    failure = error;
+                    System.err.println("Write-ahead log failed: " + error.getMessage());
+                }
+                written = batchEnd;
+                flushed.signalAll();
+                Map<Long, CompletableFuture<Void>> due = failure != null ? durable : durable.headMap(written, true);
+                done = new ArrayList<>(due.values());
+                due.clear();
+                failed = failure;
+            } finally {
+                lock.unlock();
+            }
+            for (CompletableFuture<Void> future : done) {  // Outside the lock: they go on to send the replies
+                if (failed != null) {
+                    future.completeExceptionally(new IOException("Write-ahead log failed", failed));
+                } else {
+                    future.complete(null);
+                }
+            }
+        }
+    }
+
+    private void syncQuietly() {
+        FileChannel current;
+        lock.lock();
+        try {
+            current = channel;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            current.force(false);
+        } catch (ClosedChannelException e) {
+            // Rotated away meanwhile; rotate synced it
+        } catch (IOException e) {
+            System.err.println("Write-ahead log sync failed: " + e.getMessage());
+        }
+    }
+
+    // Builds a complete record (header and body) for a set of pairs
+    private static byte[] encode(Map<String, byte[]> pairs) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeByte(PUT_RECORD);
+            out.writeInt(pairs.size());
+            for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                out.writeUTF(pair.getKey());
+                if (pair.getValue() == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(pair.getValue().length);
+                    out.write(pair.getValue());
+                }
+            }
+            byte[] bytes = body.toByteArray();
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream(HEADER_SIZE + bytes.length);
+            DataOutputStream header = new DataOutputStream(record);
+            header.writeInt(bytes.length);
+            header.writeInt(crcOf(bytes));
+            header.write(bytes);
+            return record.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // In-memory streams do not fail
+        }
+    }
+
+    private static Map<String, byte[]> decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        if (type != PUT_RECORD) {
+            throw new IOException("Unknown write-ahead log record type: " + type);
+        }
+        int count = in.readInt();
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            int length = in.readInt();
+            byte[] value = length < 0 ? null : new byte[length];
+            if (value != null) {
+                in.readFully(value);
+            }
+            pairs.put(key, value);
+        }
+        return pairs;
+    }
+
+    private static int crcOf(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,5 @@
+// Callback run by the StorageService after a key has been written.
+// It runs on the writer's thread, so implementations must be quick and must not block.
+public interface WriteListener {
+    void onWrite(String key, byte[] value);
+}